@@ -0,0 +1,63 @@
+package cz.csas.tutorials.api.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks JMH results (target/jmh-result.json) against limits in benchmark-thresholds.properties and fails the build of
+ * benchmarks profile when a benchmark takes more time ({@code <benchmark>.maxNsPerOp}) or allocates more bytes
+ * ({@code <benchmark>.maxBytesPerOp}, from gc.alloc.rate.norm) per operation. Benchmarks without limits (e.g. baselines)
+ * and limits of benchmarks which have not been run are not checked.
+ * <p>
+ * Arguments: JMH result file, thresholds file.
+ */
+public final class BenchmarkThresholds {
+
+    private static final String PACKAGE_PREFIX = BenchmarkThresholds.class.getPackage().getName() + ".";
+    private static final String ALLOCATION_METRIC = "·gc.alloc.rate.norm";
+
+    private BenchmarkThresholds() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        JsonNode results = Fixtures.OBJECT_MAPPER.readTree(new File(args[0]));
+        Properties thresholds = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(args[1]))) {
+            thresholds.load(in);
+        }
+
+        List<String> violations = new ArrayList<>();
+        for (JsonNode result : results) {
+            String benchmark = result.path("benchmark").asText().replace(PACKAGE_PREFIX, "");
+            JsonNode time = result.path("primaryMetric");
+            if ("ns/op".equals(time.path("scoreUnit").asText())) {
+                check(violations, benchmark, "maxNsPerOp", time.path("score").asDouble(), thresholds);
+            }
+            JsonNode allocation = result.path("secondaryMetrics").path(ALLOCATION_METRIC);
+            if (!allocation.isMissingNode()) {
+                check(violations, benchmark, "maxBytesPerOp", allocation.path("score").asDouble(), thresholds);
+            }
+        }
+
+        if (!violations.isEmpty()) {
+            violations.forEach(System.err::println);
+            System.exit(1);
+        }
+        System.out.println("All benchmarks are within thresholds of " + args[1]);
+    }
+
+    private static void check(List<String> violations, String benchmark, String limit, double score, Properties thresholds) {
+        String max = thresholds.getProperty(benchmark + "." + limit);
+        if (max != null && score > Double.parseDouble(max)) {
+            violations.add(String.format("%s: %.1f exceeds %s=%s", benchmark, score, limit, max));
+        }
+    }
+}
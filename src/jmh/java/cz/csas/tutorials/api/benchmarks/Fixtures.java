@@ -0,0 +1,76 @@
+package cz.csas.tutorials.api.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typical PISP requests and response bodies (as in the sandbox) used by benchmarks.
+ */
+final class Fixtures {
+
+    static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+
+    static final String CREATE_PAYMENT_REQUEST = "{"
+            + "\"paymentTypeInformation\":{\"instructionPriority\":\"NORM\"},"
+            + "\"amount\":{\"instructedAmount\":{\"currency\":\"CZK\",\"value\":1500.50}},"
+            + "\"requestedExecutionDate\":\"2019-02-08\","
+            + "\"debtorAccount\":{\"identification\":{\"iban\":\"CZ5508000000001234567899\"}},"
+            + "\"creditorAccount\":{\"identification\":{\"iban\":\"CZ1208000000000987654321\"}}}";
+
+    static final String BALANCE_CHECK_REQUEST = "{"
+            + "\"exchangeIdentification\":1234567890,"
+            + "\"debtorAccount\":{\"identification\":{\"iban\":\"CZ5508000000001234567899\"}},"
+            + "\"transactionDetails\":{\"currency\":\"CZK\",\"totalAmount\":1500.50}}";
+
+    static final byte[] ACCOUNTS_RESPONSE = ("{\"pageNumber\":0,\"pageCount\":1,\"pageSize\":3,\"accounts\":["
+            + account("A1", "CZ5508000000001234567899", "Osobní účet")
+            + "," + account("A2", "CZ1208000000000987654321", "Spořicí účet")
+            + "," + account("A3", "CZ6508000000000192000145", "Podnikatelský účet")
+            + "]}").getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] CREATE_PAYMENT_RESPONSE = ("{"
+            + "\"paymentTypeInformation\":{\"instructionPriority\":\"NORM\"},"
+            + "\"amount\":{\"instructedAmount\":{\"currency\":\"CZK\",\"value\":1500.50}},"
+            + "\"requestedExecutionDate\":\"2019-02-08\","
+            + "\"debtorAccount\":{\"identification\":{\"iban\":\"CZ5508000000001234567899\"}},"
+            + "\"creditorAccount\":{\"identification\":{\"iban\":\"CZ1208000000000987654321\"}},"
+            + "\"signInfo\":{\"state\":\"OPEN\",\"signId\":\"151112531008164\",\"hash\":\"e5d5b7c1a8f04e6cb7f1c4f2a0d3b9e7\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] SIGN_RESPONSE = ("{"
+            + "\"signInfo\":{\"state\":\"OPEN\",\"signId\":\"151112531008164\",\"hash\":\"e5d5b7c1a8f04e6cb7f1c4f2a0d3b9e7\"},"
+            + "\"scenarios\":[[\"TAC\"],[\"FEDERATED\"]]}").getBytes(StandardCharsets.UTF_8);
+
+    private Fixtures() {
+    }
+
+    static CreatePaymentRequest createPaymentRequest() {
+        return read(CREATE_PAYMENT_REQUEST, CreatePaymentRequest.class);
+    }
+
+    static BalanceCheckRequest balanceCheckRequest() {
+        return read(BALANCE_CHECK_REQUEST, BalanceCheckRequest.class);
+    }
+
+    private static String account(String id, String iban, String name) {
+        return "{\"id\":\"" + id + "\","
+                + "\"identification\":{\"iban\":\"" + iban + "\",\"otherAccountNumber\":\"1234567899/0800\"},"
+                + "\"currency\":\"CZK\","
+                + "\"servicer\":{\"bankCode\":\"0800\",\"countryCode\":\"CZ\",\"bic\":\"GIBACZPX\"},"
+                + "\"nameI18N\":\"" + name + "\",\"productI18N\":\"Osobní účet ČS\"}";
+    }
+
+    private static <T> T read(String json, Class<T> type) {
+        try {
+            return OBJECT_MAPPER.readValue(json, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package cz.csas.tutorials.api.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.sign.SignResponse;
+import cz.csas.tutorials.api.services.JsonCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of PISP request bodies and deserialization of typical response bodies by {@link JsonCodec}, the same
+ * way as {@link cz.csas.tutorials.api.services.PispService} does it for every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    private JsonCodec jsonCodec;
+    private CreatePaymentRequest createPaymentRequest;
+    private BalanceCheckRequest balanceCheckRequest;
+
+    @Setup
+    public void setUp() {
+        jsonCodec = new JsonCodec(Fixtures.OBJECT_MAPPER);
+        createPaymentRequest = Fixtures.createPaymentRequest();
+        balanceCheckRequest = Fixtures.balanceCheckRequest();
+    }
+
+    @Benchmark
+    public byte[] writeCreatePaymentRequest() throws IOException {
+        ObjectWriter writer = jsonCodec.writer(CreatePaymentRequest.class);
+        return writer.writeValueAsBytes(createPaymentRequest);
+    }
+
+    @Benchmark
+    public byte[] writeBalanceCheckRequest() throws IOException {
+        ObjectWriter writer = jsonCodec.writer(BalanceCheckRequest.class);
+        return writer.writeValueAsBytes(balanceCheckRequest);
+    }
+
+    @Benchmark
+    public AccountsResponse readAccountsResponse() throws IOException {
+        ObjectReader reader = jsonCodec.reader(AccountsResponse.class);
+        return reader.readValue(Fixtures.ACCOUNTS_RESPONSE);
+    }
+
+    @Benchmark
+    public CreatePaymentResponse readCreatePaymentResponse() throws IOException {
+        ObjectReader reader = jsonCodec.reader(CreatePaymentResponse.class);
+        return reader.readValue(Fixtures.CREATE_PAYMENT_RESPONSE);
+    }
+
+    @Benchmark
+    public SignResponse readSignResponse() throws IOException {
+        ObjectReader reader = jsonCodec.reader(SignResponse.class);
+        return reader.readValue(Fixtures.SIGN_RESPONSE);
+    }
+}
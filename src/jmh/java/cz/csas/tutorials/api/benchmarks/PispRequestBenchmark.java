@@ -0,0 +1,109 @@
+package cz.csas.tutorials.api.benchmarks;
+
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.services.PispRequest;
+import cz.csas.tutorials.api.services.PispService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.support.ResourcePropertySource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call work of {@link PispService} before the request is sent - whole preparation of typical GET and POST calls and
+ * writing of their headers. Property lookup, {@link UriComponentsBuilder} expansion and fresh {@link HttpHeaders} (done
+ * for every call before URL templates and shared headers) are kept as a baseline. Configuration is read from
+ * application.properties.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PispRequestBenchmark {
+
+    private static final String TOKEN = "3/Zbmb1XkU6y8GzGb6CnEdJYYHPvRrWbWyFnEuGMq8Q1jKVp";
+    private static final String WEB_API_KEY = "c212854f-c52b-41c2-a8c4-20b4db624119";
+    private static final String SIGN_ID = "151112531008164";
+
+    private StandardEnvironment environment;
+    private PispService pispService;
+    private CreatePaymentRequest createPaymentRequest;
+    private PispRequest preparedRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new ResourcePropertySource("classpath:application.properties"));
+        // collaborators executing the calls are not used by prepare* methods
+        pispService = new PispService(new RestTemplate(), environment, null, null, null, null, null);
+        createPaymentRequest = Fixtures.createPaymentRequest();
+        preparedRequest = pispService.prepareGetApiAuthorization(TOKEN, WEB_API_KEY, SIGN_ID);
+    }
+
+    @Benchmark
+    public String requiredPropertyLookup() {
+        return environment.getRequiredProperty("pispAccountsUrl");
+    }
+
+    @Benchmark
+    public String accountsUrlExpansion() {
+        return UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispAccountsUrl"))
+                .queryParam("page", "0")
+                .queryParam("size", "50")
+                .queryParam("sort", (Object) null)
+                .queryParam("order", (Object) null)
+                .buildAndExpand(Collections.emptyMap()).toString();
+    }
+
+    @Benchmark
+    public String signUrlExpansion() {
+        return UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispApiAuthUrl"))
+                .buildAndExpand(SIGN_ID).toString();
+    }
+
+    @Benchmark
+    public HttpHeaders headersConstruction() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Bearer " + TOKEN);
+        headers.add("web-api-key", WEB_API_KEY);
+        return headers;
+    }
+
+    @Benchmark
+    public HttpHeaders writeRequestHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        preparedRequest.writeHeaders(headers);
+        return headers;
+    }
+
+    @Benchmark
+    public PispRequest prepareGetAccounts() {
+        return pispService.prepareGetAccounts(TOKEN, WEB_API_KEY, "0", "50", null, null, null);
+    }
+
+    @Benchmark
+    public PispRequest prepareCreatePayment() {
+        return pispService.prepareCreatePayment(TOKEN, WEB_API_KEY, createPaymentRequest);
+    }
+
+    @Benchmark
+    public PispRequest prepareGetApiAuthorization() {
+        return pispService.prepareGetApiAuthorization(TOKEN, WEB_API_KEY, SIGN_ID);
+    }
+}
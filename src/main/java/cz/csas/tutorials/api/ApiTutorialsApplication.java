@@ -1,21 +1,52 @@
 package cz.csas.tutorials.api;
 
+import cz.csas.tutorials.api.services.AbortableRequestFactory;
+import cz.csas.tutorials.api.services.PsuCredentials;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
 import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodParameter;
 import org.springframework.core.env.Environment;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.http.converter.FormHttpMessageConverter;
 import org.springframework.util.StringUtils;
+import org.springframework.web.bind.support.WebDataBinderFactory;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.WebUtils;
+import reactor.ipc.netty.resources.PoolResources;
 
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Springboot application - main class. It's goal is to show calls to CSAS API.
@@ -34,25 +65,61 @@ public class ApiTutorialsApplication {
         SpringApplication.run(ApiTutorialsApplication.class, args);
     }
 
-    @Bean
-    public RestTemplate getRestTemplate() {
-        String proxyUrl = environment.getRequiredProperty("proxyUrl");
-        String proxyPort = environment.getRequiredProperty("proxyPort");
-        String proxyScheme = environment.getRequiredProperty("proxyScheme");
+    /**
+     * Pool of upstream connections shared by all calls to CSAS. All connections use one SSL context,
+     * so TLS sessions are resumed instead of doing a full handshake for every new connection.
+     *
+     * @return pooling connection manager
+     */
+    @Bean(destroyMethod = "shutdown")
+    public PoolingHttpClientConnectionManager connectionManager() {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(SSLContexts.createSystemDefault()))
+                .build();
 
-        CloseableHttpClient httpClient;
-        if (!StringUtils.isEmpty(proxyUrl) && !StringUtils.isEmpty(proxyPort) && !StringUtils.isEmpty(proxyScheme)) {
-            httpClient = HttpClientBuilder.create()
-                    .disableRedirectHandling()
-                    .setProxy(new HttpHost(proxyUrl, Integer.parseInt(proxyPort), proxyScheme))
-                    .build();
-        } else {
-            httpClient = HttpClientBuilder.create()
-                    .disableRedirectHandling()
-                    .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(environment.getRequiredProperty("httpPoolMaxTotal", Integer.class));
+        connectionManager.setDefaultMaxPerRoute(environment.getRequiredProperty("httpPoolDefaultMaxPerRoute", Integer.class));
+        connectionManager.setValidateAfterInactivity(environment.getRequiredProperty("httpPoolValidateAfterInactivityMs", Integer.class));
+        connectionManager.setMaxPerRoute(getRoute("pispBaseUrl"), environment.getRequiredProperty("httpPoolPispMaxPerRoute", Integer.class));
+        connectionManager.setMaxPerRoute(getRoute("idpBaseUrl"), environment.getRequiredProperty("httpPoolIdpMaxPerRoute", Integer.class));
+        return connectionManager;
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient httpClient(PoolingHttpClientConnectionManager connectionManager) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(environment.getRequiredProperty("httpConnectTimeoutMs", Integer.class))
+                .setConnectionRequestTimeout(environment.getRequiredProperty("httpConnectionRequestTimeoutMs", Integer.class))
+                .setSocketTimeout(environment.getRequiredProperty("httpSocketTimeoutMs", Integer.class))
+                .build();
+
+        // connections are not bound to the thread that opened them, any request can reuse any idle connection
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .disableRedirectHandling()
+                .disableConnectionState()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(getKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(environment.getRequiredProperty("httpPoolEvictIdleMs", Long.class), TimeUnit.MILLISECONDS);
+
+        HttpHost proxy = getProxy();
+        if (proxy != null) {
+            builder.setProxy(proxy);
         }
+        return builder.build();
+    }
 
-        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+    /**
+     * Blocking client for calls to CSAS, on HTTP/1.1 pool by default, on HTTP/2 with httpClientTransport=http2 (see
+     * {@link Http2ClientConfiguration}).
+     */
+    @Bean
+    public RestTemplate getRestTemplate(CloseableHttpClient httpClient, ObjectProvider<ClientHttpRequestFactory> http2RequestFactory) {
+        // requests can be aborted from another thread, see RequestHedger
+        ClientHttpRequestFactory clientHttpRequestFactory = http2RequestFactory.getIfAvailable(() -> new AbortableRequestFactory(httpClient));
         RestTemplate restTemplate = new RestTemplate(clientHttpRequestFactory);
         FormHttpMessageConverter converter = new FormHttpMessageConverter();
         List<MediaType> mediaTypes = new ArrayList<>();
@@ -61,4 +128,95 @@ public class ApiTutorialsApplication {
         restTemplate.getMessageConverters().add(converter);
         return restTemplate;
     }
+
+    /**
+     * Connection pool of reactive client. Connections are served by few Netty event loop threads, so number of
+     * concurrent upstream calls is limited by the pool size, not by number of threads.
+     *
+     * @return fixed connection pool
+     */
+    @Bean(destroyMethod = "dispose")
+    public PoolResources reactivePoolResources() {
+        return PoolResources.fixed("pisp",
+                environment.getRequiredProperty("reactivePoolMaxConnections", Integer.class),
+                environment.getRequiredProperty("httpConnectionRequestTimeoutMs", Long.class));
+    }
+
+    /**
+     * Non-blocking client for reactive PISP calls, with the same timeouts and proxy as the blocking one.
+     */
+    @Bean
+    public WebClient pispWebClient(WebClient.Builder builder, PoolResources reactivePoolResources) {
+        int connectTimeoutMs = environment.getRequiredProperty("httpConnectTimeoutMs", Integer.class);
+        long socketTimeoutMs = environment.getRequiredProperty("httpSocketTimeoutMs", Long.class);
+        HttpHost proxy = getProxy();
+        ReactorClientHttpConnector connector = new ReactorClientHttpConnector(options -> {
+            options.poolResources(reactivePoolResources)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                    .afterNettyContextInit(context -> context.addHandlerLast(new ReadTimeoutHandler(socketTimeoutMs, TimeUnit.MILLISECONDS)));
+            if (proxy != null) {
+                options.httpProxy(address -> address.host(proxy.getHostName()).port(proxy.getPort()));
+            }
+        });
+        return builder.clientConnector(connector).build();
+    }
+
+    /**
+     * Resolves {@link PsuId} parameters of controllers from the credential cookie of the caller.
+     */
+    @Bean
+    public WebMvcConfigurer psuIdResolver(PsuCredentials psuCredentials) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+                resolvers.add(new HandlerMethodArgumentResolver() {
+                    @Override
+                    public boolean supportsParameter(MethodParameter parameter) {
+                        return parameter.hasParameterAnnotation(PsuId.class);
+                    }
+
+                    @Override
+                    public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+                                                  NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+                        Cookie cookie = WebUtils.getCookie(webRequest.getNativeRequest(HttpServletRequest.class), PsuCredentials.COOKIE_NAME);
+                        return psuCredentials.userIdOf(cookie != null ? cookie.getValue() : null);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Keeps connection alive as long as server allows (Keep-Alive header), or for default time when server does not say.
+     */
+    private ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        long defaultKeepAliveMs = environment.getRequiredProperty("httpKeepAliveMs", Long.class);
+        return (response, context) -> {
+            long keepAliveMs = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAliveMs > 0 ? keepAliveMs : defaultKeepAliveMs;
+        };
+    }
+
+    private HttpHost getProxy() {
+        String proxyUrl = environment.getRequiredProperty("proxyUrl");
+        String proxyPort = environment.getRequiredProperty("proxyPort");
+        String proxyScheme = environment.getRequiredProperty("proxyScheme");
+
+        if (!StringUtils.isEmpty(proxyUrl) && !StringUtils.isEmpty(proxyPort) && !StringUtils.isEmpty(proxyScheme)) {
+            return new HttpHost(proxyUrl, Integer.parseInt(proxyPort), proxyScheme);
+        }
+        return null;
+    }
+
+    /**
+     * Builds pool route for given base URL property, the route has to match the one used by http client (incl. proxy).
+     */
+    private HttpRoute getRoute(String baseUrlProperty) {
+        UriComponents baseUrl = UriComponentsBuilder.fromHttpUrl(environment.getRequiredProperty(baseUrlProperty)).build();
+        boolean secure = "https".equalsIgnoreCase(baseUrl.getScheme());
+        int port = baseUrl.getPort() > 0 ? baseUrl.getPort() : (secure ? 443 : 80);
+        HttpHost target = new HttpHost(baseUrl.getHost(), port, baseUrl.getScheme());
+        HttpHost proxy = getProxy();
+        return proxy != null ? new HttpRoute(target, null, proxy, secure) : new HttpRoute(target, null, secure);
+    }
 }
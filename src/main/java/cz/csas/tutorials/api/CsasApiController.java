@@ -1,29 +1,64 @@
 package cz.csas.tutorials.api;
 
+import com.fasterxml.jackson.databind.ObjectWriter;
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
 import cz.csas.tutorials.api.model.ExchangeCodeForTokenException;
 import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
 import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.RateLimitExceededException;
 import cz.csas.tutorials.api.model.StateNotFoundException;
 import cz.csas.tutorials.api.model.TokenResponse;
 import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
 import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResult;
+import cz.csas.tutorials.api.model.payments.PaymentLifecycle;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
 import cz.csas.tutorials.api.model.sign.FinishApiAuthorizationRequest;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignResponse;
 import cz.csas.tutorials.api.model.sign.StartApiAuthorizationRequest;
+import cz.csas.tutorials.api.services.AccountsCache;
+import cz.csas.tutorials.api.services.AccountsExportService;
 import cz.csas.tutorials.api.services.AuthService;
+import cz.csas.tutorials.api.services.AuthorizationPoller;
+import cz.csas.tutorials.api.services.BalanceCheckService;
+import cz.csas.tutorials.api.services.BatchPaymentService;
+import cz.csas.tutorials.api.services.IdempotencyStore;
+import cz.csas.tutorials.api.services.JsonCodec;
+import cz.csas.tutorials.api.services.PaymentLifecycleStore;
 import cz.csas.tutorials.api.services.PispService;
+import cz.csas.tutorials.api.services.PsuCredentials;
+import cz.csas.tutorials.api.services.TokenManager;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Controller class calls all PISP endpoints. All authorization calls are served in authService.
@@ -32,60 +67,108 @@ import org.springframework.web.bind.annotation.RestController;
 @Slf4j
 public class CsasApiController {
 
+    /**
+     * JSON lines (newline delimited JSON) of streamed responses.
+     */
+    private static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+
     @Value("${authorizationRedirectUri}")
     private String authorizationRedirectUri;
     @Value("${webApiKey}")
     private String webApiKey;
     @Value("${clientId}")
     private String clientId;
-    @Value("${clientSecret}")
-    private String clientSecret;
     @Value("${signedPaymentCallbackUri}")
     private String signedPaymentCallbackUri;
-    private String accessToken = null;
-    private String refreshToken = null;
+    @Value("${balanceCheckMaxSize}")
+    private int balanceCheckMaxSize;
+    @Value("${batchPaymentMaxSize}")
+    private int batchPaymentMaxSize;
+    @Value("${batchPaymentTimeoutMs}")
+    private long batchPaymentTimeoutMs;
+    @Value("${authPollMaxDurationMs}")
+    private long authPollMaxDurationMs;
+    @Value("${authPollWaitTimeoutMs}")
+    private long authPollWaitTimeoutMs;
 
     private final AuthService authService;
     private final PispService pispService;
+    private final TokenManager tokenManager;
+    private final AccountsCache accountsCache;
+    private final BatchPaymentService batchPaymentService;
+    private final BalanceCheckService balanceCheckService;
+    private final JsonCodec jsonCodec;
+    private final AuthorizationPoller authorizationPoller;
+    private final IdempotencyStore idempotencyStore;
+    private final AccountsExportService accountsExportService;
+    private final PaymentLifecycleStore paymentStore;
+    private final PsuCredentials psuCredentials;
 
     @Autowired
-    public CsasApiController(AuthService authService, PispService pispService) {
+    public CsasApiController(AuthService authService, PispService pispService, TokenManager tokenManager, AccountsCache accountsCache,
+                             BatchPaymentService batchPaymentService, BalanceCheckService balanceCheckService, JsonCodec jsonCodec,
+                             AuthorizationPoller authorizationPoller, IdempotencyStore idempotencyStore,
+                             AccountsExportService accountsExportService, PaymentLifecycleStore paymentStore,
+                             PsuCredentials psuCredentials) {
         this.authService = authService;
         this.pispService = pispService;
+        this.tokenManager = tokenManager;
+        this.accountsCache = accountsCache;
+        this.batchPaymentService = batchPaymentService;
+        this.balanceCheckService = balanceCheckService;
+        this.jsonCodec = jsonCodec;
+        this.authorizationPoller = authorizationPoller;
+        this.idempotencyStore = idempotencyStore;
+        this.accountsExportService = accountsExportService;
+        this.paymentStore = paymentStore;
+        this.psuCredentials = psuCredentials;
     }
 
     /**
-     * Builds url that is used for user authorization.
+     * Builds url that is used for user authorization. Every authorization gets a new credential, known only to the
+     * application until it is handed out at the end of the authorization - credential of the caller is never used, so
+     * a link prepared by somebody else cannot authorize another user into a credential known to its author.
      *
      * @return url for user authorization
      */
     @GetMapping("/auth/authUrl")
     public ResponseEntity getAuthorizationUrl() {
-        String authorizationUrl = authService.getAuthorizationUrl(authorizationRedirectUri, clientId);
+        String authorizationUrl = authService.getAuthorizationUrl(authorizationRedirectUri, clientId, psuCredentials.newCredential());
         return ResponseEntity.ok(authorizationUrl);
     }
 
     /**
      * CSAS IDP redirect user to this endpoint after successful authorization. Application exchange received code for for access and refresh tokens.
+     * Tokens are stored for the user whose authorization has been started with the state, the user gets the credential
+     * in a cookie - only the holder of the credential can use the tokens.
      *
-     * @param code  received from CSAS
-     * @param state received from CSAS
+     * @param code    received from CSAS
+     * @param state   received from CSAS
+     * @param request callback request
      * @return message for user
      * @throws StateNotFoundException        if received state is not the one we sent to CSAS.
      * @throws ExchangeCodeForTokenException if anything bad happens during exchanging code.
      */
     @GetMapping("/auth/callback")
     public ResponseEntity obtainTokens(@RequestParam String code,
-                                       @RequestParam String state) throws StateNotFoundException, ExchangeCodeForTokenException {
+                                       @RequestParam String state,
+                                       HttpServletRequest request) throws StateNotFoundException, ExchangeCodeForTokenException {
+        String credential = authService.getCredentialForState(state);
         TokenResponse tokens = authService.obtainTokens(code, state);
-        accessToken = tokens.getAccessToken();
-        refreshToken = tokens.getRefreshToken();
-        return ResponseEntity.ok("Code has been changed for tokens. Application is now ready to serve PISP API calls.");
+        String psuId = psuCredentials.userIdOf(credential);
+        tokenManager.storeTokens(psuId, tokens);
+        accountsCache.invalidate(psuId);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.SET_COOKIE, psuCredentials.cookie(credential, request.isSecure()))
+                .body("Code has been changed for tokens. Application is now ready to serve PISP API calls"
+                        + " with cookie " + PsuCredentials.COOKIE_NAME + ".");
     }
 
     /**
      * Calls PISP accounts endpoint /my/accounts, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
+     * Responses are cached for configured time, see {@link AccountsCache}.
      *
+     * @param psuId id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param page  number for paging (paging and sorting works only in production, not sandbox environment)
      * @param size  of page
      * @param sort  for results sorting
@@ -94,11 +177,13 @@ public class CsasApiController {
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @GetMapping("/pisp/accounts")
-    public ResponseEntity<Object> getAccounts(@RequestParam(defaultValue = "0") String page,
+    public ResponseEntity<Object> getAccounts(@PsuId String psuId,
+                                              @RequestParam(defaultValue = "0") String page,
                                               @RequestParam(defaultValue = "1") String size,
                                               @RequestParam(required = false) String sort,
                                               @RequestParam(required = false) String order) throws ExpiredAccessTokenException {
         ResponseEntity<Object> accounts = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -106,34 +191,72 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            accounts = pispService.getAccounts(accessToken, webApiKey, page, size, sort, order);
-            log.debug("Called PISP accounts endpoint. Response = " + accounts);
+            accounts = accountsCache.getAccounts(psuId, accessToken, webApiKey, page, size, sort, order);
+            log.debug("Called PISP accounts endpoint. Response = {}", PispService.describe(accounts));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            accounts = pispService.getAccounts(accessToken, webApiKey, page, size, sort, order);
-            log.debug("Called PISP accounts endpoint with new access token. Response = " + accounts);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            accounts = accountsCache.getAccounts(psuId, accessToken, webApiKey, page, size, sort, order);
+            log.debug("Called PISP accounts endpoint with new access token. Response = {}", PispService.describe(accounts));
         }
 
         return accounts;
     }
 
+    /**
+     * Exports all accounts of the user - pages of PISP accounts endpoint /my/accounts are fetched server-side, next
+     * pages in parallel ahead of writing, see {@link AccountsExportService}. Accounts are streamed as JSON lines, one
+     * account per line.
+     *
+     * @param psuId id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param sort  for results sorting
+     * @param order asc/desc
+     * @return stream of JSON lines
+     */
+    @GetMapping("/pisp/accounts/export")
+    public ResponseEntity<StreamingResponseBody> exportAccounts(@PsuId String psuId,
+                                                                @RequestParam(required = false) String sort,
+                                                                @RequestParam(required = false) String order) {
+        String accessToken = tokenManager.getAccessToken(psuId);
+        if (StringUtils.isEmpty(accessToken)) {
+            log.debug("Client has to be authorized.");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(out -> out.write("Client has to be authorized.".getBytes(StandardCharsets.UTF_8)));
+        }
+        AccountsExportService.Export export;
+        try {
+            export = accountsExportService.start(psuId, accessToken, webApiKey, sort, order);
+        } catch (ExpiredRefreshTokenException e) {
+            log.debug("Refresh token has expired. Client has to be authorized.");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(out -> out.write("Refresh token has expired. Client has to be authorized.".getBytes(StandardCharsets.UTF_8)));
+        }
+        log.debug("Started accounts export.");
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(export::writeTo);
+    }
+
     /**
      * Calls PISP balance check endpoint /my/payments/balanceCheck, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId   id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param request in JSON form
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @PostMapping("/pisp/balanceCheck")
-    public ResponseEntity<Object> balanceCheck(@RequestBody BalanceCheckRequest request) throws ExpiredAccessTokenException {
+    public ResponseEntity<Object> balanceCheck(@PsuId String psuId,
+                                               @RequestBody BalanceCheckRequest request) throws ExpiredAccessTokenException {
         ResponseEntity<Object> balanceCheck = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -141,34 +264,77 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            balanceCheck = pispService.balanceCheck(accessToken, webApiKey, request);
-            log.debug("Called PISP balance check endpoint. Response = " + balanceCheck);
+            balanceCheck = pispService.proxy(pispService.prepareBalanceCheck(accessToken, webApiKey, request), BalanceCheckResponse.class);
+            log.debug("Called PISP balance check endpoint. Response = {}", PispService.describe(balanceCheck));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            balanceCheck = pispService.balanceCheck(accessToken, webApiKey, request);
-            log.debug("Called PISP balance check endpoint with new access token. Response = " + balanceCheck);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            balanceCheck = pispService.proxy(pispService.prepareBalanceCheck(accessToken, webApiKey, request), BalanceCheckResponse.class);
+            log.debug("Called PISP balance check endpoint with new access token. Response = {}", PispService.describe(balanceCheck));
         }
 
         return balanceCheck;
     }
 
+    /**
+     * Checks balances of more payments by PISP balance check endpoint /my/payments/balanceCheck, see
+     * {@link BalanceCheckService}. Identical checks (same debtor IBAN, currency and amount) are sent to CSAS once.
+     *
+     * @param psuId    id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param requests in JSON form
+     * @return JSON array of results in order of requests, each with exchangeIdentification of its request
+     */
+    @PostMapping("/pisp/balanceChecks")
+    public CompletableFuture<ResponseEntity<Object>> balanceChecks(@PsuId String psuId,
+                                                                   @RequestBody List<BalanceCheckRequest> requests) {
+        if (requests.size() > balanceCheckMaxSize) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest()
+                    .body("Too many balance checks in the request, max. " + balanceCheckMaxSize + " allowed."));
+        }
+        String accessToken = tokenManager.getAccessToken(psuId);
+        if (StringUtils.isEmpty(accessToken)) {
+            log.debug("Client has to be authorized.");
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .body("Client has to be authorized."));
+        }
+        return balanceCheckService.balanceCheck(psuId, accessToken, webApiKey, requests)
+                .thenApply(results -> {
+                    log.debug("Called PISP balance check endpoint for {} checks. Response = {}", requests.size(), results);
+                    return ResponseEntity.ok(results);
+                });
+    }
+
     /**
      * Calls PISP create payment endpoint /my/payments, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
+     * With Idempotency-Key header the payment is created once - retries with the same key get response of the first
+     * call, see {@link IdempotencyStore}.
      *
-     * @param request in JSON form
+     * @param psuId          id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param idempotencyKey client's key of the payment, header Idempotency-Key, optional
+     * @param request        in JSON form
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @PostMapping("/pisp/createPayment")
-    public ResponseEntity<Object> createPayment(@RequestBody CreatePaymentRequest request) throws ExpiredAccessTokenException {
+    public ResponseEntity<Object> createPayment(@PsuId String psuId,
+                                                @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                                @RequestBody CreatePaymentRequest request) throws ExpiredAccessTokenException {
+        if (StringUtils.isEmpty(idempotencyKey) || psuId == null) {
+            return createPayment(psuId, request);
+        }
+        return idempotencyStore.execute(psuId, idempotencyKey, request, () -> createPayment(psuId, request));
+    }
+
+    private ResponseEntity<Object> createPayment(String psuId, CreatePaymentRequest request) throws ExpiredAccessTokenException {
         ResponseEntity<Object> createdPayment = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -176,71 +342,128 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            createdPayment = pispService.createPayment(accessToken, webApiKey, request);
-            log.debug("Called PISP create payment endpoint. Response = " + createdPayment);
+            createdPayment = pispService.proxy(pispService.prepareCreatePayment(accessToken, webApiKey, request), CreatePaymentResponse.class);
+            log.debug("Called PISP create payment endpoint. Response = {}", PispService.describe(createdPayment));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            createdPayment = pispService.createPayment(accessToken, webApiKey, request);
-            log.debug("Called PISP create payment endpoint with new access token. Response = " + createdPayment);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            createdPayment = pispService.proxy(pispService.prepareCreatePayment(accessToken, webApiKey, request), CreatePaymentResponse.class);
+            log.debug("Called PISP create payment endpoint with new access token. Response = {}", PispService.describe(createdPayment));
         }
 
+        paymentStore.recordCreatedPayment(psuId, createdPayment);
         return createdPayment;
     }
 
+    /**
+     * Creates batch of payments by PISP create payment endpoint /my/payments, see {@link BatchPaymentService}.
+     * Access token is looked up once for whole batch. Results are streamed as JSON lines, one {@link CreatePaymentResult}
+     * per payment in order of the request, each as soon as it and all previous payments are done.
+     *
+     * @param psuId    id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param requests payments in JSON form
+     * @return stream of JSON lines
+     */
+    @PostMapping("/pisp/createPayments")
+    public ResponseEntity<ResponseBodyEmitter> createPayments(@PsuId String psuId,
+                                                              @RequestBody List<CreatePaymentRequest> requests) {
+        if (requests.size() > batchPaymentMaxSize) {
+            return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN)
+                    .body(textEmitter("Too many payments in the batch, max. " + batchPaymentMaxSize + " allowed."));
+        }
+        String accessToken = tokenManager.getAccessToken(psuId);
+        if (StringUtils.isEmpty(accessToken)) {
+            log.debug("Client has to be authorized.");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(textEmitter("Client has to be authorized."));
+        }
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(batchPaymentTimeoutMs);
+        ObjectWriter writer = jsonCodec.writer(CreatePaymentResult.class);
+        BatchPaymentService.Batch batch = batchPaymentService.createPayments(psuId, accessToken, webApiKey, requests, result -> {
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+                writer.writeValue(line, result);
+                line.write('\n');
+                emitter.send(line.toByteArray(), APPLICATION_NDJSON);
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                log.debug("Batch payment result cannot be sent, client has disconnected.");
+                return false;
+            }
+        }, emitter::complete);
+        emitter.onTimeout(batch::cancel);
+        log.debug("Started PISP create payment batch of {} payments.", requests.size());
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(emitter);
+    }
+
     /**
      * Calls PISP detail of the authorization endpoint /my/payments/sign/{signId}, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId  id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param signId of payment, received in createPayment response
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @GetMapping("/pisp/apiAuth/{signId}")
-    public ResponseEntity<Object> getApiAuthorization(@PathVariable String signId) throws ExpiredAccessTokenException {
+    public ResponseEntity<Object> getApiAuthorization(@PsuId String psuId,
+                                                      @PathVariable String signId) throws ExpiredAccessTokenException {
         ResponseEntity<Object> apiAuth = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                     .header("WWW-Authenticate", "Bearer")
                     .body("Client has to be authorized.");
         }
+        ResponseEntity<Object> storedApiAuth = paymentStore.getFreshSignDetail(psuId, signId);
+        if (storedApiAuth != null) {
+            log.debug("API authorization {} served from payment store.", signId);
+            return storedApiAuth;
+        }
         try {
-            apiAuth = pispService.getApiAuthorization(accessToken, webApiKey, signId);
-            log.debug("Called PISP get API authorization endpoint. Response = " + apiAuth);
+            apiAuth = pispService.proxy(pispService.prepareGetApiAuthorization(accessToken, webApiKey, signId), SignResponse.class);
+            log.debug("Called PISP get API authorization endpoint. Response = {}", PispService.describe(apiAuth));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            apiAuth = pispService.getApiAuthorization(accessToken, webApiKey, signId);
-            log.debug("Called PISP get API authorization endpoint with new access token. Response = " + apiAuth);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            apiAuth = pispService.proxy(pispService.prepareGetApiAuthorization(accessToken, webApiKey, signId), SignResponse.class);
+            log.debug("Called PISP get API authorization endpoint with new access token. Response = {}", PispService.describe(apiAuth));
         }
 
+        paymentStore.recordSignDetail(psuId, signId, apiAuth);
         return apiAuth;
     }
 
     /**
      * Calls PISP initiation of payment authorization endpoint /my/payments/sign/{signId}, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId   id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param signId  of payment, received in createPayment response
      * @param request in JSON form with selected authorization type
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @PostMapping("/pisp/apiAuth/{signId}")
-    public ResponseEntity<Object> startApiAuthorization(@PathVariable String signId,
+    public ResponseEntity<Object> startApiAuthorization(@PsuId String psuId,
+                                                        @PathVariable String signId,
                                                         @RequestBody StartApiAuthorizationRequest request) throws ExpiredAccessTokenException {
         ResponseEntity<Object> apiAuth = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -248,36 +471,40 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            apiAuth = pispService.startApiAuthorization(accessToken, webApiKey, signId, request);
-            log.debug("Called PISP start API authorization endpoint. Response = " + apiAuth);
+            apiAuth = pispService.proxy(pispService.prepareStartApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class);
+            log.debug("Called PISP start API authorization endpoint. Response = {}", PispService.describe(apiAuth));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            apiAuth = pispService.startApiAuthorization(accessToken, webApiKey, signId, request);
-            log.debug("Called PISP start API authorization endpoint with new access token. Response = " + apiAuth);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            apiAuth = pispService.proxy(pispService.prepareStartApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class);
+            log.debug("Called PISP start API authorization endpoint with new access token. Response = {}", PispService.describe(apiAuth));
         }
 
+        paymentStore.recordSignChange(psuId, signId, apiAuth);
         return apiAuth;
     }
 
     /**
      * Calls PISP payment authorization finalization endpoint /my/payments/sign/{signId}, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId   id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param signId  of payment, received in createPayment response
      * @param request in JSON form with selected authorization type and oneTimePassword
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @PutMapping("/pisp/apiAuth/{signId}")
-    public ResponseEntity<Object> finishApiAuthorization(@PathVariable String signId,
+    public ResponseEntity<Object> finishApiAuthorization(@PsuId String psuId,
+                                                         @PathVariable String signId,
                                                          @RequestBody FinishApiAuthorizationRequest request) throws ExpiredAccessTokenException {
         ResponseEntity<Object> apiAuth = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -285,71 +512,84 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            apiAuth = pispService.finishApiAuthorization(accessToken, webApiKey, signId, request);
-            log.debug("Called PISP finish API authorization endpoint. Response = " + apiAuth);
+            apiAuth = pispService.proxy(pispService.prepareFinishApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class);
+            log.debug("Called PISP finish API authorization endpoint. Response = {}", PispService.describe(apiAuth));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            apiAuth = pispService.finishApiAuthorization(accessToken, webApiKey, signId, request);
-            log.debug("Called PISP finish API authorization endpoint with new access token. Response = " + apiAuth);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            apiAuth = pispService.proxy(pispService.prepareFinishApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class);
+            log.debug("Called PISP finish API authorization endpoint with new access token. Response = {}", PispService.describe(apiAuth));
         }
 
+        paymentStore.recordSignChange(psuId, signId, apiAuth);
         return apiAuth;
     }
 
     /**
      * Calls PISP obtain authorization URL endpoint /my/payments/federate/sign/{signId}/hash/{hash}, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId  id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param signId of payment, received in createPayment response
      * @param hash   of payment, received in createPayment response
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @GetMapping("/pisp/federatedAuth/{signId}/hash/{hash}")
-    public ResponseEntity<Object> getFederatedAuthorization(@PathVariable String signId,
+    public ResponseEntity<Object> getFederatedAuthorization(@PsuId String psuId,
+                                                            @PathVariable String signId,
                                                             @PathVariable String hash) throws ExpiredAccessTokenException {
         ResponseEntity<Object> federatedAuth = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                     .header("WWW-Authenticate", "Bearer")
                     .body("Client has to be authorized.");
         }
+        ResponseEntity<Object> storedFederatedAuth = paymentStore.getFreshFederatedAuthorization(psuId, signId, hash);
+        if (storedFederatedAuth != null) {
+            log.debug("Federated authorization {} served from payment store.", signId);
+            return storedFederatedAuth;
+        }
         try {
-            federatedAuth = pispService.getFederatedAuthorization(accessToken, webApiKey, signedPaymentCallbackUri, signId, hash);
-            log.debug("Called PISP get federated authorization endpoint. Response = " + federatedAuth);
+            federatedAuth = pispService.proxy(pispService.prepareGetFederatedAuthorization(accessToken, webApiKey, signedPaymentCallbackUri, signId, hash), FederatedAuthorizationResponse.class);
+            log.debug("Called PISP get federated authorization endpoint. Response = {}", PispService.describe(federatedAuth));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            federatedAuth = pispService.getFederatedAuthorization(accessToken, webApiKey, signedPaymentCallbackUri, signId, hash);
-            log.debug("Called PISP get federated authorization endpoint with new access token. Response = " + federatedAuth);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            federatedAuth = pispService.proxy(pispService.prepareGetFederatedAuthorization(accessToken, webApiKey, signedPaymentCallbackUri, signId, hash), FederatedAuthorizationResponse.class);
+            log.debug("Called PISP get federated authorization endpoint with new access token. Response = {}", PispService.describe(federatedAuth));
         }
 
+        paymentStore.recordFederatedAuthorization(psuId, signId, hash, federatedAuth);
         return federatedAuth;
     }
 
     /**
      * Calls PISP poll authorization state endpoint /my/payments/sign/poll/{pollId}, see docs https://developers.erstegroup.com/docs/apis/bank.csas/v1/payment-initiation
      *
+     * @param psuId  id of the user (PSU) whose tokens are used, see {@link PsuId}
      * @param pollId received in federatedAuth response
      * @return JSON response
      * @throws ExpiredAccessTokenException if new access token is rejected by CSAS IDP.
      */
     @GetMapping("/pisp/pollAuthorization/{pollId}")
-    public ResponseEntity<Object> pollAuthorizationState(@PathVariable String pollId) throws ExpiredAccessTokenException {
+    public ResponseEntity<Object> pollAuthorizationState(@PsuId String psuId,
+                                                         @PathVariable String pollId) throws ExpiredAccessTokenException {
         ResponseEntity<Object> pollAuthorizationState = null;
+        String accessToken = tokenManager.getAccessToken(psuId);
         if (StringUtils.isEmpty(accessToken)) {
             log.debug("Client has to be authorized.");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
@@ -357,21 +597,210 @@ public class CsasApiController {
                     .body("Client has to be authorized.");
         }
         try {
-            pollAuthorizationState = pispService.pollAuthorizationState(accessToken, webApiKey, pollId);
-            log.debug("Called PISP poll authorization state endpoint. Response = " + pollAuthorizationState);
+            pollAuthorizationState = pispService.proxy(pispService.preparePollAuthorizationState(accessToken, webApiKey, pollId), PollStateResponse.class);
+            log.debug("Called PISP poll authorization state endpoint. Response = {}", PispService.describe(pollAuthorizationState));
         } catch (ExpiredAccessTokenException e) {
-            log.debug("Refreshing access token with refresh token = " + refreshToken); // Do not log token in production!
+            log.debug("Access token has been rejected. Refreshing access token.");
             try {
-                accessToken = authService.getNewAccessToken(refreshToken, clientId, clientSecret);
+                accessToken = tokenManager.refreshAccessToken(psuId, accessToken);
             } catch (ExpiredRefreshTokenException e1) {
                 log.debug("Refresh token has expired. Client has to be authorized.");
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized.");
             }
-            log.debug("Obtained new access token = " + accessToken); // Do not log token in production!
-            pollAuthorizationState = pispService.pollAuthorizationState(accessToken, webApiKey, pollId);
-            log.debug("Called PISP poll authorization endpoint with new access token. Response = " + pollAuthorizationState);
+            log.debug("Obtained new access token = {}", accessToken); // Do not log token in production!
+            pollAuthorizationState = pispService.proxy(pispService.preparePollAuthorizationState(accessToken, webApiKey, pollId), PollStateResponse.class);
+            log.debug("Called PISP poll authorization endpoint with new access token. Response = {}", PispService.describe(pollAuthorizationState));
         }
 
+        paymentStore.recordPollState(psuId, pollId, pollAuthorizationState);
         return pollAuthorizationState;
     }
+
+    /**
+     * Pushes states of the authorization as server-sent events - event "state" with JSON response of PISP poll
+     * authorization state endpoint whenever the state changes, event "error" if polling fails. The stream is completed
+     * after terminal state. PISP is polled by the application, once for all clients waiting for the same authorization.
+     *
+     * @param psuId  id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param pollId received in federatedAuth response
+     * @return stream of events
+     */
+    @GetMapping("/pisp/pollAuthorization/{pollId}/events")
+    public ResponseEntity<ResponseBodyEmitter> authorizationStateEvents(@PsuId String psuId,
+                                                                        @PathVariable String pollId) {
+        if (StringUtils.isEmpty(tokenManager.getAccessToken(psuId))) {
+            log.debug("Client has to be authorized.");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(textEmitter("Client has to be authorized."));
+        }
+
+        SseEmitter emitter = new SseEmitter(authPollMaxDurationMs);
+        AuthorizationPoller.PollListener listener = new AuthorizationPoller.PollListener() {
+            @Override
+            public boolean onState(PollStateResponse response, boolean terminal) {
+                try {
+                    emitter.send(SseEmitter.event().name("state").data(response, MediaType.APPLICATION_JSON));
+                    if (terminal) {
+                        emitter.complete();
+                    }
+                    return true;
+                } catch (IOException | IllegalStateException e) {
+                    log.debug("Authorization state cannot be sent, client has disconnected.");
+                    return false;
+                }
+            }
+
+            @Override
+            public void onStopped(HttpStatus status, String error) {
+                try {
+                    emitter.send(SseEmitter.event().name("error").data(error, MediaType.TEXT_PLAIN));
+                    emitter.complete();
+                } catch (IOException | IllegalStateException e) {
+                    log.debug("Authorization polling error cannot be sent, client has disconnected.");
+                }
+            }
+        };
+        emitter.onCompletion(() -> authorizationPoller.unsubscribe(psuId, pollId, listener));
+        authorizationPoller.subscribe(psuId, webApiKey, pollId, listener);
+        return ResponseEntity.ok().body(emitter);
+    }
+
+    /**
+     * Long poll of the authorization state - responds as soon as the state differs from the state already known to
+     * the client, or after timeout. PISP is polled by the application, once for all clients waiting for the same
+     * authorization.
+     *
+     * @param psuId      id of the user (PSU) whose tokens are used, see {@link PsuId}
+     * @param pollId     received in federatedAuth response
+     * @param knownState state already known to the client, empty to get any known state
+     * @return JSON response of PISP poll authorization state endpoint, 204 if the state has not changed in time
+     */
+    @GetMapping("/pisp/pollAuthorization/{pollId}/wait")
+    public DeferredResult<ResponseEntity<Object>> waitForAuthorizationState(@PsuId String psuId,
+                                                                            @PathVariable String pollId,
+                                                                            @RequestParam(required = false) String knownState) {
+        DeferredResult<ResponseEntity<Object>> result = new DeferredResult<>(authPollWaitTimeoutMs, ResponseEntity.noContent().build());
+        if (StringUtils.isEmpty(tokenManager.getAccessToken(psuId))) {
+            log.debug("Client has to be authorized.");
+            result.setResult(ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .body("Client has to be authorized."));
+            return result;
+        }
+
+        AuthorizationPoller.PollListener listener = new AuthorizationPoller.PollListener() {
+            @Override
+            public boolean onState(PollStateResponse response, boolean terminal) {
+                String state = response != null && response.getSignInfo() != null ? response.getSignInfo().getState() : null;
+                if (terminal || StringUtils.isEmpty(knownState) || !knownState.equals(state)) {
+                    result.setResult(ResponseEntity.ok(response));
+                }
+                return !result.isSetOrExpired();
+            }
+
+            @Override
+            public void onStopped(HttpStatus status, String error) {
+                result.setResult(ResponseEntity.status(status).body(error));
+            }
+        };
+        result.onCompletion(() -> authorizationPoller.unsubscribe(psuId, pollId, listener));
+        authorizationPoller.subscribe(psuId, webApiKey, pollId, listener);
+        return result;
+    }
+
+    /**
+     * Returns known state of the payment - created payment, sign info, federated authorization and last polled state,
+     * as they have passed through this application. CSAS is not called, see {@link PaymentLifecycleStore}.
+     *
+     * @param psuId  id of the user (PSU), see {@link PsuId}
+     * @param signId of payment, received in createPayment response
+     * @return JSON response, 404 if the payment is not known
+     */
+    @GetMapping("/pisp/payments/{signId}")
+    public ResponseEntity<Object> getPayment(@PsuId String psuId,
+                                             @PathVariable String signId) {
+        if (psuId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).header("WWW-Authenticate", "Bearer").build();
+        }
+        PaymentLifecycle payment = paymentStore.get(psuId, signId);
+        return payment != null ? ResponseEntity.ok(payment) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Returns known state of the payment by pollId of its federated authorization, see {@link #getPayment(String, String)}.
+     *
+     * @param psuId  id of the user (PSU), see {@link PsuId}
+     * @param pollId received in federatedAuth response
+     * @return JSON response, 404 if the payment is not known
+     */
+    @GetMapping("/pisp/payments/poll/{pollId}")
+    public ResponseEntity<Object> getPaymentByPollId(@PsuId String psuId,
+                                                     @PathVariable String pollId) {
+        if (psuId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).header("WWW-Authenticate", "Bearer").build();
+        }
+        PaymentLifecycle payment = paymentStore.getByPollId(psuId, pollId);
+        return payment != null ? ResponseEntity.ok(payment) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Returns known payments of the user in given state, see {@link #getPayment(String, String)}.
+     *
+     * @param psuId id of the user (PSU), see {@link PsuId}
+     * @param state of authorization, e.g. OPEN
+     * @return JSON array
+     */
+    @GetMapping("/pisp/payments")
+    public ResponseEntity<List<PaymentLifecycle>> getPaymentsByState(@PsuId String psuId,
+                                                                     @RequestParam String state) {
+        if (psuId == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).header("WWW-Authenticate", "Bearer").build();
+        }
+        return ResponseEntity.ok(paymentStore.getByState(psuId, state));
+    }
+
+    /**
+     * PISP endpoint is failing and its circuit breaker is open - client is told to try later instead of waiting.
+     *
+     * @param e exception with time until next trial call
+     * @return 503 with Retry-After header
+     */
+    @ExceptionHandler(CircuitBreakerOpenException.class)
+    public ResponseEntity<Object> circuitBreakerOpen(CircuitBreakerOpenException e) {
+        log.debug(e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (e.getRetryAfterMs() + 999) / 1000)))
+                .body("CSAS API is unavailable, try again later.");
+    }
+
+    /**
+     * Outbound rate limit of CSAS API has been exceeded - client is told to try later.
+     *
+     * @param e exception
+     * @return 429 with Retry-After header
+     */
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<Object> rateLimitExceeded(RateLimitExceededException e) {
+        log.debug(e.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("Too many requests to CSAS API, try again later.");
+    }
+
+    /**
+     * @return emitter with given text, already completed
+     */
+    private static ResponseBodyEmitter textEmitter(String text) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        try {
+            emitter.send(text, MediaType.TEXT_PLAIN);
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+            return emitter;
+        }
+        emitter.complete();
+        return emitter;
+    }
 }
@@ -0,0 +1,142 @@
+package cz.csas.tutorials.api;
+
+import cz.csas.tutorials.api.model.diagnostics.BalanceCheckStats;
+import cz.csas.tutorials.api.model.diagnostics.CacheStats;
+import cz.csas.tutorials.api.model.diagnostics.CircuitBreakerStats;
+import cz.csas.tutorials.api.model.diagnostics.ConnectionPoolStats;
+import cz.csas.tutorials.api.model.diagnostics.HedgingStats;
+import cz.csas.tutorials.api.model.diagnostics.IdempotencyStats;
+import cz.csas.tutorials.api.model.diagnostics.PaymentStoreStats;
+import cz.csas.tutorials.api.model.diagnostics.RateLimiterStats;
+import cz.csas.tutorials.api.services.AccountsCache;
+import cz.csas.tutorials.api.services.BalanceCheckService;
+import cz.csas.tutorials.api.services.IdempotencyStore;
+import cz.csas.tutorials.api.services.PaymentLifecycleStore;
+import cz.csas.tutorials.api.services.RequestHedger;
+import cz.csas.tutorials.api.services.UpstreamGuard;
+import cz.csas.tutorials.api.services.UpstreamRateLimiter;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Controller exposing internal state of the application (connection pool etc.) for monitoring.
+ */
+@RestController
+public class DiagnosticsController {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final AccountsCache accountsCache;
+    private final BalanceCheckService balanceCheckService;
+    private final IdempotencyStore idempotencyStore;
+    private final UpstreamGuard upstreamGuard;
+    private final UpstreamRateLimiter rateLimiter;
+    private final RequestHedger requestHedger;
+    private final PaymentLifecycleStore paymentStore;
+
+    @Autowired
+    public DiagnosticsController(PoolingHttpClientConnectionManager connectionManager, AccountsCache accountsCache, BalanceCheckService balanceCheckService,
+                                 IdempotencyStore idempotencyStore, UpstreamGuard upstreamGuard, UpstreamRateLimiter rateLimiter,
+                                 RequestHedger requestHedger, PaymentLifecycleStore paymentStore) {
+        this.connectionManager = connectionManager;
+        this.accountsCache = accountsCache;
+        this.balanceCheckService = balanceCheckService;
+        this.idempotencyStore = idempotencyStore;
+        this.upstreamGuard = upstreamGuard;
+        this.rateLimiter = rateLimiter;
+        this.requestHedger = requestHedger;
+        this.paymentStore = paymentStore;
+    }
+
+    /**
+     * Returns statistics of upstream connection pool - total and for every route (CSAS host).
+     *
+     * @return leased, pending and available connections
+     */
+    @GetMapping("/internal/connectionPool")
+    public ResponseEntity<Map<String, ConnectionPoolStats>> getConnectionPoolStats() {
+        Map<String, ConnectionPoolStats> stats = new LinkedHashMap<>();
+        stats.put("total", ConnectionPoolStats.of(connectionManager.getTotalStats()));
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            stats.put(route.getTargetHost().toURI(), ConnectionPoolStats.of(connectionManager.getStats(route)));
+        }
+        return ResponseEntity.ok(stats);
+    }
+
+    /**
+     * Returns statistics of PISP accounts cache.
+     *
+     * @return hits, misses, revalidations and size of the cache
+     */
+    @GetMapping("/internal/accountsCache")
+    public ResponseEntity<CacheStats> getAccountsCacheStats() {
+        return ResponseEntity.ok(accountsCache.getStats());
+    }
+
+    /**
+     * Returns statistics of bulk balance checks.
+     *
+     * @return requested checks, upstream calls and de-duplicated checks
+     */
+    @GetMapping("/internal/balanceChecks")
+    public ResponseEntity<BalanceCheckStats> getBalanceCheckStats() {
+        return ResponseEntity.ok(balanceCheckService.getStats());
+    }
+
+    /**
+     * Returns statistics of idempotency store of payment creation.
+     *
+     * @return executed calls, replayed responses, rejected key reuses and size of the store
+     */
+    @GetMapping("/internal/idempotency")
+    public ResponseEntity<IdempotencyStats> getIdempotencyStats() {
+        return ResponseEntity.ok(idempotencyStore.getStats());
+    }
+
+    /**
+     * Returns state of circuit breakers of PISP endpoints.
+     *
+     * @return state, recent failure rate, calls, failures, retries and rejected calls by endpoint
+     */
+    @GetMapping("/internal/circuitBreakers")
+    public ResponseEntity<Map<String, CircuitBreakerStats>> getCircuitBreakerStats() {
+        return ResponseEntity.ok(upstreamGuard.getStats());
+    }
+
+    /**
+     * Returns statistics of outbound PISP rate limiter.
+     *
+     * @return granted, delayed and rejected calls and average wait by priority
+     */
+    @GetMapping("/internal/rateLimiter")
+    public ResponseEntity<Map<String, RateLimiterStats>> getRateLimiterStats() {
+        return ResponseEntity.ok(rateLimiter.getStats());
+    }
+
+    /**
+     * Returns statistics of hedged PISP requests.
+     *
+     * @return calls, hedges sent, hedges which won and current hedge delay by endpoint
+     */
+    @GetMapping("/internal/hedging")
+    public ResponseEntity<Map<String, HedgingStats>> getHedgingStats() {
+        return ResponseEntity.ok(requestHedger.getStats());
+    }
+
+    /**
+     * Returns statistics of payment lifecycle store.
+     *
+     * @return sign details and federated authorizations served from memory, lookups without fresh response, evicted
+     * payments and size of the store
+     */
+    @GetMapping("/internal/payments")
+    public ResponseEntity<PaymentStoreStats> getPaymentStoreStats() {
+        return ResponseEntity.ok(paymentStore.getStats());
+    }
+}
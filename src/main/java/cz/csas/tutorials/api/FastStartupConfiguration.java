@@ -0,0 +1,65 @@
+package cz.csas.tutorials.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.type.MethodMetadata;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Settings for fast startup, used by appcds build profile (see pom.xml).
+ * <p>
+ * With lazyInitialization=true beans are created when they are needed for the first time, not at startup (Spring Boot
+ * 2.0 has no such option, beans are marked lazy here). Beans whose class or {@link Bean} method is annotated by
+ * {@link Lazy} keep their setting.
+ * With exitAfterStartup=true the application stops as soon as it is started - training run which records loaded classes
+ * into AppCDS archive.
+ */
+@Configuration
+@Slf4j
+public class FastStartupConfiguration {
+
+    @Bean
+    @ConditionalOnProperty(name = "lazyInitialization", havingValue = "true")
+    public static BeanFactoryPostProcessor lazyInitialization() {
+        return beanFactory -> {
+            for (String name : beanFactory.getBeanDefinitionNames()) {
+                BeanDefinition definition = beanFactory.getBeanDefinition(name);
+                if (!isAnnotatedLazy(definition)) {
+                    definition.setLazyInit(true);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if the bean class or its {@link Bean} factory method is annotated by {@link Lazy}
+     */
+    static boolean isAnnotatedLazy(BeanDefinition definition) {
+        if (!(definition instanceof AnnotatedBeanDefinition)) {
+            return false;
+        }
+        AnnotatedBeanDefinition annotated = (AnnotatedBeanDefinition) definition;
+        MethodMetadata factoryMethod = annotated.getFactoryMethodMetadata();
+        return annotated.getMetadata().isAnnotated(Lazy.class.getName())
+                || factoryMethod != null && factoryMethod.isAnnotated(Lazy.class.getName());
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "exitAfterStartup", havingValue = "true")
+    public ApplicationListener<ApplicationReadyEvent> exitAfterStartup() {
+        return event -> {
+            log.info("Started in {} ms since JVM start, exiting.", ManagementFactory.getRuntimeMXBean().getUptime());
+            System.exit(SpringApplication.exit(event.getApplicationContext()));
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package cz.csas.tutorials.api;
+
+import cz.csas.tutorials.api.services.Http2RequestFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.util.StringUtils;
+
+/**
+ * HTTP/2 transport of RestTemplate, enabled by httpClientTransport=http2 (see {@link Http2RequestFactory}).
+ * <p>
+ * Version is negotiated by ALPN (needs JDK 8u252+): HTTP/2 connection to a host is shared by concurrent calls, up to
+ * http2MaxConcurrentStreams streams; when the host speaks HTTP/1.1 only (also any plain http host), calls use pooled
+ * HTTP/1.1 connections, limited by the same pool settings as the default transport. http2VersionPolicy=FORCE_HTTP_2
+ * uses HTTP/2 without negotiation (also over plain http), FORCE_HTTP_1 disables it. Calls through proxy use HTTP/1.1.
+ */
+@Configuration
+@ConditionalOnProperty(name = "httpClientTransport", havingValue = "http2")
+@Slf4j
+public class Http2ClientConfiguration {
+
+    private final Environment environment;
+
+    public Http2ClientConfiguration(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Bean(destroyMethod = "close")
+    public ClientHttpRequestFactory http2RequestFactory() {
+        HttpVersionPolicy versionPolicy = environment.getRequiredProperty("http2VersionPolicy", HttpVersionPolicy.class);
+        TlsStrategy tlsStrategy = ClientTlsStrategyBuilder.create().useSystemProperties().build();
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(environment.getRequiredProperty("httpConnectTimeoutMs", Long.class)))
+                .setSocketTimeout(Timeout.ofMilliseconds(environment.getRequiredProperty("httpSocketTimeoutMs", Long.class)))
+                .setValidateAfterInactivity(TimeValue.ofMilliseconds(environment.getRequiredProperty("httpPoolValidateAfterInactivityMs", Long.class)))
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(environment.getRequiredProperty("httpConnectionRequestTimeoutMs", Long.class)))
+                .setResponseTimeout(Timeout.ofMilliseconds(environment.getRequiredProperty("httpSocketTimeoutMs", Long.class)))
+                .setConnectionKeepAlive(TimeValue.ofMilliseconds(environment.getRequiredProperty("httpKeepAliveMs", Long.class)))
+                .build();
+        TimeValue evictIdle = TimeValue.ofMilliseconds(environment.getRequiredProperty("httpPoolEvictIdleMs", Long.class));
+        HttpHost proxy = getProxy();
+
+        // pooling client leases a connection to one call at a time, it only negotiates the version with a new host
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setTlsStrategy(tlsStrategy)
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(versionPolicy == HttpVersionPolicy.FORCE_HTTP_1 ? HttpVersionPolicy.FORCE_HTTP_1 : HttpVersionPolicy.NEGOTIATE)
+                        .build())
+                .setDefaultConnectionConfig(connectionConfig)
+                .setMaxConnTotal(environment.getRequiredProperty("httpPoolMaxTotal", Integer.class))
+                .setMaxConnPerRoute(environment.getRequiredProperty("httpPoolPispMaxPerRoute", Integer.class))
+                .build();
+        HttpAsyncClientBuilder poolingBuilder = HttpAsyncClients.custom()
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .disableConnectionState()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(evictIdle);
+        if (proxy != null) {
+            poolingBuilder.setProxy(proxy);
+        }
+        CloseableHttpAsyncClient poolingClient = poolingBuilder.build();
+        poolingClient.start();
+
+        // multiplexing client keeps one HTTP/2 connection per host, concurrent calls are its streams
+        CloseableHttpAsyncClient multiplexingClient = null;
+        if (proxy != null) {
+            log.warn("HTTP/2 is not used through proxy {}, upstream calls use HTTP/1.1.", proxy);
+        } else if (versionPolicy != HttpVersionPolicy.FORCE_HTTP_1) {
+            multiplexingClient = H2AsyncClientBuilder.create()
+                    .setTlsStrategy(tlsStrategy)
+                    .setH2Config(H2Config.custom()
+                            .setMaxConcurrentStreams(environment.getRequiredProperty("http2MaxConcurrentStreams", Integer.class))
+                            .build())
+                    .setDefaultConnectionConfig(connectionConfig)
+                    .setDefaultRequestConfig(requestConfig)
+                    .disableRedirectHandling()
+                    .disableAutomaticRetries()
+                    .evictIdleConnections(evictIdle)
+                    .build();
+            multiplexingClient.start();
+        }
+        log.info("Upstream calls use HTTP/2 transport, version policy {}.", versionPolicy);
+        return new Http2RequestFactory(multiplexingClient, poolingClient, versionPolicy);
+    }
+
+    private HttpHost getProxy() {
+        String proxyUrl = environment.getRequiredProperty("proxyUrl");
+        String proxyPort = environment.getRequiredProperty("proxyPort");
+        String proxyScheme = environment.getRequiredProperty("proxyScheme");
+
+        if (!StringUtils.isEmpty(proxyUrl) && !StringUtils.isEmpty(proxyPort) && !StringUtils.isEmpty(proxyScheme)) {
+            return new HttpHost(proxyScheme, proxyUrl, Integer.parseInt(proxyPort));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+package cz.csas.tutorials.api;
+
+import cz.csas.tutorials.api.services.PsuCredentials;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Controller method parameter with id of the calling user (PSU), derived from the credential cookie issued at the end
+ * of authorization (see {@link PsuCredentials}). It is null when the caller has not been authorized.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface PsuId {
+}
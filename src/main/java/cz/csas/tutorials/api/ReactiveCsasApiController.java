@@ -0,0 +1,174 @@
+package cz.csas.tutorials.api;
+
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
+import cz.csas.tutorials.api.model.sign.FinishApiAuthorizationRequest;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignResponse;
+import cz.csas.tutorials.api.model.sign.StartApiAuthorizationRequest;
+import cz.csas.tutorials.api.services.PispService;
+import cz.csas.tutorials.api.services.ReactivePispService;
+import cz.csas.tutorials.api.services.TokenManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.function.Function;
+
+/**
+ * Non-blocking variant of PISP endpoints of {@link CsasApiController}, see there for docs. Server thread is released
+ * while waiting for CSAS, the response is written when upstream call completes. Accounts responses are not cached here.
+ */
+@RestController
+@RequestMapping("/reactive")
+@Slf4j
+public class ReactiveCsasApiController {
+
+    @Value("${webApiKey}")
+    private String webApiKey;
+    @Value("${signedPaymentCallbackUri}")
+    private String signedPaymentCallbackUri;
+
+    private final PispService pispService;
+    private final ReactivePispService reactivePispService;
+    private final TokenManager tokenManager;
+
+    @Autowired
+    public ReactiveCsasApiController(PispService pispService, ReactivePispService reactivePispService, TokenManager tokenManager) {
+        this.pispService = pispService;
+        this.reactivePispService = reactivePispService;
+        this.tokenManager = tokenManager;
+    }
+
+    @GetMapping("/pisp/accounts")
+    public Mono<ResponseEntity<Object>> getAccounts(@PsuId String psuId,
+                                                    @RequestParam(defaultValue = "0") String page,
+                                                    @RequestParam(defaultValue = "1") String size,
+                                                    @RequestParam(required = false) String sort,
+                                                    @RequestParam(required = false) String order) {
+        return callPisp(psuId, "accounts", accessToken -> reactivePispService.proxy(
+                pispService.prepareGetAccounts(accessToken, webApiKey, page, size, sort, order, null), AccountsResponse.class));
+    }
+
+    @PostMapping("/pisp/balanceCheck")
+    public Mono<ResponseEntity<Object>> balanceCheck(@PsuId String psuId,
+                                                     @RequestBody BalanceCheckRequest request) {
+        return callPisp(psuId, "balance check", accessToken -> reactivePispService.proxy(
+                pispService.prepareBalanceCheck(accessToken, webApiKey, request), BalanceCheckResponse.class));
+    }
+
+    @PostMapping("/pisp/createPayment")
+    public Mono<ResponseEntity<Object>> createPayment(@PsuId String psuId,
+                                                      @RequestBody CreatePaymentRequest request) {
+        return callPisp(psuId, "create payment", accessToken -> reactivePispService.proxy(
+                pispService.prepareCreatePayment(accessToken, webApiKey, request), CreatePaymentResponse.class));
+    }
+
+    @GetMapping("/pisp/apiAuth/{signId}")
+    public Mono<ResponseEntity<Object>> getApiAuthorization(@PsuId String psuId,
+                                                            @PathVariable String signId) {
+        return callPisp(psuId, "get API authorization", accessToken -> reactivePispService.proxy(
+                pispService.prepareGetApiAuthorization(accessToken, webApiKey, signId), SignResponse.class));
+    }
+
+    @PostMapping("/pisp/apiAuth/{signId}")
+    public Mono<ResponseEntity<Object>> startApiAuthorization(@PsuId String psuId,
+                                                              @PathVariable String signId,
+                                                              @RequestBody StartApiAuthorizationRequest request) {
+        return callPisp(psuId, "start API authorization", accessToken -> reactivePispService.proxy(
+                pispService.prepareStartApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class));
+    }
+
+    @PutMapping("/pisp/apiAuth/{signId}")
+    public Mono<ResponseEntity<Object>> finishApiAuthorization(@PsuId String psuId,
+                                                               @PathVariable String signId,
+                                                               @RequestBody FinishApiAuthorizationRequest request) {
+        return callPisp(psuId, "finish API authorization", accessToken -> reactivePispService.proxy(
+                pispService.prepareFinishApiAuthorization(accessToken, webApiKey, signId, request), SignResponse.class));
+    }
+
+    @GetMapping("/pisp/federatedAuth/{signId}/hash/{hash}")
+    public Mono<ResponseEntity<Object>> getFederatedAuthorization(@PsuId String psuId,
+                                                                  @PathVariable String signId,
+                                                                  @PathVariable String hash) {
+        return callPisp(psuId, "get federated authorization", accessToken -> reactivePispService.proxy(
+                pispService.prepareGetFederatedAuthorization(accessToken, webApiKey, signedPaymentCallbackUri, signId, hash), FederatedAuthorizationResponse.class));
+    }
+
+    @GetMapping("/pisp/pollAuthorization/{pollId}")
+    public Mono<ResponseEntity<Object>> pollAuthorizationState(@PsuId String psuId,
+                                                               @PathVariable String pollId) {
+        return callPisp(psuId, "poll authorization state", accessToken -> reactivePispService.proxy(
+                pispService.preparePollAuthorizationState(accessToken, webApiKey, pollId), PollStateResponse.class));
+    }
+
+    /**
+     * Calls PISP with current access token of the user. When CSAS rejects the token, it is refreshed and the call is
+     * repeated once. Refresh calls blocking CSAS IDP client, so it runs on elastic scheduler, not on event loop.
+     * Failures are answered like in {@link CsasApiController}: error response of CSAS is relayed, open circuit breaker
+     * and exceeded rate limit tell the client to try later.
+     */
+    private Mono<ResponseEntity<Object>> callPisp(String psuId, String endpointName, Function<String, Mono<ResponseEntity<Object>>> call) {
+        String accessToken = tokenManager.getAccessToken(psuId);
+        if (StringUtils.isEmpty(accessToken)) {
+            log.debug("Client has to be authorized.");
+            return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .header("WWW-Authenticate", "Bearer")
+                    .body("Client has to be authorized."));
+        }
+        return call.apply(accessToken)
+                .doOnNext(response -> log.debug("Called PISP {} endpoint. Response = {}", endpointName, response))
+                .onErrorResume(ExpiredAccessTokenException.class, e -> {
+                    log.debug("Access token has been rejected. Refreshing access token.");
+                    return Mono.fromCallable(() -> tokenManager.refreshAccessToken(psuId, accessToken))
+                            .subscribeOn(Schedulers.elastic())
+                            .flatMap(newAccessToken -> call.apply(newAccessToken)
+                                    .doOnNext(response -> log.debug("Called PISP {} endpoint with new access token. Response = {}", endpointName, response)))
+                            .onErrorResume(ExpiredRefreshTokenException.class, e1 -> {
+                                log.debug("Refresh token has expired. Client has to be authorized.");
+                                return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Refresh token has expired. Client has to be authorized."));
+                            });
+                })
+                .onErrorResume(WebClientResponseException.class, e -> {
+                    log.debug("Called PISP {} endpoint. Error response = {}", endpointName, e.getRawStatusCode());
+                    return Mono.just(ResponseEntity.status(e.getRawStatusCode())
+                            .headers(e.getHeaders())
+                            .body(e.getResponseBodyAsByteArray()));
+                })
+                .onErrorResume(CircuitBreakerOpenException.class, e -> {
+                    log.debug(e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (e.getRetryAfterMs() + 999) / 1000)))
+                            .body("CSAS API is unavailable, try again later."));
+                })
+                .onErrorResume(RateLimitExceededException.class, e -> {
+                    log.debug(e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                            .header(HttpHeaders.RETRY_AFTER, "1")
+                            .body("Too many requests to CSAS API, try again later."));
+                });
+    }
+}
@@ -0,0 +1,87 @@
+package cz.csas.tutorials.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs Tomcat request handling on virtual threads. Upstream calls by RestTemplate run on the request thread, so they are
+ * on virtual threads too - a request waiting for CSAS costs a few KB of heap, not a platform thread.
+ * <p>
+ * Tomcat 8.5 processes every request inside synchronized block, which pins virtual thread to its carrier on JDK older
+ * than 24 (JEP 491) - all requests would then share few carrier threads. Virtual threads are therefore used on JDK 24+
+ * only (e.g. JDK 25 LTS), older JDKs keep platform threads. The application is still built for Java 8, virtual thread
+ * executor is obtained reflectively at runtime.
+ */
+@Configuration
+@ConditionalOnProperty(name = "virtualThreads", havingValue = "true")
+@Slf4j
+public class VirtualThreadsConfiguration {
+
+    private static final int MIN_JAVA_VERSION = 24;
+
+    /**
+     * Executor of Tomcat requests, shut down with the application context (Tomcat does not shut down external executor).
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Conditional(VirtualThreadsSupported.class)
+    public ExecutorService virtualThreadExecutor() {
+        return newVirtualThreadPerTaskExecutor();
+    }
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadsCustomizer(
+            @Qualifier("virtualThreadExecutor") ObjectProvider<ExecutorService> virtualThreadExecutor) {
+        return factory -> {
+            ExecutorService executor = virtualThreadExecutor.getIfAvailable();
+            if (executor == null) {
+                log.warn("Virtual threads require JDK {}+ (running on {}), Tomcat requests are handled by platform threads.", MIN_JAVA_VERSION, getJavaVersion());
+                return;
+            }
+            factory.addConnectorCustomizers(connector -> {
+                ProtocolHandler protocolHandler = connector.getProtocolHandler();
+                if (protocolHandler instanceof AbstractProtocol) {
+                    ((AbstractProtocol<?>) protocolHandler).setExecutor(executor);
+                    log.info("Tomcat requests are handled by virtual threads.");
+                }
+            });
+        };
+    }
+
+    /**
+     * @return feature version of running JDK, e.g. 8 for "1.8", 25 for "25"
+     */
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    static class VirtualThreadsSupported implements Condition {
+        @Override
+        public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+            return getJavaVersion() >= MIN_JAVA_VERSION;
+        }
+    }
+}
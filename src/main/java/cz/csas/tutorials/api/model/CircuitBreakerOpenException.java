@@ -0,0 +1,20 @@
+package cz.csas.tutorials.api.model;
+
+/**
+ * Thrown when PISP endpoint is not called because its circuit breaker is open (CSAS is failing).
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+    private final long retryAfterMs;
+
+    public CircuitBreakerOpenException(String message, long retryAfterMs) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * @return time after which the breaker lets a trial call through
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
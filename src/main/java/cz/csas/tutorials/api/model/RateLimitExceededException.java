@@ -0,0 +1,10 @@
+package cz.csas.tutorials.api.model;
+
+/**
+ * Thrown when PISP call is not sent because outbound rate limit of the webapi key has been exceeded.
+ */
+public class RateLimitExceededException extends RuntimeException {
+    public RateLimitExceededException(String message) {
+        super(message);
+    }
+}
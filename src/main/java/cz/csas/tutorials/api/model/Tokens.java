@@ -0,0 +1,31 @@
+package cz.csas.tutorials.api.model;
+
+import lombok.Value;
+
+/**
+ * Immutable snapshot of user's tokens, always replaced as a whole so access token, refresh token and expiration
+ * are consistent with each other.
+ */
+@Value
+public class Tokens {
+    String accessToken;
+    String refreshToken;
+    /**
+     * epoch millis when access token expires, 0 if unknown
+     */
+    long accessTokenExpiresAt;
+
+    /**
+     * Creates tokens from /token endpoint response. Refresh token is kept from previous tokens when the response
+     * does not contain new one.
+     *
+     * @param response from /token endpoint
+     * @param previous tokens being replaced, may be null
+     * @return new tokens
+     */
+    public static Tokens from(TokenResponse response, Tokens previous) {
+        String refreshToken = response.getRefreshToken() != null || previous == null ? response.getRefreshToken() : previous.getRefreshToken();
+        long expiresAt = response.getExpiresIn() != null ? System.currentTimeMillis() + response.getExpiresIn() * 1000 : 0;
+        return new Tokens(response.getAccessToken(), refreshToken, expiresAt);
+    }
+}
@@ -0,0 +1,31 @@
+package cz.csas.tutorials.api.model;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base of typed models of CSAS responses. Properties not mapped to fields are kept (and written back to the client),
+ * so no data from CSAS is lost. The map is created only when such property appears.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public abstract class UpstreamModel {
+
+    private Map<String, Object> otherProperties;
+
+    @JsonAnySetter
+    public void setOtherProperty(String name, Object value) {
+        if (otherProperties == null) {
+            otherProperties = new LinkedHashMap<>();
+        }
+        otherProperties.put(name, value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, Object> getOtherProperties() {
+        return otherProperties;
+    }
+}
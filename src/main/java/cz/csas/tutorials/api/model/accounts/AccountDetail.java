@@ -0,0 +1,16 @@
+package cz.csas.tutorials.api.model.accounts;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class AccountDetail extends UpstreamModel {
+    private String id;
+    private AccountIdentification identification;
+    private String currency;
+    private Servicer servicer;
+    private String nameI18N;
+    private String productI18N;
+}
@@ -0,0 +1,12 @@
+package cz.csas.tutorials.api.model.accounts;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class AccountIdentification extends UpstreamModel {
+    private String iban;
+    private String otherAccountNumber;
+}
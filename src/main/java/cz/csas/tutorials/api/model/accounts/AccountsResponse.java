@@ -0,0 +1,20 @@
+package cz.csas.tutorials.api.model.accounts;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.List;
+
+/**
+ * DTO object to hold response from /my/accounts endpoint
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class AccountsResponse extends UpstreamModel {
+    private Integer pageNumber;
+    private Integer pageCount;
+    private Integer pageSize;
+    private Integer nextPage;
+    private List<AccountDetail> accounts;
+}
@@ -0,0 +1,13 @@
+package cz.csas.tutorials.api.model.accounts;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class Servicer extends UpstreamModel {
+    private String bankCode;
+    private String countryCode;
+    private String bic;
+}
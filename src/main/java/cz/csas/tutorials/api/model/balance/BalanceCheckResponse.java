@@ -0,0 +1,15 @@
+package cz.csas.tutorials.api.model.balance;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * DTO object to hold response from /my/payments/balanceCheck endpoint
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class BalanceCheckResponse extends UpstreamModel {
+    private Long exchangeIdentification;
+    private Boolean fundsAvailable;
+}
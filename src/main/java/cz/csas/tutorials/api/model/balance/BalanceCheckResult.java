@@ -0,0 +1,24 @@
+package cz.csas.tutorials.api.model.balance;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with result of one balance check of bulk balance check - funds availability, or error.
+ */
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BalanceCheckResult {
+    /**
+     * Exchange identification of the request this result belongs to
+     */
+    private Long exchangeIdentification;
+    /**
+     * HTTP status of PISP balance check call, 0 if the call has failed without response
+     */
+    private int status;
+    private Boolean fundsAvailable;
+    private String error;
+}
@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of bulk balance checks - requested checks and how many of them were served without
+ * own upstream call.
+ */
+@Data
+@AllArgsConstructor
+public class BalanceCheckStats {
+    private long checks;
+    private long upstreamCalls;
+    private long batchDuplicates;
+    private long inFlightDuplicates;
+}
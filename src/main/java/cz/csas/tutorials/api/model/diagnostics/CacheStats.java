@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of response cache.
+ */
+@Data
+@AllArgsConstructor
+public class CacheStats {
+    private long hits;
+    private long misses;
+    private long revalidations;
+    private long evictions;
+    private long size;
+}
@@ -0,0 +1,19 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with state of circuit breaker of one PISP endpoint - state, failure rate of recent calls and counters
+ * since start.
+ */
+@Data
+@AllArgsConstructor
+public class CircuitBreakerStats {
+    private String state;
+    private int failureRate;
+    private long calls;
+    private long failures;
+    private long retries;
+    private long rejected;
+}
@@ -0,0 +1,21 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * DTO object with state of upstream connection pool (whole pool or one route).
+ */
+@Data
+@AllArgsConstructor
+public class ConnectionPoolStats {
+    private int leased;
+    private int pending;
+    private int available;
+    private int max;
+
+    public static ConnectionPoolStats of(PoolStats stats) {
+        return new ConnectionPoolStats(stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+    }
+}
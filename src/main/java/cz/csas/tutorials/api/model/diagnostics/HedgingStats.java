@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of request hedging of one PISP endpoint - calls, hedged requests sent, hedged requests
+ * which returned first, and current hedge delay.
+ */
+@Data
+@AllArgsConstructor
+public class HedgingStats {
+    private long calls;
+    private long hedges;
+    private long hedgeWins;
+    private long delayMs;
+}
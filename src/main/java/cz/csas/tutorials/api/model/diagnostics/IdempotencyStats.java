@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of idempotency store - calls sent to CSAS and repeated calls served without them.
+ */
+@Data
+@AllArgsConstructor
+public class IdempotencyStats {
+    private long calls;
+    private long replays;
+    private long inFlightJoins;
+    private long conflicts;
+    private long size;
+}
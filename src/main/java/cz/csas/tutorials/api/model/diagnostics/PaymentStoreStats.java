@@ -0,0 +1,16 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of payment lifecycle store - sign details and federated URLs served from memory.
+ */
+@Data
+@AllArgsConstructor
+public class PaymentStoreStats {
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long size;
+}
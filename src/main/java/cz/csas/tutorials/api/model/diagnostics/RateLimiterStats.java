@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.diagnostics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with statistics of outbound rate limiter for one priority - calls granted immediately, after waiting
+ * in the queue, and rejected.
+ */
+@Data
+@AllArgsConstructor
+public class RateLimiterStats {
+    private long granted;
+    private long delayed;
+    private long rejected;
+    private long averageWaitMs;
+}
@@ -0,0 +1,22 @@
+package cz.csas.tutorials.api.model.payments;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import cz.csas.tutorials.api.model.sign.SignInfo;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.time.LocalDate;
+
+/**
+ * DTO object to hold response from /my/payments endpoint - created payment with its sign info
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class CreatePaymentResponse extends UpstreamModel {
+    private PaymentTypeInfo paymentTypeInformation;
+    private PaymentAmount amount;
+    private LocalDate requestedExecutionDate;
+    private PaymentAccount debtorAccount;
+    private PaymentAccount creditorAccount;
+    private SignInfo signInfo;
+}
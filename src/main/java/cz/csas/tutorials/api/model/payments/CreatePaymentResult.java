@@ -0,0 +1,25 @@
+package cz.csas.tutorials.api.model.payments;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with result of one payment of batch payment creation - signId and hash of created payment, or error.
+ */
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CreatePaymentResult {
+    /**
+     * Index of the payment in the batch request
+     */
+    private int index;
+    /**
+     * HTTP status of PISP create payment call, 0 if the call has not been made
+     */
+    private int status;
+    private String signId;
+    private String hash;
+    private String error;
+}
@@ -0,0 +1,15 @@
+package cz.csas.tutorials.api.model.payments;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import cz.csas.tutorials.api.model.accounts.AccountIdentification;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * Debtor or creditor account of created payment, response counterpart of {@link Account}
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class PaymentAccount extends UpstreamModel {
+    private AccountIdentification identification;
+}
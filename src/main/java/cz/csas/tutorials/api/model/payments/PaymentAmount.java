@@ -0,0 +1,14 @@
+package cz.csas.tutorials.api.model.payments;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * Amount of created payment, response counterpart of {@link Amount}
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class PaymentAmount extends UpstreamModel {
+    private PaymentInstructedAmount instructedAmount;
+}
@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.payments;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.math.BigDecimal;
+
+/**
+ * Response counterpart of {@link InstructedAmount}
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class PaymentInstructedAmount extends UpstreamModel {
+    private String currency;
+    private BigDecimal value;
+}
@@ -0,0 +1,26 @@
+package cz.csas.tutorials.api.model.payments;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * DTO object with known state of payment - created payment, its sign info, federated authorization and last polled state.
+ * Fields which are not known yet are null.
+ */
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PaymentLifecycle {
+    private String signId;
+    private String hash;
+    private String state;
+    private String pollId;
+    private String signingUrl;
+    private CreatePaymentResponse payment;
+    /**
+     * Time of the first and of the last update of the payment, epoch ms
+     */
+    private long createdAt;
+    private long updatedAt;
+}
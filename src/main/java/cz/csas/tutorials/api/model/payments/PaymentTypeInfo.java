@@ -0,0 +1,15 @@
+package cz.csas.tutorials.api.model.payments;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * Payment type of created payment, response counterpart of {@link PaymentTypeInformation}. Priority is kept as it
+ * comes from CSAS, a value unknown to {@link InstructionPriority} does not fail the response.
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class PaymentTypeInfo extends UpstreamModel {
+    private String instructionPriority;
+}
@@ -0,0 +1,16 @@
+package cz.csas.tutorials.api.model.sign;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * DTO object to hold response from /my/payments/federate/sign/{signId}/hash/{hash} endpoint
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class FederatedAuthorizationResponse extends UpstreamModel {
+    private SignInfo signInfo;
+    private String signingUrl;
+    private String pollId;
+}
@@ -0,0 +1,14 @@
+package cz.csas.tutorials.api.model.sign;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * DTO object to hold response from /my/payments/sign/poll/{pollId} endpoint
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class PollStateResponse extends UpstreamModel {
+    private SignInfo signInfo;
+}
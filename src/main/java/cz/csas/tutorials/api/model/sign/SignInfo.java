@@ -0,0 +1,16 @@
+package cz.csas.tutorials.api.model.sign;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * State of payment authorization, part of payment and sign responses
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class SignInfo extends UpstreamModel {
+    private String state;
+    private String signId;
+    private String hash;
+}
@@ -0,0 +1,17 @@
+package cz.csas.tutorials.api.model.sign;
+
+import cz.csas.tutorials.api.model.UpstreamModel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.List;
+
+/**
+ * DTO object to hold response from /my/payments/sign/{signId} endpoint (detail, start and finish of authorization)
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class SignResponse extends UpstreamModel {
+    private SignInfo signInfo;
+    private List<List<String>> scenarios;
+}
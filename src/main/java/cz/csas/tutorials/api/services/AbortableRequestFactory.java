@@ -0,0 +1,81 @@
+package cz.csas.tutorials.api.services;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * Request factory which lets a running call be cancelled from another thread. Before the call, the calling thread
+ * binds {@link AbortHandle}; request created by the factory in that thread is registered to the handle and
+ * {@link AbortHandle#abort()} aborts it - blocked thread fails immediately and the connection is closed.
+ * The handle is used also by {@link Http2RequestFactory}, there abort cancels the stream of the request only.
+ */
+public class AbortableRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+    private static final ThreadLocal<AbortHandle> HANDLE = new ThreadLocal<>();
+
+    public AbortableRequestFactory(HttpClient httpClient) {
+        super(httpClient);
+    }
+
+    /**
+     * Requests created by the current thread will be registered to the handle, until {@link #unbind()}.
+     */
+    public static void bind(AbortHandle handle) {
+        HANDLE.set(handle);
+    }
+
+    public static void unbind() {
+        HANDLE.remove();
+    }
+
+    /**
+     * @return handle bound to the current thread, null if there is none
+     */
+    static AbortHandle currentHandle() {
+        return HANDLE.get();
+    }
+
+    @Override
+    protected void postProcessHttpRequest(HttpUriRequest request) {
+        AbortHandle handle = HANDLE.get();
+        if (handle != null) {
+            handle.register(request::abort);
+        }
+    }
+
+    /**
+     * Handle of the request of one call.
+     */
+    public static class AbortHandle {
+        private Runnable abortAction;
+        private boolean aborted;
+
+        /**
+         * Aborts the request; if it has not been created yet, it is aborted as soon as it is.
+         */
+        public synchronized void abort() {
+            aborted = true;
+            if (abortAction != null) {
+                abortAction.run();
+            }
+        }
+
+        /**
+         * @return true if the request has been aborted, e.g. its failure is not a failure of the upstream
+         */
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * @param abortAction aborts the request created for this handle
+         */
+        synchronized void register(Runnable abortAction) {
+            this.abortAction = abortAction;
+            if (aborted) {
+                abortAction.run();
+            }
+        }
+    }
+}
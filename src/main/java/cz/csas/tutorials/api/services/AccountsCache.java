@@ -0,0 +1,129 @@
+package cz.csas.tutorials.api.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import cz.csas.tutorials.api.model.diagnostics.CacheStats;
+import lombok.Value;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of PISP accounts responses. Account lists rarely change, so the response is served from memory for configured
+ * time (TTL). After TTL the response is revalidated by conditional request (If-None-Match) when CSAS sent ETag,
+ * otherwise it is fetched again. Cache is bounded by number of entries (Caffeine W-TinyLFU eviction).
+ */
+@Service
+public class AccountsCache {
+
+    private final PispService pispService;
+    private final boolean enabled;
+    private final long ttlMs;
+    private final Cache<AccountsKey, CachedAccounts> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    @Autowired
+    public AccountsCache(PispService pispService, Environment environment) {
+        this.pispService = pispService;
+        this.enabled = environment.getRequiredProperty("accountsCacheEnabled", Boolean.class);
+        this.ttlMs = environment.getRequiredProperty("accountsCacheTtlMs", Long.class);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(environment.getRequiredProperty("accountsCacheMaxEntries", Long.class))
+                // stale entries are kept longer than TTL, to be revalidated by ETag
+                .expireAfterWrite(ttlMs + environment.getRequiredProperty("accountsCacheRevalidateWindowMs", Long.class), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns accounts of the user from cache, or calls PISP accounts API when not cached or stale.
+     *
+     * @param userId    id of the user, cache key together with paging parameters
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param page      number for paging
+     * @param size      of page
+     * @param sort      for results sorting
+     * @param order     asc/desc
+     * @return ResponseEntity with accounts in body
+     * @throws ExpiredAccessTokenException if access token is expired
+     */
+    public ResponseEntity<Object> getAccounts(String userId, String token, String webApiKey, String page, String size, String sort, String order) throws ExpiredAccessTokenException {
+        if (!enabled) {
+            return pispService.proxy(pispService.prepareGetAccounts(token, webApiKey, page, size, sort, order, null), AccountsResponse.class);
+        }
+        AccountsKey key = new AccountsKey(userId, page, size, sort, order);
+        CachedAccounts cached = cache.getIfPresent(key);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.getFetchedAt() < ttlMs) {
+            hits.increment();
+            return toResponse(cached);
+        }
+
+        String ifNoneMatch = cached != null ? cached.getEtag() : null;
+        ResponseEntity<Object> response = pispService.proxy(pispService.prepareGetAccounts(token, webApiKey, page, size, sort, order, ifNoneMatch), AccountsResponse.class);
+        if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && cached != null) {
+            revalidations.increment();
+            CachedAccounts revalidated = new CachedAccounts(cached.getBody(), cached.getEtag(), now);
+            cache.put(key, revalidated);
+            return toResponse(revalidated);
+        }
+        misses.increment();
+        if (response.getStatusCode().is2xxSuccessful()) {
+            cache.put(key, new CachedAccounts(response.getBody(), response.getHeaders().getETag(), now));
+        }
+        return response;
+    }
+
+    /**
+     * Forgets all cached responses of the user, e.g. after new authorization.
+     *
+     * @param userId id of the user
+     */
+    public void invalidate(String userId) {
+        cache.asMap().keySet().removeIf(key -> key.getUserId().equals(userId));
+    }
+
+    /**
+     * @return hits, misses, revalidations and size of the cache
+     */
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), revalidations.sum(), cache.stats().evictionCount(), cache.estimatedSize());
+    }
+
+    private static ResponseEntity<Object> toResponse(CachedAccounts cached) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+        if (cached.getEtag() != null) {
+            headers.setETag(cached.getEtag());
+        }
+        return new ResponseEntity<>(cached.getBody(), headers, HttpStatus.OK);
+    }
+
+    @Value
+    private static class AccountsKey {
+        String userId;
+        String page;
+        String size;
+        String sort;
+        String order;
+    }
+
+    @Value
+    private static class CachedAccounts {
+        Object body;
+        String etag;
+        long fetchedAt;
+    }
+}
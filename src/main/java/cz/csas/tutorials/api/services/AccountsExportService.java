@@ -0,0 +1,178 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.accounts.AccountDetail;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Export of all accounts of the user. Pages of PISP accounts API are fetched server-side - first page synchronously
+ * (to learn page count and to report authorization errors with proper status), next pages ahead of writing by a
+ * bounded prefetch window. Accounts are written as JSON lines page by page, so memory of one export is bounded by the
+ * prefetch window, not by number of accounts.
+ */
+@Service
+@Slf4j
+public class AccountsExportService {
+
+    private final PispService pispService;
+    private final TokenManager tokenManager;
+    private final JsonCodec jsonCodec;
+    private final ExecutorService executor;
+    private final String pageSize;
+    private final int prefetch;
+
+    @Autowired
+    public AccountsExportService(PispService pispService, TokenManager tokenManager, JsonCodec jsonCodec, Environment environment) {
+        this.pispService = pispService;
+        this.tokenManager = tokenManager;
+        this.jsonCodec = jsonCodec;
+        this.pageSize = environment.getRequiredProperty("accountsExportPageSize");
+        this.prefetch = environment.getRequiredProperty("accountsExportPrefetch", Integer.class);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(environment.getRequiredProperty("accountsExportThreads", Integer.class), runnable -> {
+            Thread thread = new Thread(runnable, "accounts-export-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fetches the first page of accounts.
+     *
+     * @param userId      id of the user, for access token refresh
+     * @param accessToken current access token of the user
+     * @param webApiKey   webapi key to connect to webapi
+     * @param sort        for results sorting
+     * @param order       asc/desc
+     * @return export, to be written to the client
+     * @throws ExpiredRefreshTokenException if access token cannot be refreshed
+     */
+    public Export start(String userId, String accessToken, String webApiKey, String sort, String order) throws ExpiredRefreshTokenException {
+        Export export = new Export(userId, accessToken, webApiKey, sort, order);
+        export.firstPage = export.fetchPage(0);
+        return export;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * One running export.
+     */
+    public class Export {
+        private final String userId;
+        private final AtomicReference<String> accessToken;
+        private final String webApiKey;
+        private final String sort;
+        private final String order;
+        private AccountsResponse firstPage;
+
+        private Export(String userId, String accessToken, String webApiKey, String sort, String order) {
+            this.userId = userId;
+            this.accessToken = new AtomicReference<>(accessToken);
+            this.webApiKey = webApiKey;
+            this.sort = sort;
+            this.order = order;
+        }
+
+        /**
+         * Writes all accounts as JSON lines. When a page cannot be fetched, the exception is thrown and the response is
+         * left incomplete, so the client recognizes failed export.
+         *
+         * @param out response stream
+         * @throws IOException if the client has disconnected
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            ObjectWriter writer = jsonCodec.writer(AccountDetail.class);
+            Deque<CompletableFuture<AccountsResponse>> prefetched = new ArrayDeque<>();
+            Integer pageCount = firstPage.getPageCount();
+            int pageNumber = 0;
+            int nextPage = 1;
+            AccountsResponse page = firstPage;
+            firstPage = null;
+            try {
+                while (page != null) {
+                    // keep the prefetch window full before writing the current page
+                    while (pageCount != null && nextPage < pageCount && prefetched.size() < prefetch) {
+                        int prefetchedPage = nextPage++;
+                        prefetched.add(CompletableFuture.supplyAsync(() -> fetchPageAsync(prefetchedPage), executor));
+                    }
+                    write(out, writer, page);
+                    if (!prefetched.isEmpty()) {
+                        page = prefetched.poll().join();
+                    } else if (pageCount == null && page.getNextPage() != null && page.getNextPage() > pageNumber) {
+                        // page count unknown - follow next page links one by one
+                        pageNumber = page.getNextPage();
+                        page = fetchPageAsync(pageNumber);
+                    } else {
+                        page = null;
+                    }
+                }
+            } catch (CompletionException e) {
+                log.warn("Accounts export of user {} failed.", userId, e.getCause());
+                throw e;
+            } finally {
+                prefetched.forEach(future -> future.cancel(false));
+            }
+        }
+
+        private void write(OutputStream out, ObjectWriter writer, AccountsResponse page) throws IOException {
+            if (page.getAccounts() == null) {
+                return;
+            }
+            for (AccountDetail account : page.getAccounts()) {
+                out.write(writer.writeValueAsBytes(account));
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        private AccountsResponse fetchPageAsync(int page) {
+            try {
+                return fetchPage(page);
+            } catch (ExpiredRefreshTokenException e) {
+                throw new CompletionException(e);
+            }
+        }
+
+        private AccountsResponse fetchPage(int page) throws ExpiredRefreshTokenException {
+            String token = accessToken.get();
+            try {
+                try {
+                    return body(pispService.getAccounts(token, webApiKey, String.valueOf(page), pageSize, sort, order).getBody());
+                } catch (ExpiredAccessTokenException e) {
+                    log.debug("Access token has been rejected. Refreshing access token.");
+                    token = tokenManager.refreshAccessToken(userId, token);
+                    accessToken.set(token);
+                    return body(pispService.getAccounts(token, webApiKey, String.valueOf(page), pageSize, sort, order).getBody());
+                }
+            } catch (ExpiredAccessTokenException e) {
+                throw new ExpiredRefreshTokenException("New access token has been rejected.");
+            }
+        }
+
+        private AccountsResponse body(AccountsResponse response) {
+            return response != null ? response : new AccountsResponse();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package cz.csas.tutorials.api.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import cz.csas.tutorials.api.model.ExchangeCodeForTokenException;
 import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
 import cz.csas.tutorials.api.model.StateNotFoundException;
@@ -19,27 +21,43 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 @Service
 @Slf4j
 public class AuthService {
-    private final String state = "someValue";
+    /**
+     * States sent to CSAS in authorization URL, waiting for callback, mapped to credential of the user being authorized.
+     */
+    private final Cache<String, String> pendingStates;
     private final RestTemplate restTemplate;
     private final Environment environment;
+    private final PispMetrics metrics;
 
     @Autowired
-    public AuthService(RestTemplate restTemplate, Environment environment) {
+    public AuthService(RestTemplate restTemplate, Environment environment, PispMetrics metrics) {
         this.restTemplate = restTemplate;
         this.environment = environment;
+        this.metrics = metrics;
+        this.pendingStates = Caffeine.newBuilder()
+                .maximumSize(environment.getRequiredProperty("authStateMaxPending", Long.class))
+                .expireAfterWrite(environment.getRequiredProperty("authStateTtlMs", Long.class), TimeUnit.MILLISECONDS)
+                .build();
     }
 
     /**
-     * Builds url that is used for user authorization.
+     * Builds url that is used for user authorization. Every url gets its own random state, so callback can be paired
+     * with the user.
      *
-     * @param redirectUri where the user should be redirected after successful authorization
-     * @param clientId    application id
+     * @param redirectUri   where the user should be redirected after successful authorization
+     * @param clientId      application id
+     * @param psuCredential credential of the user being authorized, see {@link PsuCredentials}
      * @return url for authorization
      */
-    public String getAuthorizationUrl(String redirectUri, String clientId) {
+    public String getAuthorizationUrl(String redirectUri, String clientId, String psuCredential) {
+        String state = UUID.randomUUID().toString();
+        pendingStates.put(state, psuCredential);
         String authorizationUrl = environment.getRequiredProperty("authorizationUrl");
         UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(authorizationUrl)
                 .queryParam("redirect_uri", redirectUri)
@@ -52,6 +70,21 @@ public class AuthService {
         return builder.toUriString();
     }
 
+    /**
+     * Finds user whose authorization has been started with given state.
+     *
+     * @param receivedState received from CSAS in callback
+     * @return credential of the user
+     * @throws StateNotFoundException if received state is not the one we sent to CSAS (or it has expired).
+     */
+    public String getCredentialForState(String receivedState) throws StateNotFoundException {
+        String psuCredential = receivedState != null ? pendingStates.getIfPresent(receivedState) : null;
+        if (psuCredential == null) {
+            throw new StateNotFoundException("Received state not found");
+        }
+        return psuCredential;
+    }
+
     /**
      * Checks that received state is the one we sent to CSAS and exchange received code for for access and refresh tokens.
      *
@@ -62,11 +95,10 @@ public class AuthService {
      * @throws ExchangeCodeForTokenException if anything bad happens during exchanging code.
      */
     public TokenResponse obtainTokens(String code, String receivedState) throws ExchangeCodeForTokenException, StateNotFoundException {
-        if (state.equals(receivedState)) {
-            return changeCodeForToken(code, environment.getRequiredProperty("clientId"), environment.getRequiredProperty("clientSecret"), environment.getRequiredProperty("authorizationRedirectUri"));
-        } else {
-            throw new StateNotFoundException("Received state not found");
-        }
+        getCredentialForState(receivedState);
+        TokenResponse tokens = changeCodeForToken(code, environment.getRequiredProperty("clientId"), environment.getRequiredProperty("clientSecret"), environment.getRequiredProperty("authorizationRedirectUri"));
+        pendingStates.invalidate(receivedState);
+        return tokens;
     }
 
     /**
@@ -91,10 +123,13 @@ public class AuthService {
         map.add("client_secret", secret);
         map.add("redirect_uri", authorizationRedirectUri);
         HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(map, headers);
+        long start = System.nanoTime();
         try {
             ResponseEntity<TokenResponse> tokenEntity = restTemplate.postForEntity(tokenUrl, request, TokenResponse.class);
+            metrics.recordTokenRequest("authorization_code", "success", start);
             return tokenEntity.getBody();
         } catch (Exception ex) {
+            metrics.recordTokenRequest("authorization_code", "error", start);
             throw new ExchangeCodeForTokenException("Error during exchanging code for token");
         }
     }
@@ -106,8 +141,23 @@ public class AuthService {
      * @param clientId     application id
      * @param secret       secret obtained during app initialization at developers portal
      * @return access token
+     * @throws ExpiredRefreshTokenException if refresh token has expired.
      */
     public String getNewAccessToken(String refreshToken, String clientId, String secret) throws ExpiredRefreshTokenException {
+        return refreshTokens(refreshToken, clientId, secret).getAccessToken();
+    }
+
+    /**
+     * Gets new tokens based on refresh token. Unlike {@link #getNewAccessToken(String, String, String)} returns whole response
+     * incl. expiration of the new access token.
+     *
+     * @param refreshToken refresh token obtained together with access token
+     * @param clientId     application id
+     * @param secret       secret obtained during app initialization at developers portal
+     * @return access token, its expiration and (optionally) new refresh token
+     * @throws ExpiredRefreshTokenException if refresh token has expired.
+     */
+    public TokenResponse refreshTokens(String refreshToken, String clientId, String secret) throws ExpiredRefreshTokenException {
         String tokenUrl = environment.getProperty("tokenUrl");
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
@@ -118,15 +168,23 @@ public class AuthService {
         map.add("client_id", clientId);
         map.add("client_secret", secret);
         HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(map, headers);
+        long start = System.nanoTime();
         try {
             ResponseEntity<TokenResponse> tokenEntity = restTemplate.postForEntity(tokenUrl, request, TokenResponse.class);
-            return tokenEntity.getBody().getAccessToken();
+            metrics.recordTokenRequest("refresh_token", "success", start);
+            return tokenEntity.getBody();
         } catch (HttpClientErrorException ex) {
             if (HttpStatus.UNAUTHORIZED.equals(ex.getStatusCode())) {
+                metrics.recordTokenRequest("refresh_token", "expired", start);
+                metrics.refreshTokenExpired("rejected");
                 throw new ExpiredRefreshTokenException("Refresh token has expired.");
             } else {
+                metrics.recordTokenRequest("refresh_token", "error", start);
                 throw ex;
             }
+        } catch (RuntimeException ex) {
+            metrics.recordTokenRequest("refresh_token", "error", start);
+            throw ex;
         }
     }
 }
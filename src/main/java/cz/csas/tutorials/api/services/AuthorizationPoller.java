@@ -0,0 +1,362 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls states of payment authorizations on behalf of clients and pushes state changes to them. Every tracked
+ * authorization is polled by one task, regardless of number of its listeners. Tasks are planned on one timer wheel,
+ * upstream polls run on a bounded thread pool. Poll interval grows while the state does not change (adaptive backoff)
+ * and is reset when it changes. Polling stops on terminal state, after max. duration, or when nobody listens.
+ */
+@Service
+@Slf4j
+public class AuthorizationPoller {
+
+    private final PispService pispService;
+    private final TokenManager tokenManager;
+    private final PaymentLifecycleStore paymentStore;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double backoffMultiplier;
+    private final long maxDurationMs;
+    private final long idleMs;
+    private final int maxErrors;
+    private final Set<String> terminalStates;
+
+    private final ConcurrentMap<PollKey, PollTask> tasks = new ConcurrentHashMap<>();
+    private final Timer timer;
+    private final ExecutorService executor;
+
+    @Autowired
+    public AuthorizationPoller(PispService pispService, TokenManager tokenManager, PaymentLifecycleStore paymentStore, Environment environment) {
+        this.pispService = pispService;
+        this.tokenManager = tokenManager;
+        this.paymentStore = paymentStore;
+        this.initialDelayMs = environment.getRequiredProperty("authPollInitialDelayMs", Long.class);
+        this.maxDelayMs = environment.getRequiredProperty("authPollMaxDelayMs", Long.class);
+        this.backoffMultiplier = environment.getRequiredProperty("authPollBackoffMultiplier", Double.class);
+        this.maxDurationMs = environment.getRequiredProperty("authPollMaxDurationMs", Long.class);
+        this.idleMs = environment.getRequiredProperty("authPollIdleMs", Long.class);
+        this.maxErrors = environment.getRequiredProperty("authPollMaxErrors", Integer.class);
+        this.terminalStates = new HashSet<>(Arrays.asList(environment.getRequiredProperty("authPollTerminalStates", String[].class)));
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.timer = new HashedWheelTimer(runnable -> {
+            Thread thread = new Thread(runnable, "auth-poll-timer");
+            thread.setDaemon(true);
+            return thread;
+        }, environment.getRequiredProperty("authPollTickMs", Long.class), TimeUnit.MILLISECONDS);
+        this.executor = Executors.newFixedThreadPool(environment.getRequiredProperty("authPollThreads", Integer.class), runnable -> {
+            Thread thread = new Thread(runnable, "auth-poll-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Subscribes listener to state changes of the authorization, starts polling if it is not tracked yet. Last known
+     * state is delivered to the listener immediately.
+     *
+     * @param userId    id of the user whose tokens are used for polling
+     * @param webApiKey webapi key to connect to webapi
+     * @param pollId    of authorization
+     * @param listener  receives states
+     */
+    public void subscribe(String userId, String webApiKey, String pollId, PollListener listener) {
+        PollKey key = new PollKey(userId, pollId);
+        while (true) {
+            PollTask task = tasks.computeIfAbsent(key, k -> start(k, webApiKey));
+            if (task.subscribe(listener)) {
+                return;
+            }
+            // task has just finished without terminal state, start a new one
+            tasks.remove(key, task);
+        }
+    }
+
+    /**
+     * Removes listener, e.g. when client has disconnected. Polling stops later if nobody else listens.
+     *
+     * @param userId   id of the user
+     * @param pollId   of authorization
+     * @param listener to remove
+     */
+    public void unsubscribe(String userId, String pollId, PollListener listener) {
+        PollTask task = tasks.get(new PollKey(userId, pollId));
+        if (task != null) {
+            task.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return number of tracked authorizations
+     */
+    public int getTrackedCount() {
+        return tasks.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+        executor.shutdownNow();
+    }
+
+    private PollTask start(PollKey key, String webApiKey) {
+        PollTask task = new PollTask(key, webApiKey, System.currentTimeMillis(), initialDelayMs);
+        schedule(task, 0);
+        return task;
+    }
+
+    private void schedule(PollTask task, long delayMs) {
+        timer.newTimeout(timeout -> {
+            try {
+                executor.execute(() -> poll(task));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(PollTask task) {
+        long now = System.currentTimeMillis();
+        if (now - task.startedAt > maxDurationMs) {
+            finish(task, HttpStatus.GATEWAY_TIMEOUT, "Authorization has not been finished in time.");
+            return;
+        }
+        // checked and finished at once - a listener subscribing meanwhile starts a new task, it is not left unnotified
+        if (task.finishIfIdle(now, idleMs)) {
+            log.debug("Nobody listens to authorization {}, polling stopped.", task.key.getPollId());
+            tasks.remove(task.key, task);
+            return;
+        }
+
+        ResponseEntity<PollStateResponse> response;
+        try {
+            response = pollOnce(task.key, task.webApiKey);
+            task.errors = 0;
+            paymentStore.recordPollState(task.key.getUserId(), task.key.getPollId(), response);
+        } catch (ExpiredRefreshTokenException e) {
+            finish(task, HttpStatus.UNAUTHORIZED, "Refresh token has expired. Client has to be authorized.");
+            return;
+        } catch (RuntimeException | ExpiredAccessTokenException e) {
+            log.debug("Poll of authorization {} failed: {}", task.key.getPollId(), e.toString());
+            if (++task.errors >= maxErrors) {
+                finish(task, HttpStatus.BAD_GATEWAY, "Authorization state cannot be obtained: " + e.getMessage());
+            } else {
+                schedule(task, task.nextDelay(maxDelayMs, backoffMultiplier));
+            }
+            return;
+        }
+
+        PollStateResponse body = response.getBody();
+        String state = body != null && body.getSignInfo() != null ? body.getSignInfo().getState() : null;
+        boolean terminal = state != null && terminalStates.contains(state);
+        if (terminal) {
+            tasks.remove(task.key, task);
+        }
+        if (task.update(body, state, terminal)) {
+            task.delayMs = initialDelayMs;
+        }
+        if (!terminal) {
+            schedule(task, task.nextDelay(maxDelayMs, backoffMultiplier));
+        }
+    }
+
+    private ResponseEntity<PollStateResponse> pollOnce(PollKey key, String webApiKey) throws ExpiredAccessTokenException, ExpiredRefreshTokenException {
+        String accessToken = tokenManager.getAccessToken(key.getUserId());
+        if (accessToken == null) {
+            throw new ExpiredRefreshTokenException("No access token available.");
+        }
+        try {
+            return pispService.pollAuthorizationState(accessToken, webApiKey, key.getPollId());
+        } catch (ExpiredAccessTokenException e) {
+            log.debug("Access token has been rejected. Refreshing access token.");
+            accessToken = tokenManager.refreshAccessToken(key.getUserId(), accessToken);
+            return pispService.pollAuthorizationState(accessToken, webApiKey, key.getPollId());
+        }
+    }
+
+    private void finish(PollTask task, HttpStatus status, String error) {
+        tasks.remove(task.key, task);
+        task.finish(status, error);
+    }
+
+    /**
+     * Receives states of polled authorization.
+     */
+    public interface PollListener {
+        /**
+         * @param response last poll response
+         * @param terminal true if the state is terminal, no more states will follow
+         * @return false if the listener does not want more states
+         */
+        boolean onState(PollStateResponse response, boolean terminal);
+
+        /**
+         * Polling has stopped without terminal state, no more states will follow.
+         *
+         * @param status HTTP status describing the reason, never null
+         * @param error  reason
+         */
+        void onStopped(HttpStatus status, String error);
+    }
+
+    @Value
+    private static class PollKey {
+        String userId;
+        String pollId;
+    }
+
+    /**
+     * Polling of one authorization. Only one poll of the task runs at a time, next one is planned after it. State of the
+     * task is guarded by its lock, listeners are called outside of it (they write to clients and may block on a slow
+     * one), so a blocked listener does not hold up subscription of others.
+     */
+    private static class PollTask {
+        private final PollKey key;
+        private final String webApiKey;
+        private final long startedAt;
+        private final List<PollListener> listeners = new CopyOnWriteArrayList<>();
+        private long delayMs;
+        private int errors;
+        private PollStateResponse lastResponse;
+        private String lastState;
+        private boolean terminal;
+        private boolean finished;
+        private long lastListenerAt;
+        /**
+         * Incremented on every change of the state
+         */
+        private long version;
+
+        PollTask(PollKey key, String webApiKey, long startedAt, long delayMs) {
+            this.key = key;
+            this.webApiKey = webApiKey;
+            this.startedAt = startedAt;
+            this.delayMs = delayMs;
+            this.lastListenerAt = startedAt;
+        }
+
+        /**
+         * Sends the last state to the listener and adds it to listeners of next states. When the state changes while
+         * being sent, the new one is sent too, so the listener gets states in order and misses none.
+         *
+         * @return false if the task has already finished without terminal state
+         */
+        boolean subscribe(PollListener listener) {
+            long sentVersion = -1;
+            while (true) {
+                PollStateResponse response;
+                boolean terminalResponse;
+                synchronized (this) {
+                    lastListenerAt = System.currentTimeMillis();
+                    if (finished && !terminal) {
+                        return false;
+                    }
+                    if (lastResponse == null || version == sentVersion) {
+                        if (!terminal) {
+                            listeners.add(listener);
+                        }
+                        return true;
+                    }
+                    response = lastResponse;
+                    terminalResponse = terminal;
+                    sentVersion = version;
+                }
+                if (!listener.onState(response, terminalResponse) || terminalResponse) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the state has changed
+         */
+        boolean update(PollStateResponse response, String state, boolean terminal) {
+            List<PollListener> notified;
+            synchronized (this) {
+                boolean changed = lastResponse == null || !Objects.equals(state, lastState);
+                lastResponse = response;
+                lastState = state;
+                this.terminal = terminal;
+                if (!changed) {
+                    if (!listeners.isEmpty()) {
+                        lastListenerAt = System.currentTimeMillis();
+                    }
+                    return false;
+                }
+                version++;
+                notified = new ArrayList<>(listeners);
+                if (terminal) {
+                    listeners.clear();
+                }
+            }
+            for (PollListener listener : notified) {
+                if (!listener.onState(response, terminal)) {
+                    listeners.remove(listener);
+                }
+            }
+            synchronized (this) {
+                if (!listeners.isEmpty()) {
+                    lastListenerAt = System.currentTimeMillis();
+                }
+            }
+            return true;
+        }
+
+        void finish(HttpStatus status, String error) {
+            List<PollListener> stopped;
+            synchronized (this) {
+                finished = true;
+                stopped = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            for (PollListener listener : stopped) {
+                listener.onStopped(status, error);
+            }
+        }
+
+        /**
+         * @return true if nobody has listened for idle time, the task is then finished
+         */
+        synchronized boolean finishIfIdle(long now, long idleMs) {
+            if (!listeners.isEmpty() || now - lastListenerAt <= idleMs) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+
+        long nextDelay(long maxDelayMs, double multiplier) {
+            long delay = delayMs;
+            delayMs = Math.min(maxDelayMs, (long) (delayMs * multiplier));
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResult;
+import cz.csas.tutorials.api.model.diagnostics.BalanceCheckStats;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk balance checks. Identical checks (same user, debtor IBAN, currency and amount) are sent to PISP once - within
+ * one bulk request and also across concurrent requests, while the first check is in flight. Distinct checks are sent
+ * in parallel, result of shared check is returned to every request with its own exchange identification.
+ */
+@Service
+@Slf4j
+public class BalanceCheckService {
+
+    private final PispService pispService;
+    private final TokenManager tokenManager;
+    private final ExecutorService executor;
+    private final ConcurrentMap<BalanceKey, CompletableFuture<BalanceCheckResult>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder upstreamCalls = new LongAdder();
+    private final LongAdder batchDuplicates = new LongAdder();
+    private final LongAdder inFlightDuplicates = new LongAdder();
+
+    @Autowired
+    public BalanceCheckService(PispService pispService, TokenManager tokenManager, Environment environment) {
+        this.pispService = pispService;
+        this.tokenManager = tokenManager;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(environment.getRequiredProperty("balanceCheckThreads", Integer.class), runnable -> {
+            Thread thread = new Thread(runnable, "balance-check-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks balances of all requests.
+     *
+     * @param userId      id of the user, for access token refresh
+     * @param accessToken current access token of the user
+     * @param webApiKey   webapi key to connect to webapi
+     * @param requests    balance checks
+     * @return results in order of requests, completed when all checks are done
+     */
+    public CompletableFuture<List<BalanceCheckResult>> balanceCheck(String userId, String accessToken, String webApiKey, List<BalanceCheckRequest> requests) {
+        Map<BalanceKey, CompletableFuture<BalanceCheckResult>> batch = new HashMap<>();
+        List<CompletableFuture<BalanceCheckResult>> results = new ArrayList<>(requests.size());
+        for (BalanceCheckRequest request : requests) {
+            checks.increment();
+            BalanceKey key = BalanceKey.of(userId, request);
+            CompletableFuture<BalanceCheckResult> check = batch.get(key);
+            if (check != null) {
+                batchDuplicates.increment();
+            } else {
+                check = checkOnce(key, accessToken, webApiKey, request);
+                batch.put(key, check);
+            }
+            Long exchangeIdentification = request.getExchangeIdentification();
+            results.add(check.thenApply(result -> new BalanceCheckResult(exchangeIdentification, result.getStatus(), result.getFundsAvailable(), result.getError())));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+                .thenApply(done -> results.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * @return numbers of requested checks, upstream calls and checks served by another check
+     */
+    public BalanceCheckStats getStats() {
+        return new BalanceCheckStats(checks.sum(), upstreamCalls.sum(), batchDuplicates.sum(), inFlightDuplicates.sum());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Joins identical check in flight, or starts a new one.
+     */
+    private CompletableFuture<BalanceCheckResult> checkOnce(BalanceKey key, String accessToken, String webApiKey, BalanceCheckRequest request) {
+        CompletableFuture<BalanceCheckResult> check = new CompletableFuture<>();
+        CompletableFuture<BalanceCheckResult> running = inFlight.putIfAbsent(key, check);
+        if (running != null) {
+            inFlightDuplicates.increment();
+            return running;
+        }
+        upstreamCalls.increment();
+        try {
+            executor.execute(() -> {
+                BalanceCheckResult result = call(key.getUserId(), accessToken, webApiKey, request);
+                inFlight.remove(key, check);
+                check.complete(result);
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, check);
+            check.complete(new BalanceCheckResult(null, 0, null, "Balance check has been rejected, application is shutting down."));
+        }
+        return check;
+    }
+
+    private BalanceCheckResult call(String userId, String accessToken, String webApiKey, BalanceCheckRequest request) {
+        try {
+            try {
+                return toResult(pispService.balanceCheck(accessToken, webApiKey, request));
+            } catch (ExpiredAccessTokenException e) {
+                log.debug("Access token has been rejected. Refreshing access token.");
+                String newAccessToken = tokenManager.refreshAccessToken(userId, accessToken);
+                return toResult(pispService.balanceCheck(newAccessToken, webApiKey, request));
+            }
+        } catch (ExpiredRefreshTokenException e) {
+            return new BalanceCheckResult(null, 401, null, "Refresh token has expired. Client has to be authorized.");
+        } catch (ExpiredAccessTokenException e) {
+            return new BalanceCheckResult(null, 403, null, e.getMessage());
+        } catch (HttpStatusCodeException e) {
+            return new BalanceCheckResult(null, e.getRawStatusCode(), null, e.getResponseBodyAsString());
+        } catch (RuntimeException e) {
+            log.warn("Balance check failed.", e);
+            return new BalanceCheckResult(null, 0, null, e.toString());
+        }
+    }
+
+    private static BalanceCheckResult toResult(ResponseEntity<BalanceCheckResponse> response) {
+        Boolean fundsAvailable = response.getBody() != null ? response.getBody().getFundsAvailable() : null;
+        return new BalanceCheckResult(null, response.getStatusCodeValue(), fundsAvailable, null);
+    }
+
+    /**
+     * Identity of balance check - checks with the same key have the same result. Amount is compared by value
+     * (100 and 100.00 are the same amount).
+     */
+    @Value
+    private static class BalanceKey {
+        String userId;
+        String iban;
+        String currency;
+        BigDecimal totalAmount;
+
+        static BalanceKey of(String userId, BalanceCheckRequest request) {
+            String iban = request.getDebtorAccount() != null && request.getDebtorAccount().getIdentification() != null
+                    ? request.getDebtorAccount().getIdentification().getIban() : null;
+            String currency = request.getTransactionDetails() != null ? request.getTransactionDetails().getCurrency() : null;
+            BigDecimal totalAmount = request.getTransactionDetails() != null ? request.getTransactionDetails().getTotalAmount() : null;
+            return new BalanceKey(userId, iban, currency, totalAmount != null ? totalAmount.stripTrailingZeros() : null);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResult;
+import cz.csas.tutorials.api.model.sign.SignInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Creates batches of payments. Payments of one batch are sent to PISP in parallel, by at most configured number of
+ * workers; all batches share one bounded thread pool. Results are reported in order of the batch request as soon as
+ * all previous payments are done.
+ */
+@Service
+@Slf4j
+public class BatchPaymentService {
+
+    private final PispService pispService;
+    private final TokenManager tokenManager;
+    private final PaymentLifecycleStore paymentStore;
+    private final ExecutorService executor;
+    private final int concurrency;
+
+    @Autowired
+    public BatchPaymentService(PispService pispService, TokenManager tokenManager, PaymentLifecycleStore paymentStore,
+                               @Value("${batchPaymentThreads}") int threads,
+                               @Value("${batchPaymentConcurrency}") int concurrency) {
+        this.pispService = pispService;
+        this.tokenManager = tokenManager;
+        this.paymentStore = paymentStore;
+        this.concurrency = concurrency;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-payment-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts creation of the payments and returns immediately.
+     *
+     * @param userId      id of the user, for access token refresh
+     * @param accessToken current access token of the user, used for whole batch until CSAS rejects it
+     * @param webApiKey   webapi key to connect to webapi
+     * @param requests    payments to create
+     * @param listener    receives result of every payment, in order of requests; returns false to cancel the rest of
+     *                    the batch (e.g. when client has disconnected)
+     * @param onComplete  called after the last result
+     * @return handle of the batch
+     */
+    public Batch createPayments(String userId, String accessToken, String webApiKey, List<CreatePaymentRequest> requests,
+                                ResultListener listener, Runnable onComplete) {
+        Batch batch = new Batch(userId, accessToken, webApiKey, requests, listener, onComplete);
+        int workers = Math.min(concurrency, requests.size());
+        if (workers == 0) {
+            onComplete.run();
+        }
+        for (int i = 0; i < workers; i++) {
+            executor.execute(batch::work);
+        }
+        return batch;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Receives results of batch payments.
+     */
+    @FunctionalInterface
+    public interface ResultListener {
+        /**
+         * @param result of one payment
+         * @return false to cancel remaining payments of the batch
+         */
+        boolean onResult(CreatePaymentResult result);
+    }
+
+    /**
+     * State of one batch. Every worker takes next not started payment until all are taken.
+     */
+    public class Batch {
+        private final String userId;
+        private final AtomicReference<String> accessToken;
+        private final String webApiKey;
+        private final List<CreatePaymentRequest> requests;
+        private final ResultListener listener;
+        private final Runnable onComplete;
+        private final AtomicInteger nextRequest = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final CreatePaymentResult[] results;
+        private int nextResult;
+        private boolean sending;
+
+        private Batch(String userId, String accessToken, String webApiKey, List<CreatePaymentRequest> requests,
+                      ResultListener listener, Runnable onComplete) {
+            this.userId = userId;
+            this.accessToken = new AtomicReference<>(accessToken);
+            this.webApiKey = webApiKey;
+            this.requests = requests;
+            this.listener = listener;
+            this.onComplete = onComplete;
+            this.results = new CreatePaymentResult[requests.size()];
+        }
+
+        /**
+         * Stops sending of payments not started yet, they are reported as not sent.
+         */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        private void work() {
+            int index;
+            while ((index = nextRequest.getAndIncrement()) < requests.size()) {
+                report(cancelled.get() ? notSent(index) : createPayment(index, requests.get(index)));
+            }
+        }
+
+        private CreatePaymentResult createPayment(int index, CreatePaymentRequest request) {
+            String token = accessToken.get();
+            try {
+                try {
+                    return toResult(index, pispService.createPayment(token, webApiKey, request));
+                } catch (ExpiredAccessTokenException e) {
+                    log.debug("Access token has been rejected. Refreshing access token.");
+                    token = tokenManager.refreshAccessToken(userId, token);
+                    accessToken.set(token);
+                    return toResult(index, pispService.createPayment(token, webApiKey, request));
+                }
+            } catch (ExpiredRefreshTokenException e) {
+                cancel();
+                return new CreatePaymentResult(index, 401, null, null, "Refresh token has expired. Client has to be authorized.");
+            } catch (ExpiredAccessTokenException e) {
+                return new CreatePaymentResult(index, 403, null, null, e.getMessage());
+            } catch (HttpStatusCodeException e) {
+                return new CreatePaymentResult(index, e.getRawStatusCode(), null, null, e.getResponseBodyAsString());
+            } catch (RuntimeException e) {
+                log.warn("Batch payment {} failed.", index, e);
+                return new CreatePaymentResult(index, 0, null, null, e.toString());
+            }
+        }
+
+        /**
+         * Stores result and reports all results which are next in order. Results are collected under the lock but sent
+         * outside of it (listener may block on slow client), by one worker at a time to keep the order - results
+         * stored meanwhile by other workers are sent by the worker which is already sending.
+         */
+        private void report(CreatePaymentResult result) {
+            synchronized (this) {
+                results[result.getIndex()] = result;
+                if (sending) {
+                    return;
+                }
+                sending = true;
+            }
+            while (true) {
+                List<CreatePaymentResult> ready = new ArrayList<>();
+                boolean complete;
+                synchronized (this) {
+                    while (nextResult < results.length && results[nextResult] != null) {
+                        ready.add(results[nextResult]);
+                        results[nextResult++] = null;
+                    }
+                    if (ready.isEmpty()) {
+                        sending = false;
+                        return;
+                    }
+                    complete = nextResult == results.length;
+                }
+                for (CreatePaymentResult readyResult : ready) {
+                    if (!listener.onResult(readyResult)) {
+                        cancel();
+                    }
+                }
+                if (complete) {
+                    onComplete.run();
+                    return;
+                }
+            }
+        }
+
+        private CreatePaymentResult notSent(int index) {
+            return new CreatePaymentResult(index, 0, null, null, "Payment has not been sent, batch has been cancelled.");
+        }
+
+        private CreatePaymentResult toResult(int index, ResponseEntity<CreatePaymentResponse> response) {
+            paymentStore.recordCreatedPayment(userId, response);
+            SignInfo signInfo = response.getBody() != null ? response.getBody().getSignInfo() : null;
+            return new CreatePaymentResult(index, response.getStatusCodeValue(),
+                    signInfo != null ? signInfo.getSignId() : null, signInfo != null ? signInfo.getHash() : null, null);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.diagnostics.CircuitBreakerStats;
+
+/**
+ * Circuit breaker of one upstream endpoint. Outcomes of last calls are kept in a ring buffer; when failure rate
+ * reaches the threshold, the breaker opens and calls are rejected without reaching upstream. After open duration
+ * one trial call is let through (half-open) - its success closes the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final boolean[] window;
+    private final int minCalls;
+    private final int failureRateThreshold;
+    private final long openDurationMs;
+
+    private State state = State.CLOSED;
+    private int position;
+    private int windowCalls;
+    private int windowFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long calls;
+    private long failures;
+    private long retries;
+    private long rejected;
+
+    /**
+     * @param windowSize           number of last calls used for failure rate
+     * @param minCalls             min. number of calls in the window before the breaker can open
+     * @param failureRateThreshold failure rate in percent which opens the breaker
+     * @param openDurationMs       time for which calls are rejected before trial call
+     */
+    public CircuitBreaker(int windowSize, int minCalls, int failureRateThreshold, long openDurationMs) {
+        this.window = new boolean[windowSize];
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * @return true if the call may be sent, false if it has to be rejected
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Records call which reached upstream and got a valid answer (also 4xx).
+     */
+    public synchronized void onSuccess() {
+        calls++;
+        if (state == State.HALF_OPEN) {
+            close();
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    /**
+     * Records call which failed because of upstream (5xx, I/O error, timeout).
+     */
+    public synchronized void onFailure() {
+        calls++;
+        failures++;
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (windowCalls >= minCalls && windowFailures * 100 >= failureRateThreshold * windowCalls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Records call whose outcome is unknown (cancelled by the caller) - it is not counted, only trial call slot of
+     * half-open breaker is released.
+     */
+    public synchronized void onCancel() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    public synchronized void onRetry() {
+        retries++;
+    }
+
+    /**
+     * @return time until the breaker lets a trial call through, 0 if it is not open
+     */
+    public synchronized long getRetryAfterMs() {
+        return state == State.OPEN ? Math.max(0, openedAt + openDurationMs - System.currentTimeMillis()) : 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized CircuitBreakerStats getStats() {
+        int failureRate = windowCalls > 0 ? windowFailures * 100 / windowCalls : 0;
+        return new CircuitBreakerStats(state.name(), failureRate, calls, failures, retries, rejected);
+    }
+
+    private void record(boolean failure) {
+        if (windowCalls == window.length) {
+            if (window[position]) {
+                windowFailures--;
+            }
+        } else {
+            windowCalls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trialInFlight = false;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        position = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+        trialInFlight = false;
+    }
+}
@@ -0,0 +1,261 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.Tokens;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token store backed by local append-only journal file. Every change of user's tokens is appended as one record
+ * encrypted by AES-GCM, the journal is compacted (rewritten with live records only) when it contains too many
+ * overwritten records. Whole journal is read by one memory-mapped pass at startup.
+ * <p>
+ * Record format: int length | 12 bytes IV | encrypted payload (operation, user id, tokens).
+ * <p>
+ * Incomplete record at the end (interrupted write) is dropped, the original journal is kept as .broken file. Record
+ * which cannot be decrypted is skipped. Length out of record limits means the journal is corrupted - following records
+ * cannot be found, so the store fails to start instead of dropping them.
+ */
+@Service
+@ConditionalOnProperty(name = "tokenStore", havingValue = "file")
+@Slf4j
+public class FileTokenStore implements TokenStore {
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final byte OP_SAVE = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final Path journalPath;
+    private final SecretKeySpec key;
+    private final int compactionMinRecords;
+    private final boolean fsync;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final Map<String, Tokens> live = new HashMap<>();
+    private FileChannel journal;
+    private int journalRecords;
+
+    @Autowired
+    public FileTokenStore(@Value("${tokenStorePath}") String journalPath,
+                          @Value("${tokenStoreKey}") String base64Key,
+                          @Value("${tokenStoreCompactionMinRecords}") int compactionMinRecords,
+                          @Value("${tokenStoreFsync}") boolean fsync) {
+        if (base64Key.isEmpty()) {
+            throw new IllegalStateException("Property tokenStoreKey (base64 AES key) is required for file token store");
+        }
+        this.journalPath = Paths.get(journalPath);
+        this.key = new SecretKeySpec(Base64.getDecoder().decode(base64Key), "AES");
+        this.compactionMinRecords = compactionMinRecords;
+        this.fsync = fsync;
+    }
+
+    @Override
+    public synchronized Map<String, Tokens> loadAll() {
+        try {
+            if (journalPath.getParent() != null) {
+                Files.createDirectories(journalPath.getParent());
+            }
+            long validLength = Files.exists(journalPath) ? replayJournal() : 0;
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (journal.size() > validLength) {
+                Path broken = journalPath.resolveSibling(journalPath.getFileName() + ".broken");
+                Files.copy(journalPath, broken, StandardCopyOption.REPLACE_EXISTING);
+                log.warn("Token journal has incomplete record at the end, dropping its {} bytes (original journal kept as {}).",
+                        journal.size() - validLength, broken);
+                journal.truncate(validLength);
+            }
+            journal.position(validLength);
+            return new HashMap<>(live);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read token journal " + journalPath, e);
+        }
+    }
+
+    @Override
+    public synchronized void save(String userId, Tokens tokens) {
+        live.put(userId, tokens);
+        append(encode(OP_SAVE, userId, tokens));
+    }
+
+    @Override
+    public synchronized void remove(String userId) {
+        if (live.remove(userId) != null) {
+            append(encode(OP_REMOVE, userId, null));
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Reads all records of the journal into live map.
+     *
+     * @return length of the journal up to the last complete record
+     */
+    private long replayJournal() throws IOException {
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long validLength = 0;
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt();
+                if (length == 0 && onlyZerosRemain(buffer)) {
+                    // file system may leave zeros after the last write when it has been interrupted
+                    break;
+                }
+                if (length <= IV_LENGTH || length > MAX_RECORD_LENGTH) {
+                    throw new IllegalStateException("Token journal " + journalPath + " is corrupted, invalid record length "
+                            + length + " at offset " + validLength + ", fix or remove it (users will have to authorize again).");
+                }
+                if (length > buffer.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                validLength = buffer.position();
+                journalRecords++;
+                try {
+                    apply(decrypt(record));
+                } catch (GeneralSecurityException e) {
+                    log.warn("Token journal record cannot be decrypted (wrong key or corrupted record), skipping it.");
+                }
+            }
+            return validLength;
+        }
+    }
+
+    private static boolean onlyZerosRemain(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte operation = in.readByte();
+        String userId = in.readUTF();
+        if (operation == OP_SAVE) {
+            String accessToken = in.readUTF();
+            String refreshToken = in.readBoolean() ? in.readUTF() : null;
+            long accessTokenExpiresAt = in.readLong();
+            live.put(userId, new Tokens(accessToken, refreshToken, accessTokenExpiresAt));
+        } else if (operation == OP_REMOVE) {
+            live.remove(userId);
+        }
+    }
+
+    private byte[] encode(byte operation, String userId, Tokens tokens) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(operation);
+            out.writeUTF(userId);
+            if (operation == OP_SAVE) {
+                out.writeUTF(tokens.getAccessToken());
+                out.writeBoolean(tokens.getRefreshToken() != null);
+                if (tokens.getRefreshToken() != null) {
+                    out.writeUTF(tokens.getRefreshToken());
+                }
+                out.writeLong(tokens.getAccessTokenExpiresAt());
+            }
+            return encrypt(bytes.toByteArray());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot encode token journal record", e);
+        }
+    }
+
+    private byte[] encrypt(byte[] payload) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        byte[] encrypted = cipher.doFinal(payload);
+        return ByteBuffer.allocate(IV_LENGTH + encrypted.length).put(iv).put(encrypted).array();
+    }
+
+    private byte[] decrypt(byte[] record) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, record, 0, IV_LENGTH));
+        return cipher.doFinal(record, IV_LENGTH, record.length - IV_LENGTH);
+    }
+
+    private void append(byte[] record) {
+        if (journal == null) {
+            throw new IllegalStateException("Token journal has not been loaded");
+        }
+        try {
+            write(journal, record);
+            if (fsync) {
+                journal.force(false);
+            }
+            journalRecords++;
+            if (journalRecords >= compactionMinRecords && journalRecords > 2 * live.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write token journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Rewrites journal with live records only - to temporary file which atomically replaces the journal.
+     */
+    private void compact() throws IOException {
+        Path compacted = journalPath.resolveSibling(journalPath.getFileName() + ".compact");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Tokens> entry : live.entrySet()) {
+                write(channel, encode(OP_SAVE, entry.getKey(), entry.getValue()));
+            }
+            channel.force(true);
+        }
+        journal.close();
+        Files.move(compacted, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+        log.debug("Token journal has been compacted from {} to {} records.", journalRecords, live.size());
+        journalRecords = live.size();
+    }
+
+    private static void write(FileChannel channel, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+        buffer.putInt(record.length).put(record).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
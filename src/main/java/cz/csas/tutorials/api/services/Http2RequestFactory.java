@@ -0,0 +1,227 @@
+package cz.csas.tutorials.api.services;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.AbstractClientHttpRequest;
+import org.springframework.http.client.AbstractClientHttpResponse;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Request factory of RestTemplate on Apache HttpClient 5, which speaks HTTP/2 where upstream supports it - concurrent
+ * calls to such host are multiplexed as streams over one connection (multiplexing client), instead of one connection
+ * per call. Upstream speaking HTTP/1.1 only is called over HTTP/1.1 with pooled connections (pooling client).
+ * <p>
+ * With {@link HttpVersionPolicy#NEGOTIATE} the first calls to a host go through the pooling client, which negotiates
+ * the version by ALPN; once a response comes over HTTP/2, next calls to the host use the multiplexing client. Nothing is
+ * retried on another protocol, so also non-idempotent calls are safe. Plain http hosts stay on HTTP/1.1 (no ALPN).
+ * {@link HttpVersionPolicy#FORCE_HTTP_2} sends all calls by the multiplexing client (prior knowledge over plain http),
+ * {@link HttpVersionPolicy#FORCE_HTTP_1} all by the pooling one.
+ * <p>
+ * Request and response bodies are buffered in memory, which is fine for PISP calls. Calls can be aborted by
+ * {@link AbortableRequestFactory.AbortHandle} the same way as with the default factory, see {@link RequestHedger}.
+ */
+@Slf4j
+public class Http2RequestFactory implements ClientHttpRequestFactory, Closeable {
+
+    private final CloseableHttpAsyncClient multiplexingClient;
+    private final CloseableHttpAsyncClient poolingClient;
+    private final HttpVersionPolicy versionPolicy;
+    private final ConcurrentMap<String, ProtocolVersion> hostVersions = new ConcurrentHashMap<>();
+
+    /**
+     * @param multiplexingClient started HTTP/2 client, null if HTTP/2 cannot be used (e.g. calls go through proxy)
+     * @param poolingClient      started client with connection pool
+     * @param versionPolicy      how the HTTP version is selected
+     */
+    public Http2RequestFactory(CloseableHttpAsyncClient multiplexingClient, CloseableHttpAsyncClient poolingClient,
+                               HttpVersionPolicy versionPolicy) {
+        this.multiplexingClient = multiplexingClient;
+        this.poolingClient = poolingClient;
+        this.versionPolicy = multiplexingClient != null ? versionPolicy : HttpVersionPolicy.FORCE_HTTP_1;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) {
+        return new Http2ClientRequest(this, uri, httpMethod);
+    }
+
+    /**
+     * @param uri URI of a call
+     * @return true if calls to the host of the URI are multiplexed over HTTP/2
+     */
+    public boolean isMultiplexed(URI uri) {
+        switch (versionPolicy) {
+            case FORCE_HTTP_2:
+                return true;
+            case FORCE_HTTP_1:
+                return false;
+            default:
+                return HttpVersion.HTTP_2.equals(hostVersions.get(hostOf(uri)));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (multiplexingClient != null) {
+            multiplexingClient.close();
+        }
+        poolingClient.close();
+    }
+
+    /**
+     * Remembers HTTP version negotiated with the host of the URI.
+     */
+    private void negotiated(URI uri, ProtocolVersion version) {
+        if (versionPolicy == HttpVersionPolicy.NEGOTIATE && version != null
+                && hostVersions.putIfAbsent(hostOf(uri), version) == null) {
+            log.info("Upstream {} speaks {}{}.", hostOf(uri), version,
+                    HttpVersion.HTTP_2.equals(version) ? ", calls are multiplexed" : ", calls use connection pool");
+        }
+    }
+
+    private static String hostOf(URI uri) {
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    private static class Http2ClientRequest extends AbstractClientHttpRequest {
+        private final Http2RequestFactory factory;
+        private final URI uri;
+        private final HttpMethod method;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        Http2ClientRequest(Http2RequestFactory factory, URI uri, HttpMethod method) {
+            this.factory = factory;
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public String getMethodValue() {
+            return method.name();
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        protected OutputStream getBodyInternal(HttpHeaders headers) {
+            return body;
+        }
+
+        @Override
+        protected ClientHttpResponse executeInternal(HttpHeaders headers) throws IOException {
+            boolean multiplexed = factory.isMultiplexed(uri);
+            CloseableHttpAsyncClient httpClient = multiplexed ? factory.multiplexingClient : factory.poolingClient;
+            Future<SimpleHttpResponse> future = httpClient.execute(toRequest(headers), null);
+            AbortableRequestFactory.AbortHandle handle = AbortableRequestFactory.currentHandle();
+            if (handle != null) {
+                handle.register(() -> future.cancel(true));
+            }
+            try {
+                SimpleHttpResponse response = future.get();
+                if (!multiplexed) {
+                    factory.negotiated(uri, response.getVersion());
+                }
+                return new Http2ClientResponse(response);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response of " + uri);
+            } catch (CancellationException e) {
+                throw new IOException("Request aborted: " + uri);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        private SimpleHttpRequest toRequest(HttpHeaders headers) {
+            SimpleRequestBuilder builder = SimpleRequestBuilder.create(method.name()).setUri(uri);
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                String name = header.getKey();
+                // framing headers are set by the client, HTTP/2 does not allow them at all
+                if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && !HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+                    for (String value : header.getValue()) {
+                        builder.addHeader(name, value);
+                    }
+                }
+            }
+            if (body.size() > 0) {
+                String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+                builder.setBody(body.toByteArray(), contentType != null ? ContentType.parse(contentType) : null);
+            }
+            return builder.build();
+        }
+    }
+
+    private static class Http2ClientResponse extends AbstractClientHttpResponse {
+        private final SimpleHttpResponse response;
+        private HttpHeaders headers;
+
+        Http2ClientResponse(SimpleHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return response.getCode();
+        }
+
+        @Override
+        public String getStatusText() {
+            return response.getReasonPhrase() != null ? response.getReasonPhrase() : "";
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            if (headers == null) {
+                headers = new HttpHeaders();
+                for (Header header : response.getHeaders()) {
+                    headers.add(header.getName(), header.getValue());
+                }
+            }
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            byte[] bytes = response.getBodyBytes();
+            return new ByteArrayInputStream(bytes != null ? bytes : new byte[0]);
+        }
+
+        @Override
+        public void close() {
+            // body is buffered, connection has already been released
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.diagnostics.IdempotencyStats;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Store of responses of non-idempotent calls (payment creation) identified by client's Idempotency-Key. Repeated call
+ * with the same key is not sent to CSAS again - it waits for the first call if that is still in flight, or gets the
+ * stored response. Only completed responses are kept; when the first call fails, the key is released and the next
+ * retry is sent. Store is bounded by number of entries and entries expire after configured time.
+ */
+@Service
+@Slf4j
+public class IdempotencyStore {
+
+    /**
+     * Header with client's key of the request.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    /**
+     * Header added to responses served from the store.
+     */
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private final JsonCodec jsonCodec;
+    private final int maxKeyLength;
+    private final Cache<IdempotencyKey, Entry> cache;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder inFlightJoins = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    @Autowired
+    public IdempotencyStore(JsonCodec jsonCodec, Environment environment) {
+        this.jsonCodec = jsonCodec;
+        this.maxKeyLength = environment.getRequiredProperty("idempotencyKeyMaxLength", Integer.class);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(environment.getRequiredProperty("idempotencyMaxEntries", Long.class))
+                .expireAfterWrite(environment.getRequiredProperty("idempotencyTtlMs", Long.class), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Executes the call once per user and key. Key reused with different request is rejected (422).
+     *
+     * @param userId  id of the user, keys of different users do not collide
+     * @param key     client's Idempotency-Key
+     * @param request body of the request, to recognize reuse of the key for different request
+     * @param call    upstream call
+     * @return response of the first call with the key
+     * @throws ExpiredAccessTokenException if the first call has been rejected by CSAS
+     */
+    public ResponseEntity<Object> execute(String userId, String key, Object request, IdempotentCall call) throws ExpiredAccessTokenException {
+        if (key.length() > maxKeyLength) {
+            return ResponseEntity.badRequest().body(IDEMPOTENCY_KEY_HEADER + " is too long, max. " + maxKeyLength + " characters allowed.");
+        }
+        IdempotencyKey idempotencyKey = new IdempotencyKey(userId, key);
+        Entry entry = new Entry(fingerprint(request), new CompletableFuture<>());
+        Entry existing = cache.asMap().putIfAbsent(idempotencyKey, entry);
+        if (existing != null) {
+            return replay(existing, entry.getFingerprint());
+        }
+
+        calls.increment();
+        ResponseEntity<Object> response = null;
+        boolean stored = false;
+        try {
+            response = call.call();
+            stored = isStorable(response);
+            return response;
+        } catch (ExpiredAccessTokenException | RuntimeException e) {
+            entry.getResponse().completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!stored) {
+                cache.asMap().remove(idempotencyKey, entry);
+            }
+            // whatever has happened, requests waiting for this one must not wait forever
+            if (response != null) {
+                entry.getResponse().complete(response);
+            } else {
+                entry.getResponse().completeExceptionally(new IllegalStateException("Request with the same " + IDEMPOTENCY_KEY_HEADER + " has failed."));
+            }
+        }
+    }
+
+    /**
+     * @return numbers of executed calls, replayed responses and rejected key reuses, size of the store
+     */
+    public IdempotencyStats getStats() {
+        return new IdempotencyStats(calls.sum(), replays.sum(), inFlightJoins.sum(), conflicts.sum(), cache.estimatedSize());
+    }
+
+    private ResponseEntity<Object> replay(Entry existing, byte[] fingerprint) throws ExpiredAccessTokenException {
+        if (!Arrays.equals(existing.getFingerprint(), fingerprint)) {
+            conflicts.increment();
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                    .body(IDEMPOTENCY_KEY_HEADER + " has already been used for different request.");
+        }
+        if (existing.getResponse().isDone()) {
+            replays.increment();
+        } else {
+            inFlightJoins.increment();
+            log.debug("Request with the same " + IDEMPOTENCY_KEY_HEADER + " is in flight, waiting for its response.");
+        }
+        ResponseEntity<Object> response;
+        try {
+            response = existing.getResponse().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ExpiredAccessTokenException) {
+                throw (ExpiredAccessTokenException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        headers.set(REPLAYED_HEADER, "true");
+        // raw status, upstream may answer with status unknown to HttpStatus
+        return ResponseEntity.status(response.getStatusCodeValue()).headers(headers).body(response.getBody());
+    }
+
+    /**
+     * Responses caused by state of the client's authorization or by load are not final, the call can be retried.
+     */
+    private static boolean isStorable(ResponseEntity<Object> response) {
+        int status = response.getStatusCodeValue();
+        return status < 500
+                && status != HttpStatus.UNAUTHORIZED.value()
+                && status != HttpStatus.FORBIDDEN.value()
+                && status != HttpStatus.REQUEST_TIMEOUT.value()
+                && status != HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+    private byte[] fingerprint(Object request) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(jsonCodec.writer(request.getClass()).writeValueAsBytes(request));
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Request fingerprint cannot be computed.", e);
+        }
+    }
+
+    /**
+     * Call protected by idempotency key.
+     */
+    @FunctionalInterface
+    public interface IdempotentCall {
+        ResponseEntity<Object> call() throws ExpiredAccessTokenException;
+    }
+
+    @Value
+    private static class IdempotencyKey {
+        String userId;
+        String key;
+    }
+
+    @Value
+    private static class Entry {
+        byte[] fingerprint;
+        CompletableFuture<ResponseEntity<Object>> response;
+    }
+}
@@ -0,0 +1,29 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.Tokens;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Default store, tokens are kept only in memory (token vault) and are lost on restart.
+ */
+@Service
+@ConditionalOnProperty(name = "tokenStore", havingValue = "memory", matchIfMissing = true)
+public class MemoryOnlyTokenStore implements TokenStore {
+
+    @Override
+    public void save(String userId, Tokens tokens) {
+    }
+
+    @Override
+    public void remove(String userId) {
+    }
+
+    @Override
+    public Map<String, Tokens> loadAll() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,392 @@
+package cz.csas.tutorials.api.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import cz.csas.tutorials.api.model.diagnostics.PaymentStoreStats;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.payments.PaymentLifecycle;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignInfo;
+import cz.csas.tutorials.api.model.sign.SignResponse;
+import lombok.Value;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Known state of payments of every user - created payment, sign info, federated authorization and polled state, as
+ * they pass through this application (PISP responses which are not parsed, in passthrough mode, are not recorded).
+ * Payments are indexed by signId, pollId and state; all lookups are O(1). Store is bounded by number of payments and
+ * payments idle for configured time are dropped, together with their index entries.
+ * <p>
+ * Sign detail and federated authorization are served from memory while they are fresh - younger than configured time
+ * and obtained in the current state of the payment. Any state change drops them; federated authorization is dropped
+ * also as soon as it is polled, its signing URL and pollId are not handed out again once the user may be signing.
+ */
+@Service
+public class PaymentLifecycleStore {
+
+    private final long signDetailTtlMs;
+    private final long federatedAuthTtlMs;
+    private final Cache<Key, Entry> payments;
+    private final ConcurrentMap<Key, Key> byPollId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, Set<Key>> byState = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @Autowired
+    public PaymentLifecycleStore(Environment environment) {
+        this.signDetailTtlMs = environment.getRequiredProperty("paymentStoreSignDetailTtlMs", Long.class);
+        this.federatedAuthTtlMs = environment.getRequiredProperty("paymentStoreFederatedAuthTtlMs", Long.class);
+        // removal runs in the removing thread, so indexes never point to a payment which is not in the store for long
+        this.payments = Caffeine.newBuilder()
+                .maximumSize(environment.getRequiredProperty("paymentStoreMaxEntries", Long.class))
+                .expireAfterAccess(environment.getRequiredProperty("paymentStoreIdleMs", Long.class), TimeUnit.MILLISECONDS)
+                .executor(Runnable::run)
+                .removalListener((Key key, Entry entry, RemovalCause cause) -> removed(entry, cause))
+                .build();
+    }
+
+    /**
+     * Records successful response of PISP create payment call.
+     *
+     * @param userId   id of the user
+     * @param response response of the call
+     */
+    public void recordCreatedPayment(String userId, ResponseEntity<?> response) {
+        CreatePaymentResponse payment = successBody(response, CreatePaymentResponse.class);
+        SignInfo signInfo = payment != null ? payment.getSignInfo() : null;
+        if (signInfo == null || signInfo.getSignId() == null) {
+            return;
+        }
+        Entry entry = entry(userId, signInfo.getSignId());
+        synchronized (entry) {
+            entry.payment = payment;
+            update(entry, signInfo);
+        }
+    }
+
+    /**
+     * Records successful response of PISP detail of the authorization call, it is served from memory while fresh.
+     *
+     * @param userId   id of the user
+     * @param signId   of the payment
+     * @param response response of the call
+     */
+    public void recordSignDetail(String userId, String signId, ResponseEntity<?> response) {
+        SignResponse detail = successBody(response, SignResponse.class);
+        if (detail == null) {
+            return;
+        }
+        Entry entry = entry(userId, signId);
+        synchronized (entry) {
+            update(entry, detail.getSignInfo());
+            entry.signDetail = detail;
+            entry.signDetailAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records successful response of PISP start or finish of the authorization call. Stored sign detail is dropped.
+     *
+     * @param userId   id of the user
+     * @param signId   of the payment
+     * @param response response of the call
+     */
+    public void recordSignChange(String userId, String signId, ResponseEntity<?> response) {
+        SignResponse change = successBody(response, SignResponse.class);
+        if (change == null) {
+            return;
+        }
+        Entry entry = entry(userId, signId);
+        synchronized (entry) {
+            update(entry, change.getSignInfo());
+            entry.signDetail = null;
+        }
+    }
+
+    /**
+     * Records successful response of PISP federated authorization call, it is served from memory while fresh.
+     *
+     * @param userId   id of the user
+     * @param signId   of the payment
+     * @param hash     of the payment
+     * @param response response of the call
+     */
+    public void recordFederatedAuthorization(String userId, String signId, String hash, ResponseEntity<?> response) {
+        FederatedAuthorizationResponse federatedAuth = successBody(response, FederatedAuthorizationResponse.class);
+        if (federatedAuth == null) {
+            return;
+        }
+        Entry entry = entry(userId, signId);
+        synchronized (entry) {
+            update(entry, federatedAuth.getSignInfo());
+            entry.signingUrl = federatedAuth.getSigningUrl();
+            setPollId(entry, federatedAuth.getPollId());
+            entry.federatedAuth = federatedAuth;
+            entry.federatedAuthHash = hash;
+            entry.federatedAuthAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records successful response of PISP poll authorization state call, stored federated authorization of the payment
+     * is dropped. Authorization not known by pollId is recorded when the response contains its signId.
+     *
+     * @param userId   id of the user
+     * @param pollId   of the authorization
+     * @param response response of the call
+     */
+    public void recordPollState(String userId, String pollId, ResponseEntity<?> response) {
+        PollStateResponse pollState = successBody(response, PollStateResponse.class);
+        SignInfo signInfo = pollState != null ? pollState.getSignInfo() : null;
+        if (signInfo == null) {
+            return;
+        }
+        Entry entry = findByPollId(userId, pollId);
+        if (entry == null) {
+            if (signInfo.getSignId() == null) {
+                return;
+            }
+            entry = entry(userId, signInfo.getSignId());
+        }
+        synchronized (entry) {
+            setPollId(entry, pollId);
+            update(entry, signInfo);
+            entry.federatedAuth = null;
+        }
+    }
+
+    /**
+     * @param userId id of the user
+     * @param signId of the payment
+     * @return sign detail obtained from PISP in the current state of the payment (with Age header), or null if there
+     * is no fresh one
+     */
+    public ResponseEntity<Object> getFreshSignDetail(String userId, String signId) {
+        Entry entry = signDetailTtlMs > 0 ? payments.getIfPresent(new Key(userId, signId)) : null;
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.signDetail != null && isFresh(entry.signDetailAt, signDetailTtlMs)) {
+                    return hit(entry.signDetail, entry.signDetailAt);
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param userId id of the user
+     * @param signId of the payment
+     * @param hash   of the payment
+     * @return federated authorization obtained from PISP for the same hash in the current state of the payment (with Age
+     * header), or null if there is no fresh one
+     */
+    public ResponseEntity<Object> getFreshFederatedAuthorization(String userId, String signId, String hash) {
+        Entry entry = federatedAuthTtlMs > 0 ? payments.getIfPresent(new Key(userId, signId)) : null;
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.federatedAuth != null && hash.equals(entry.federatedAuthHash) && isFresh(entry.federatedAuthAt, federatedAuthTtlMs)) {
+                    return hit(entry.federatedAuth, entry.federatedAuthAt);
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param userId id of the user
+     * @param signId of the payment
+     * @return known state of the payment, null if it is not in the store
+     */
+    public PaymentLifecycle get(String userId, String signId) {
+        return snapshot(payments.getIfPresent(new Key(userId, signId)));
+    }
+
+    /**
+     * @param userId id of the user
+     * @param pollId of the authorization
+     * @return known state of the payment, null if it is not in the store
+     */
+    public PaymentLifecycle getByPollId(String userId, String pollId) {
+        return snapshot(findByPollId(userId, pollId));
+    }
+
+    /**
+     * @param userId id of the user
+     * @param state  state of authorization, e.g. OPEN
+     * @return known states of the payments of the user in given state, in no particular order
+     */
+    public List<PaymentLifecycle> getByState(String userId, String state) {
+        Set<Key> signKeys = byState.get(new Key(userId, state));
+        if (signKeys == null) {
+            return Collections.emptyList();
+        }
+        List<PaymentLifecycle> result = new ArrayList<>(signKeys.size());
+        for (Key signKey : signKeys) {
+            PaymentLifecycle payment = snapshot(payments.getIfPresent(signKey));
+            // state may have changed since the index has been read
+            if (payment != null && state.equals(payment.getState())) {
+                result.add(payment);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return numbers of responses served from memory, of lookups without fresh response, of evicted payments, size of
+     * the store
+     */
+    public PaymentStoreStats getStats() {
+        return new PaymentStoreStats(hits.sum(), misses.sum(), evictions.sum(), payments.estimatedSize());
+    }
+
+    private Entry entry(String userId, String signId) {
+        return payments.get(new Key(userId, signId), key -> new Entry(key, System.currentTimeMillis()));
+    }
+
+    private Entry findByPollId(String userId, String pollId) {
+        Key signKey = byPollId.get(new Key(userId, pollId));
+        return signKey != null ? payments.getIfPresent(signKey) : null;
+    }
+
+    /**
+     * Applies sign info to the payment, state change drops stored responses. Caller holds lock of the entry.
+     */
+    private void update(Entry entry, SignInfo signInfo) {
+        entry.updatedAt = System.currentTimeMillis();
+        if (signInfo == null) {
+            return;
+        }
+        if (signInfo.getHash() != null) {
+            entry.hash = signInfo.getHash();
+        }
+        String state = signInfo.getState();
+        if (state == null || state.equals(entry.state)) {
+            return;
+        }
+        if (entry.state != null) {
+            unindexState(entry);
+        }
+        entry.state = state;
+        entry.signDetail = null;
+        entry.federatedAuth = null;
+        if (!entry.removed) {
+            byState.computeIfAbsent(new Key(entry.key.getUserId(), state), key -> ConcurrentHashMap.newKeySet()).add(entry.key);
+        }
+    }
+
+    /**
+     * Caller holds lock of the entry.
+     */
+    private void setPollId(Entry entry, String pollId) {
+        if (pollId == null || pollId.equals(entry.pollId)) {
+            return;
+        }
+        if (entry.pollId != null) {
+            byPollId.remove(new Key(entry.key.getUserId(), entry.pollId), entry.key);
+        }
+        entry.pollId = pollId;
+        if (!entry.removed) {
+            byPollId.put(new Key(entry.key.getUserId(), pollId), entry.key);
+        }
+    }
+
+    private void removed(Entry entry, RemovalCause cause) {
+        if (cause.wasEvicted()) {
+            evictions.increment();
+        }
+        synchronized (entry) {
+            entry.removed = true;
+            if (entry.pollId != null) {
+                byPollId.remove(new Key(entry.key.getUserId(), entry.pollId), entry.key);
+            }
+            if (entry.state != null) {
+                unindexState(entry);
+            }
+        }
+    }
+
+    private void unindexState(Entry entry) {
+        byState.computeIfPresent(new Key(entry.key.getUserId(), entry.state), (key, signKeys) -> {
+            signKeys.remove(entry.key);
+            return signKeys.isEmpty() ? null : signKeys;
+        });
+    }
+
+    private ResponseEntity<Object> hit(Object body, long obtainedAt) {
+        hits.increment();
+        long ageSeconds = (System.currentTimeMillis() - obtainedAt) / 1000;
+        return ResponseEntity.ok().header(HttpHeaders.AGE, String.valueOf(ageSeconds)).body(body);
+    }
+
+    private static boolean isFresh(long obtainedAt, long ttlMs) {
+        return System.currentTimeMillis() - obtainedAt < ttlMs;
+    }
+
+    private static <T> T successBody(ResponseEntity<?> response, Class<T> type) {
+        return response != null && response.getStatusCode().is2xxSuccessful() && type.isInstance(response.getBody())
+                ? type.cast(response.getBody()) : null;
+    }
+
+    private static PaymentLifecycle snapshot(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return new PaymentLifecycle(entry.key.getId(), entry.hash, entry.state, entry.pollId, entry.signingUrl,
+                    entry.payment, entry.createdAt, entry.updatedAt);
+        }
+    }
+
+    /**
+     * Id (signId, pollId or state) within one user.
+     */
+    @Value
+    private static class Key {
+        String userId;
+        String id;
+    }
+
+    /**
+     * Payment of one user, identified by signId. Fields are guarded by lock of the entry.
+     */
+    private static class Entry {
+        private final Key key;
+        private final long createdAt;
+        private long updatedAt;
+        private String hash;
+        private String state;
+        private String pollId;
+        private String signingUrl;
+        private CreatePaymentResponse payment;
+        private SignResponse signDetail;
+        private long signDetailAt;
+        private FederatedAuthorizationResponse federatedAuth;
+        private String federatedAuthHash;
+        private long federatedAuthAt;
+        private boolean removed;
+
+        private Entry(Key key, long createdAt) {
+            this.key = key;
+            this.createdAt = createdAt;
+            this.updatedAt = createdAt;
+        }
+    }
+}
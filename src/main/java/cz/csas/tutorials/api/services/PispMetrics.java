@@ -0,0 +1,109 @@
+package cz.csas.tutorials.api.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of upstream calls, exported by Actuator (/actuator/prometheus). Latency of inbound requests is
+ * measured by Spring Boot itself (http.server.requests), histograms are enabled in application.properties.
+ * <ul>
+ * <li>pisp.upstream.requests - latency of every PISP call attempt, by endpoint and status class</li>
+ * <li>pisp.auth.token.requests - latency of CSAS IDP token calls, by grant type and outcome</li>
+ * <li>pisp.tokens.expired - rejected access tokens and expired refresh tokens</li>
+ * </ul>
+ */
+@Component
+public class PispMetrics {
+
+    /**
+     * Status of a call aborted or cancelled by this application, e.g. the slower one of hedged calls.
+     */
+    public static final String CANCELLED = "CANCELLED";
+
+    private final MeterRegistry registry;
+
+    @Autowired
+    public PispMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Records one PISP call attempt.
+     *
+     * @param endpoint   name of PISP endpoint
+     * @param status     status class of the response, see {@link #statusOf(HttpStatus)} and {@link #statusOf(Throwable)},
+     *                   or {@link #CANCELLED}
+     * @param startNanos {@link System#nanoTime()} when the call has started
+     */
+    public void recordUpstream(String endpoint, String status, long startNanos) {
+        Timer.builder("pisp.upstream.requests")
+                .description("Latency of PISP API calls")
+                .tag("endpoint", endpoint)
+                .tag("status", status)
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records one call of CSAS IDP token endpoint.
+     *
+     * @param grantType  authorization_code or refresh_token
+     * @param outcome    success, expired or error
+     * @param startNanos {@link System#nanoTime()} when the call has started
+     */
+    public void recordTokenRequest(String grantType, String outcome, long startNanos) {
+        Timer.builder("pisp.auth.token.requests")
+                .description("Latency of CSAS IDP token calls")
+                .tag("grantType", grantType)
+                .tag("outcome", outcome)
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts access token rejected by CSAS (ExpiredAccessTokenException).
+     *
+     * @param endpoint name of PISP endpoint which rejected the token
+     */
+    public void accessTokenExpired(String endpoint) {
+        registry.counter("pisp.tokens.expired", "token", "access", "source", endpoint).increment();
+    }
+
+    /**
+     * Counts refresh token which cannot be used (ExpiredRefreshTokenException).
+     *
+     * @param source rejected (by CSAS IDP) or missing (no refresh token of the user)
+     */
+    public void refreshTokenExpired(String source) {
+        registry.counter("pisp.tokens.expired", "token", "refresh", "source", source).increment();
+    }
+
+    /**
+     * @return status class of response, e.g. 2xx
+     */
+    public static String statusOf(HttpStatus status) {
+        return status.value() / 100 + "xx";
+    }
+
+    /**
+     * @return status class of failed call, IO_ERROR when there is no response, ERROR for other failures (e.g. response
+     * cannot be deserialized)
+     */
+    public static String statusOf(Throwable failure) {
+        if (failure instanceof HttpStatusCodeException) {
+            return statusOf(((HttpStatusCodeException) failure).getStatusCode());
+        }
+        if (failure instanceof ResourceAccessException || failure instanceof IOException) {
+            return "IO_ERROR";
+        }
+        return "ERROR";
+    }
+}
@@ -0,0 +1,44 @@
+package cz.csas.tutorials.api.services;
+
+import lombok.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+
+/**
+ * Prepared call of PISP API - endpoint name, url, method, headers and body (may be null), see {@link PispService}.
+ * Endpoint name identifies the API for retry policy and circuit breaker, see {@link UpstreamGuard}.
+ * Headers common to all calls with the same webapi key are shared (read-only), only authorization and headers specific
+ * to the call (may be null) are kept per request.
+ */
+@Value
+public class PispRequest {
+    public static final String WEB_API_KEY_HEADER = "web-api-key";
+
+    String endpoint;
+    HttpMethod method;
+    String url;
+    String authorization;
+    HttpHeaders commonHeaders;
+    HttpHeaders callHeaders;
+    Object body;
+
+    /**
+     * @return webapi key of the call
+     */
+    public String getWebApiKey() {
+        return commonHeaders.getFirst(WEB_API_KEY_HEADER);
+    }
+
+    /**
+     * Writes all headers of the call to the outgoing request.
+     *
+     * @param target headers of the outgoing request
+     */
+    public void writeHeaders(HttpHeaders target) {
+        target.putAll(commonHeaders);
+        target.set(HttpHeaders.AUTHORIZATION, authorization);
+        if (callHeaders != null) {
+            target.putAll(callHeaders);
+        }
+    }
+}
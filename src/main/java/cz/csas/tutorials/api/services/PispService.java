@@ -1,34 +1,110 @@
 package cz.csas.tutorials.api.services;
 
+import com.fasterxml.jackson.databind.ObjectReader;
 import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
 import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
 import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
 import cz.csas.tutorials.api.model.sign.FinishApiAuthorizationRequest;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignResponse;
 import cz.csas.tutorials.api.model.sign.StartApiAuthorizationRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Calls PISP API. Every call is first prepared as {@link PispRequest} and then executed - either with typed response
+ * ({@link #exchange(PispRequest, Class)}) or as proxied response for the client ({@link #proxy(PispRequest, Class)}).
+ * JSON is (de)serialized by pre-built readers and writers of {@link JsonCodec}. Calls are retried and protected by
+ * circuit breakers of {@link UpstreamGuard} and every attempt is throttled by {@link UpstreamRateLimiter}. Slow GETs
+ * may be hedged by {@link RequestHedger}. Latency of every attempt is recorded by {@link PispMetrics}.
+ * URLs are parsed once at startup ({@link UrlTemplate}) and headers common to all calls are shared, so preparing a call
+ * allocates little more than its URL and authorization.
+ */
 @Service
 public class PispService {
+    private static final ResponseErrorHandler NO_ERROR_HANDLER = new ResponseErrorHandler() {
+        @Override
+        public boolean hasError(ClientHttpResponse response) {
+            return false;
+        }
+
+        @Override
+        public void handleError(ClientHttpResponse response) {
+        }
+    };
+
     private final RestTemplate restTemplate;
-    private final Environment environment;
+    /**
+     * Template for passthrough calls - with no-op error handler, so that error responses are returned as they are too.
+     */
+    private final RestTemplate passthroughTemplate;
+    private final JsonCodec jsonCodec;
+    private final UpstreamGuard upstreamGuard;
+    private final UpstreamRateLimiter rateLimiter;
+    private final RequestHedger requestHedger;
+    private final PispMetrics metrics;
+    private final boolean passthrough;
+    private final List<String> forwardedHeaders;
+    private final UrlTemplate accountsUrl;
+    private final UrlTemplate balanceCheckUrl;
+    private final UrlTemplate createPaymentUrl;
+    private final UrlTemplate apiAuthUrl;
+    private final UrlTemplate federatedAuthUrl;
+    private final UrlTemplate pollAuthUrl;
+    /**
+     * Read-only headers common to all calls, by webapi key (in practice one key configured for the application).
+     */
+    private final ConcurrentMap<String, HttpHeaders> commonHeaders = new ConcurrentHashMap<>();
 
     @Autowired
-    public PispService(RestTemplate restTemplate, Environment environment) {
+    public PispService(RestTemplate restTemplate, Environment environment, JsonCodec jsonCodec, UpstreamGuard upstreamGuard,
+                       UpstreamRateLimiter rateLimiter, RequestHedger requestHedger, PispMetrics metrics) {
         this.restTemplate = restTemplate;
-        this.environment = environment;
+        this.jsonCodec = jsonCodec;
+        this.upstreamGuard = upstreamGuard;
+        this.rateLimiter = rateLimiter;
+        this.requestHedger = requestHedger;
+        this.metrics = metrics;
+        this.passthrough = environment.getRequiredProperty("pispPassthrough", Boolean.class);
+        this.passthroughTemplate = new RestTemplate(restTemplate.getRequestFactory());
+        passthroughTemplate.setUriTemplateHandler(restTemplate.getUriTemplateHandler());
+        passthroughTemplate.setErrorHandler(NO_ERROR_HANDLER);
+        this.forwardedHeaders = Arrays.asList(environment.getRequiredProperty("pispForwardedHeaders", String[].class));
+        this.accountsUrl = new UrlTemplate(environment.getRequiredProperty("pispAccountsUrl"));
+        this.balanceCheckUrl = new UrlTemplate(environment.getRequiredProperty("pispAccBalanceCheckUrl"));
+        this.createPaymentUrl = new UrlTemplate(environment.getRequiredProperty("pispCreatePaymentUrl"));
+        this.apiAuthUrl = new UrlTemplate(environment.getRequiredProperty("pispApiAuthUrl"));
+        this.federatedAuthUrl = new UrlTemplate(environment.getRequiredProperty("pispFederatedAuthUrl"));
+        this.pollAuthUrl = new UrlTemplate(environment.getRequiredProperty("pispPollAuthUrl"));
     }
 
     /**
@@ -43,28 +119,30 @@ public class PispService {
      * @return ResponseEntity with accounts in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> getAccounts(String token, String webApiKey, String page, String size, String sort, String order) throws ExpiredAccessTokenException {
-        Map<String, String> uriParams = new HashMap<>();
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispAccountsUrl"))
-                .queryParam("page", page)
-                .queryParam("size", size)
-                .queryParam("sort", sort)
-                .queryParam("order", order);
-        String pispAccountsUrl = builder.buildAndExpand(uriParams).toString();
+    public ResponseEntity<AccountsResponse> getAccounts(String token, String webApiKey, String page, String size, String sort, String order) throws ExpiredAccessTokenException {
+        return exchange(prepareGetAccounts(token, webApiKey, page, size, sort, order, null), AccountsResponse.class);
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<Object> entity = new HttpEntity<>(headers);
-        try {
-            return restTemplate.exchange(pispAccountsUrl, HttpMethod.GET, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
+    /**
+     * Prepares call of PISP accounts API, conditional when ETag of previous response is known
+     *
+     * @param token       access token
+     * @param webApiKey   webapi key to connect to webapi
+     * @param page        number for paging (paging and sorting works only in production, not sandbox environment)
+     * @param size        of page
+     * @param sort        for results sorting
+     * @param order       asc/desc
+     * @param ifNoneMatch ETag of previous response, may be null - CSAS then answers 304 Not Modified when accounts match the ETag
+     * @return prepared call
+     */
+    public PispRequest prepareGetAccounts(String token, String webApiKey, String page, String size, String sort, String order, String ifNoneMatch) {
+        String pispAccountsUrl = accountsUrl.withQuery("page", page, "size", size, "sort", sort, "order", order);
+        HttpHeaders headers = null;
+        if (ifNoneMatch != null) {
+            headers = new HttpHeaders();
+            headers.setIfNoneMatch(ifNoneMatch);
         }
+        return new PispRequest("accounts", HttpMethod.GET, pispAccountsUrl, "Bearer " + token, commonHeaders(webApiKey), headers, null);
     }
 
     /**
@@ -76,23 +154,20 @@ public class PispService {
      * @return ResponseEntity with balance check in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> balanceCheck(String token, String webApiKey, BalanceCheckRequest request) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispAccBalanceCheckUrl"));
-        String pispAccBalanceCheckUrl = builder.build().toString();
+    public ResponseEntity<BalanceCheckResponse> balanceCheck(String token, String webApiKey, BalanceCheckRequest request) throws ExpiredAccessTokenException {
+        return exchange(prepareBalanceCheck(token, webApiKey, request), BalanceCheckResponse.class);
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<BalanceCheckRequest> entity = new HttpEntity<>(request, headers);
-        try {
-            return restTemplate.exchange(pispAccBalanceCheckUrl, HttpMethod.POST, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+    /**
+     * Prepares call of PISP balance check API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param request   containing mandatory fields for balance check
+     * @return prepared call
+     */
+    public PispRequest prepareBalanceCheck(String token, String webApiKey, BalanceCheckRequest request) {
+        return new PispRequest("balanceCheck", HttpMethod.POST, balanceCheckUrl.expand(), "Bearer " + token, commonHeaders(webApiKey), null, request);
     }
 
     /**
@@ -104,23 +179,20 @@ public class PispService {
      * @return ResponseEntity with create payment in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> createPayment(String token, String webApiKey, CreatePaymentRequest request) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispCreatePaymentUrl"));
-        String pispCreatePaymentUrl = builder.build().toString();
+    public ResponseEntity<CreatePaymentResponse> createPayment(String token, String webApiKey, CreatePaymentRequest request) throws ExpiredAccessTokenException {
+        return exchange(prepareCreatePayment(token, webApiKey, request), CreatePaymentResponse.class);
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<CreatePaymentRequest> entity = new HttpEntity<>(request, headers);
-        try {
-            return restTemplate.exchange(pispCreatePaymentUrl, HttpMethod.POST, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+    /**
+     * Prepares call of PISP create payment API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param request   containing mandatory fields for create payment
+     * @return prepared call
+     */
+    public PispRequest prepareCreatePayment(String token, String webApiKey, CreatePaymentRequest request) {
+        return new PispRequest("createPayment", HttpMethod.POST, createPaymentUrl.expand(), "Bearer " + token, commonHeaders(webApiKey), null, request);
     }
 
     /**
@@ -132,22 +204,20 @@ public class PispService {
      * @return ResponseEntity with detail of the authorization in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> getApiAuthorization(String token, String webApiKey, String signId) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispApiAuthUrl"));
-        String pispApiAuthUrl = builder.buildAndExpand(signId).toString();
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<Object> entity = new HttpEntity<>(headers);
-        try {
-            return restTemplate.exchange(pispApiAuthUrl, HttpMethod.GET, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+    public ResponseEntity<SignResponse> getApiAuthorization(String token, String webApiKey, String signId) throws ExpiredAccessTokenException {
+        return exchange(prepareGetApiAuthorization(token, webApiKey, signId), SignResponse.class);
+    }
+
+    /**
+     * Prepares call of PISP detail of the authorization API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param signId    of created payment
+     * @return prepared call
+     */
+    public PispRequest prepareGetApiAuthorization(String token, String webApiKey, String signId) {
+        return new PispRequest("getApiAuthorization", HttpMethod.GET, apiAuthUrl.expand(signId), "Bearer " + token, commonHeaders(webApiKey), null, null);
     }
 
     /**
@@ -160,22 +230,21 @@ public class PispService {
      * @return ResponseEntity with initiation of payment authorization in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> startApiAuthorization(String token, String webApiKey, String signId, StartApiAuthorizationRequest request) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispApiAuthUrl"));
-        String pispApiAuthUrl = builder.buildAndExpand(signId).toString();
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<Object> entity = new HttpEntity<>(request, headers);
-        try {
-            return restTemplate.exchange(pispApiAuthUrl, HttpMethod.POST, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+    public ResponseEntity<SignResponse> startApiAuthorization(String token, String webApiKey, String signId, StartApiAuthorizationRequest request) throws ExpiredAccessTokenException {
+        return exchange(prepareStartApiAuthorization(token, webApiKey, signId, request), SignResponse.class);
+    }
+
+    /**
+     * Prepares call of PISP initiation of payment authorization API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param signId    of created payment
+     * @param request   containing mandatory fields for initiation of payment authorization
+     * @return prepared call
+     */
+    public PispRequest prepareStartApiAuthorization(String token, String webApiKey, String signId, StartApiAuthorizationRequest request) {
+        return new PispRequest("startApiAuthorization", HttpMethod.POST, apiAuthUrl.expand(signId), "Bearer " + token, commonHeaders(webApiKey), null, request);
     }
 
     /**
@@ -188,22 +257,21 @@ public class PispService {
      * @return ResponseEntity with payment authorization finalization in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> finishApiAuthorization(String token, String webApiKey, String signId, FinishApiAuthorizationRequest request) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispApiAuthUrl"));
-        String pispApiAuthUrl = builder.buildAndExpand(signId).toString();
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<Object> entity = new HttpEntity<>(request, headers);
-        try {
-            return restTemplate.exchange(pispApiAuthUrl, HttpMethod.PUT, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+    public ResponseEntity<SignResponse> finishApiAuthorization(String token, String webApiKey, String signId, FinishApiAuthorizationRequest request) throws ExpiredAccessTokenException {
+        return exchange(prepareFinishApiAuthorization(token, webApiKey, signId, request), SignResponse.class);
+    }
+
+    /**
+     * Prepares call of PISP payment authorization finalization API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param signId    of created payment
+     * @param request   containing mandatory fields for payment authorization finalization
+     * @return prepared call
+     */
+    public PispRequest prepareFinishApiAuthorization(String token, String webApiKey, String signId, FinishApiAuthorizationRequest request) {
+        return new PispRequest("finishApiAuthorization", HttpMethod.PUT, apiAuthUrl.expand(signId), "Bearer " + token, commonHeaders(webApiKey), null, request);
     }
 
     /**
@@ -217,23 +285,25 @@ public class PispService {
      * @return ResponseEntity with obtain authorization url for federated authorization in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> getFederatedAuthorization(String token, String webApiKey, String callbackUri, String signId, String hash) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispFederatedAuthUrl"));
-        String pispFederatedAuthUrl = builder.buildAndExpand(signId, hash).toString();
+    public ResponseEntity<FederatedAuthorizationResponse> getFederatedAuthorization(String token, String webApiKey, String callbackUri, String signId, String hash) throws ExpiredAccessTokenException {
+        return exchange(prepareGetFederatedAuthorization(token, webApiKey, callbackUri, signId, hash), FederatedAuthorizationResponse.class);
+    }
+
+    /**
+     * Prepares call of PISP obtain authorization url for federated authorization API
+     *
+     * @param token       access token
+     * @param webApiKey   webapi key to connect to webapi
+     * @param callbackUri URL for redirection by CSAS after successful payment authorization
+     * @param signId      of created payment
+     * @param hash        of created payment
+     * @return prepared call
+     */
+    public PispRequest prepareGetFederatedAuthorization(String token, String webApiKey, String callbackUri, String signId, String hash) {
         HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
         headers.add("Callback-Uri", callbackUri);
-        HttpEntity<Object> entity = new HttpEntity<>(headers);
-        try {
-            return restTemplate.exchange(pispFederatedAuthUrl, HttpMethod.GET, entity, Object.class);
-        } catch (HttpClientErrorException ex) {
-            if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
-                throw new ExpiredAccessTokenException("Token has expired.");
-            } else {
-                throw ex;
-            }
-        }
+        return new PispRequest("getFederatedAuthorization", HttpMethod.GET, federatedAuthUrl.expand(signId, hash), "Bearer " + token,
+                commonHeaders(webApiKey), headers, null);
     }
 
     /**
@@ -245,21 +315,216 @@ public class PispService {
      * @return ResponseEntity with poll authorization state in body
      * @throws ExpiredAccessTokenException if access token is expired
      */
-    public ResponseEntity<Object> pollAuthorizationState(String token, String webApiKey, String pollId) throws ExpiredAccessTokenException {
-        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(environment.getRequiredProperty("pispPollAuthUrl"));
-        String pispPollAuthUrl = builder.buildAndExpand(pollId).toString();
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("web-api-key", webApiKey);
-        HttpEntity<Object> entity = new HttpEntity<>(headers);
+    public ResponseEntity<PollStateResponse> pollAuthorizationState(String token, String webApiKey, String pollId) throws ExpiredAccessTokenException {
+        return exchange(preparePollAuthorizationState(token, webApiKey, pollId), PollStateResponse.class);
+    }
+
+    /**
+     * Prepares call of PISP poll authorization state API
+     *
+     * @param token     access token
+     * @param webApiKey webapi key to connect to webapi
+     * @param pollId    of authorization
+     * @return prepared call
+     */
+    public PispRequest preparePollAuthorizationState(String token, String webApiKey, String pollId) {
+        return new PispRequest("pollAuthorizationState", HttpMethod.GET, pollAuthUrl.expand(pollId), "Bearer " + token, commonHeaders(webApiKey), null, null);
+    }
+
+    /**
+     * Calls PISP API and deserializes response to given type.
+     *
+     * @param request      prepared call
+     * @param responseType type of response body
+     * @param <T>          type of response body
+     * @return ResponseEntity with typed body (null for responses without body, e.g. 304 Not Modified)
+     * @throws ExpiredAccessTokenException if access token is expired
+     */
+    public <T> ResponseEntity<T> exchange(PispRequest request, Class<T> responseType) throws ExpiredAccessTokenException {
+        ObjectReader reader = jsonCodec.reader(responseType);
+        return execute(request, response -> {
+            InputStream body = nonEmptyBody(response);
+            T value = body != null ? reader.readValue(body) : null;
+            return new ResponseEntity<>(value, response.getHeaders(), response.getStatusCode());
+        });
+    }
+
+    /**
+     * Calls PISP API for the client of this application - only selected upstream headers are returned. In passthrough
+     * mode the response body is not deserialized, upstream status and bytes are returned as they are, also for error
+     * responses (except 403, which means expired access token). Failed attempts (5xx, 429) are still retried.
+     *
+     * @param request      prepared call
+     * @param responseType type of response body (when not in passthrough mode)
+     * @return ResponseEntity with typed body, or with raw bytes in passthrough mode
+     * @throws ExpiredAccessTokenException if access token is expired
+     */
+    public ResponseEntity<Object> proxy(PispRequest request, Class<?> responseType) throws ExpiredAccessTokenException {
+        if (passthrough) {
+            try {
+                ResponseEntity<Object> response = execute(request, passthroughTemplate, upstreamResponse -> {
+                    ResponseEntity<Object> relayed = new ResponseEntity<>(StreamUtils.copyToByteArray(upstreamResponse.getBody()),
+                            selectForwardedHeaders(upstreamResponse.getHeaders(), true), upstreamResponse.getStatusCode());
+                    throwIfFailed(relayed);
+                    return relayed;
+                });
+                if (response.getStatusCode() == HttpStatus.FORBIDDEN) {
+                    metrics.accessTokenExpired(request.getEndpoint());
+                    throw new ExpiredAccessTokenException("Token has expired.");
+                }
+                return response;
+            } catch (HttpStatusCodeException ex) {
+                // 5xx or 429 of the last attempt
+                return new ResponseEntity<>(ex.getResponseBodyAsByteArray(), ex.getResponseHeaders(), ex.getStatusCode());
+            }
+        }
+        ResponseEntity<?> response = exchange(request, responseType);
+        return new ResponseEntity<>(response.getBody(), selectForwardedHeaders(response.getHeaders(), false), response.getStatusCode());
+    }
+
+    private <T> ResponseEntity<T> execute(PispRequest request, ResponseExtractor<ResponseEntity<T>> responseExtractor) throws ExpiredAccessTokenException {
+        return execute(request, restTemplate, responseExtractor);
+    }
+
+    private <T> ResponseEntity<T> execute(PispRequest request, RestTemplate restTemplate, ResponseExtractor<ResponseEntity<T>> responseExtractor) throws ExpiredAccessTokenException {
         try {
-            return restTemplate.exchange(pispPollAuthUrl, HttpMethod.GET, entity, Object.class);
+            UpstreamRateLimiter.Priority priority = UpstreamRateLimiter.priorityOf(request);
+            return upstreamGuard.call(request.getEndpoint(),
+                    () -> rateLimiter.acquire(request.getWebApiKey(), priority),
+                    () -> request.getMethod() == HttpMethod.GET
+                            ? requestHedger.call(request.getEndpoint(),
+                            () -> rateLimiter.tryAcquire(request.getWebApiKey(), priority),
+                            () -> timedExecute(request, restTemplate, responseExtractor))
+                            : timedExecute(request, restTemplate, responseExtractor));
         } catch (HttpClientErrorException ex) {
             if (HttpStatus.FORBIDDEN.equals(ex.getStatusCode())) {
+                metrics.accessTokenExpired(request.getEndpoint());
                 throw new ExpiredAccessTokenException("Token has expired.");
             } else {
                 throw ex;
             }
         }
     }
+
+    private <T> ResponseEntity<T> timedExecute(PispRequest request, RestTemplate restTemplate, ResponseExtractor<ResponseEntity<T>> responseExtractor) {
+        long start = System.nanoTime();
+        try {
+            ResponseEntity<T> response = restTemplate.execute(request.getUrl(), request.getMethod(), requestCallback(request), responseExtractor);
+            metrics.recordUpstream(request.getEndpoint(), PispMetrics.statusOf(response.getStatusCode()), start);
+            return response;
+        } catch (RuntimeException e) {
+            // slower one of hedged calls has been aborted by this application, not failed by the upstream
+            AbortableRequestFactory.AbortHandle handle = AbortableRequestFactory.currentHandle();
+            metrics.recordUpstream(request.getEndpoint(), handle != null && handle.isAborted() ? PispMetrics.CANCELLED : PispMetrics.statusOf(e), start);
+            throw e;
+        }
+    }
+
+    private RequestCallback requestCallback(PispRequest request) {
+        return clientRequest -> {
+            HttpHeaders headers = clientRequest.getHeaders();
+            request.writeHeaders(headers);
+            if (request.getBody() != null) {
+                headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+                jsonCodec.writer(request.getBody().getClass()).writeValue(clientRequest.getBody(), request.getBody());
+            }
+        };
+    }
+
+    /**
+     * @return read-only headers common to all calls with given webapi key, incl. Accept
+     */
+    private HttpHeaders commonHeaders(String webApiKey) {
+        HttpHeaders headers = webApiKey != null ? commonHeaders.get(webApiKey) : null;
+        if (headers == null) {
+            headers = new HttpHeaders();
+            headers.add(PispRequest.WEB_API_KEY_HEADER, webApiKey);
+            headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            headers = HttpHeaders.readOnlyHttpHeaders(headers);
+            if (webApiKey != null) {
+                commonHeaders.putIfAbsent(webApiKey, headers);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Fails passthrough response the same way as the default error handler would, for {@link UpstreamGuard} to retry
+     * and count it as failure - 5xx and 429. Response bytes and headers are kept in the exception.
+     */
+    private static void throwIfFailed(ResponseEntity<Object> response) {
+        HttpStatus status = response.getStatusCode();
+        byte[] body = (byte[]) response.getBody();
+        if (status.is5xxServerError()) {
+            throw new HttpServerErrorException(status, status.getReasonPhrase(), response.getHeaders(), body, null);
+        }
+        if (status == HttpStatus.TOO_MANY_REQUESTS) {
+            throw new HttpClientErrorException(status, status.getReasonPhrase(), response.getHeaders(), body, null);
+        }
+    }
+
+    /**
+     * Describes response for debug log - raw body of passthrough response is decoded as UTF-8 text (instead of printing
+     * the array reference). The description is created only when the log message is written.
+     *
+     * @param response response returned by {@link #proxy(PispRequest, Class)}
+     * @return object describing the response by its toString
+     */
+    public static Object describe(ResponseEntity<?> response) {
+        return new ResponseDescription(response);
+    }
+
+    /**
+     * @return response body stream, or null when response has no body
+     */
+    private static InputStream nonEmptyBody(ClientHttpResponse response) throws IOException {
+        HttpStatus status = response.getStatusCode();
+        if (status.is1xxInformational() || status == HttpStatus.NO_CONTENT || status == HttpStatus.NOT_MODIFIED
+                || response.getHeaders().getContentLength() == 0) {
+            return null;
+        }
+        PushbackInputStream body = new PushbackInputStream(response.getBody());
+        int firstByte = body.read();
+        if (firstByte == -1) {
+            return null;
+        }
+        body.unread(firstByte);
+        return body;
+    }
+
+    boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * @return upstream headers configured to be returned to the client
+     */
+    HttpHeaders selectForwardedHeaders(HttpHeaders upstreamHeaders, boolean includeContentType) {
+        HttpHeaders headers = new HttpHeaders();
+        for (String name : forwardedHeaders) {
+            List<String> values = upstreamHeaders.get(name);
+            if (values != null && (includeContentType || !HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name))) {
+                headers.put(name, values);
+            }
+        }
+        return headers;
+    }
+
+    private static class ResponseDescription {
+        private final ResponseEntity<?> response;
+
+        ResponseDescription(ResponseEntity<?> response) {
+            this.response = response;
+        }
+
+        @Override
+        public String toString() {
+            if (response == null || !(response.getBody() instanceof byte[])) {
+                return String.valueOf(response);
+            }
+            byte[] body = (byte[]) response.getBody();
+            return "<" + response.getStatusCode() + "," + new String(body, StandardCharsets.UTF_8) + " (" + body.length
+                    + " bytes)," + response.getHeaders() + ">";
+        }
+    }
 }
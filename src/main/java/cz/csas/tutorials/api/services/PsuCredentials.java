@@ -0,0 +1,73 @@
+package cz.csas.tutorials.api.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+
+/**
+ * Identifies users (PSUs) of the application. At the end of authorization, the user gets a random secret credential
+ * in cookie {@link #COOKIE_NAME}; the user id under which tokens, cached responses and payments are kept is derived
+ * from it by SHA-256, so the id itself (e.g. in logs or in the token store) does not let anybody act as the user.
+ */
+@Service
+public class PsuCredentials {
+
+    public static final String COOKIE_NAME = "PSU";
+
+    private static final int CREDENTIAL_BYTES = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final long cookieMaxAgeSec;
+
+    public PsuCredentials(@Value("${psuCookieMaxAgeSec}") long cookieMaxAgeSec) {
+        this.cookieMaxAgeSec = cookieMaxAgeSec;
+    }
+
+    /**
+     * @return new random credential
+     */
+    public String newCredential() {
+        byte[] bytes = new byte[CREDENTIAL_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @param credential credential received from the user, may be null
+     * @return id of the user, null if there is no credential
+     */
+    public String userIdOf(String credential) {
+        if (StringUtils.isEmpty(credential)) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(credential.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param credential credential of the user
+     * @param secure     true if the cookie should be sent over https only
+     * @return value of Set-Cookie header
+     */
+    public String cookie(String credential, boolean secure) {
+        return ResponseCookie.from(COOKIE_NAME, credential)
+                .httpOnly(true)
+                .secure(secure)
+                .path("/")
+                .maxAge(Duration.ofSeconds(cookieMaxAgeSec))
+                .build()
+                .toString();
+    }
+}
@@ -0,0 +1,225 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
+import cz.csas.tutorials.api.model.sign.FinishApiAuthorizationRequest;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignResponse;
+import cz.csas.tutorials.api.model.sign.StartApiAuthorizationRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking variant of {@link PispService}. Calls are prepared by {@link PispService} and executed by {@link WebClient},
+ * no thread waits for CSAS response. Expired access token is signalled as {@link ExpiredAccessTokenException} error.
+ * Calls are protected by the same {@link UpstreamGuard}, {@link UpstreamRateLimiter} and {@link RequestHedger} as
+ * blocking ones; only a call which has to wait for rate limiter permit is moved to elastic scheduler for the wait.
+ * Latency of calls is recorded by {@link PispMetrics}.
+ */
+@Service
+public class ReactivePispService {
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final WebClient webClient;
+    private final PispService pispService;
+    private final JsonCodec jsonCodec;
+    private final UpstreamGuard upstreamGuard;
+    private final UpstreamRateLimiter rateLimiter;
+    private final RequestHedger requestHedger;
+    private final PispMetrics metrics;
+
+    @Autowired
+    public ReactivePispService(WebClient pispWebClient, PispService pispService, JsonCodec jsonCodec, UpstreamGuard upstreamGuard,
+                               UpstreamRateLimiter rateLimiter, RequestHedger requestHedger, PispMetrics metrics) {
+        this.webClient = pispWebClient;
+        this.pispService = pispService;
+        this.jsonCodec = jsonCodec;
+        this.upstreamGuard = upstreamGuard;
+        this.rateLimiter = rateLimiter;
+        this.requestHedger = requestHedger;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calls PISP accounts API, see {@link PispService#getAccounts(String, String, String, String, String, String)}
+     */
+    public Mono<ResponseEntity<AccountsResponse>> getAccounts(String token, String webApiKey, String page, String size, String sort, String order) {
+        return exchange(pispService.prepareGetAccounts(token, webApiKey, page, size, sort, order, null), AccountsResponse.class);
+    }
+
+    /**
+     * Calls PISP balance check API, see {@link PispService#balanceCheck(String, String, BalanceCheckRequest)}
+     */
+    public Mono<ResponseEntity<BalanceCheckResponse>> balanceCheck(String token, String webApiKey, BalanceCheckRequest request) {
+        return exchange(pispService.prepareBalanceCheck(token, webApiKey, request), BalanceCheckResponse.class);
+    }
+
+    /**
+     * Calls PISP create payment API, see {@link PispService#createPayment(String, String, CreatePaymentRequest)}
+     */
+    public Mono<ResponseEntity<CreatePaymentResponse>> createPayment(String token, String webApiKey, CreatePaymentRequest request) {
+        return exchange(pispService.prepareCreatePayment(token, webApiKey, request), CreatePaymentResponse.class);
+    }
+
+    /**
+     * Calls PISP detail of the authorization API, see {@link PispService#getApiAuthorization(String, String, String)}
+     */
+    public Mono<ResponseEntity<SignResponse>> getApiAuthorization(String token, String webApiKey, String signId) {
+        return exchange(pispService.prepareGetApiAuthorization(token, webApiKey, signId), SignResponse.class);
+    }
+
+    /**
+     * Calls PISP initiation of payment authorization API,
+     * see {@link PispService#startApiAuthorization(String, String, String, StartApiAuthorizationRequest)}
+     */
+    public Mono<ResponseEntity<SignResponse>> startApiAuthorization(String token, String webApiKey, String signId, StartApiAuthorizationRequest request) {
+        return exchange(pispService.prepareStartApiAuthorization(token, webApiKey, signId, request), SignResponse.class);
+    }
+
+    /**
+     * Calls PISP payment authorization finalization API,
+     * see {@link PispService#finishApiAuthorization(String, String, String, FinishApiAuthorizationRequest)}
+     */
+    public Mono<ResponseEntity<SignResponse>> finishApiAuthorization(String token, String webApiKey, String signId, FinishApiAuthorizationRequest request) {
+        return exchange(pispService.prepareFinishApiAuthorization(token, webApiKey, signId, request), SignResponse.class);
+    }
+
+    /**
+     * Calls PISP obtain authorization url for federated authorization API,
+     * see {@link PispService#getFederatedAuthorization(String, String, String, String, String)}
+     */
+    public Mono<ResponseEntity<FederatedAuthorizationResponse>> getFederatedAuthorization(String token, String webApiKey, String callbackUri, String signId, String hash) {
+        return exchange(pispService.prepareGetFederatedAuthorization(token, webApiKey, callbackUri, signId, hash), FederatedAuthorizationResponse.class);
+    }
+
+    /**
+     * Calls PISP poll authorization state API, see {@link PispService#pollAuthorizationState(String, String, String)}
+     */
+    public Mono<ResponseEntity<PollStateResponse>> pollAuthorizationState(String token, String webApiKey, String pollId) {
+        return exchange(pispService.preparePollAuthorizationState(token, webApiKey, pollId), PollStateResponse.class);
+    }
+
+    /**
+     * Calls PISP API and deserializes response to given type.
+     *
+     * @param request      prepared call
+     * @param responseType type of response body
+     * @param <T>          type of response body
+     * @return ResponseEntity with typed body (null for responses without body)
+     */
+    public <T> Mono<ResponseEntity<T>> exchange(PispRequest request, Class<T> responseType) {
+        ObjectReader reader = jsonCodec.reader(responseType);
+        return execute(request).flatMap(response -> Mono.fromCallable(() -> {
+            T body = response.getBody().length > 0 ? reader.readValue(response.getBody()) : null;
+            return new ResponseEntity<>(body, response.getHeaders(), response.getStatusCode());
+        }));
+    }
+
+    /**
+     * Calls PISP API for the client of this application, see {@link PispService#proxy(PispRequest, Class)}
+     *
+     * @param request      prepared call
+     * @param responseType type of response body (when not in passthrough mode)
+     * @return ResponseEntity with typed body, or with raw bytes in passthrough mode
+     */
+    public Mono<ResponseEntity<Object>> proxy(PispRequest request, Class<?> responseType) {
+        boolean passthrough = pispService.isPassthrough();
+        ObjectReader reader = jsonCodec.reader(responseType);
+        return execute(request).flatMap(response -> Mono.fromCallable(() -> {
+            Object body = response.getBody();
+            if (!passthrough) {
+                body = response.getBody().length > 0 ? reader.readValue(response.getBody()) : null;
+            }
+            return new ResponseEntity<>(body, pispService.selectForwardedHeaders(response.getHeaders(), passthrough), response.getStatusCode());
+        }));
+    }
+
+    private Mono<ResponseEntity<byte[]>> execute(PispRequest request) {
+        UpstreamRateLimiter.Priority priority = UpstreamRateLimiter.priorityOf(request);
+        return upstreamGuard.callReactive(request.getEndpoint(), throttle(request),
+                request.getMethod() == HttpMethod.GET
+                        ? requestHedger.callReactive(request.getEndpoint(),
+                        () -> rateLimiter.tryAcquire(request.getWebApiKey(), priority), () -> timedExecute(request))
+                        : timedExecute(request));
+    }
+
+    /**
+     * Takes rate limiter permit without thread switch when it is available, otherwise waits for it on elastic scheduler.
+     */
+    private Mono<Void> throttle(PispRequest request) {
+        UpstreamRateLimiter.Priority priority = UpstreamRateLimiter.priorityOf(request);
+        return Mono.defer(() -> rateLimiter.tryAcquire(request.getWebApiKey(), priority)
+                ? Mono.<Void>empty()
+                : Mono.<Void>fromRunnable(() -> rateLimiter.acquire(request.getWebApiKey(), priority)).subscribeOn(Schedulers.elastic()));
+    }
+
+    private Mono<ResponseEntity<byte[]>> timedExecute(PispRequest request) {
+        WebClient.RequestBodySpec spec = webClient.method(request.getMethod())
+                .uri(request.getUrl())
+                .headers(request::writeHeaders);
+        WebClient.RequestHeadersSpec<?> call = spec;
+        if (request.getBody() != null) {
+            try {
+                byte[] body = jsonCodec.writer(request.getBody().getClass()).writeValueAsBytes(request.getBody());
+                call = spec.contentType(MediaType.APPLICATION_JSON_UTF8).syncBody(body);
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
+        }
+        WebClient.RequestHeadersSpec<?> exchange = call;
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            AtomicBoolean recorded = new AtomicBoolean();
+            return exchange.exchange()
+                    .doOnError(e -> {
+                        if (recorded.compareAndSet(false, true)) {
+                            metrics.recordUpstream(request.getEndpoint(), PispMetrics.statusOf(e), start);
+                        }
+                    })
+                    .flatMap(response -> response.bodyToMono(byte[].class)
+                            .defaultIfEmpty(EMPTY_BODY)
+                            .flatMap(body -> {
+                                HttpStatus status = response.statusCode();
+                                if (recorded.compareAndSet(false, true)) {
+                                    metrics.recordUpstream(request.getEndpoint(), PispMetrics.statusOf(status), start);
+                                }
+                                if (status == HttpStatus.FORBIDDEN) {
+                                    metrics.accessTokenExpired(request.getEndpoint());
+                                    return Mono.error(new ExpiredAccessTokenException("Token has expired."));
+                                }
+                                HttpHeaders headers = response.headers().asHttpHeaders();
+                                if (status.isError()) {
+                                    return Mono.error(new WebClientResponseException(status.value() + " " + status.getReasonPhrase(),
+                                            status.value(), status.getReasonPhrase(), headers, body, StandardCharsets.UTF_8));
+                                }
+                                return Mono.just(new ResponseEntity<>(body, headers, status));
+                            }))
+                    // slower one of hedged calls (or call of a client which has gone), not failed by the upstream
+                    .doOnCancel(() -> {
+                        if (recorded.compareAndSet(false, true)) {
+                            metrics.recordUpstream(request.getEndpoint(), PispMetrics.CANCELLED, start);
+                        }
+                    });
+        });
+    }
+}
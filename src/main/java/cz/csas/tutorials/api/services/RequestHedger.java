@@ -0,0 +1,264 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.diagnostics.HedgingStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Hedged requests of idempotent PISP GETs (opt-in per endpoint). The call runs in the calling thread; when it has not
+ * finished within the hedge delay, the same request is sent once more from a hedging thread. Whichever returns first
+ * is used and the other one is aborted (see {@link AbortableRequestFactory}). Hedge delay is a percentile of recent
+ * latencies of the endpoint, so only the slowest calls are hedged. Hedges are limited by a budget - every call adds
+ * configured percent of a hedge, so extra load stays within that percent of traffic - and every hedge takes its own
+ * rate limiter permit, it is not sent when no permit is available right away.
+ */
+@Component
+@Slf4j
+public class RequestHedger {
+
+    private static final int LATENCY_WINDOW = 128;
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_BUDGET = 10;
+
+    private final ConcurrentMap<String, EndpointHedging> endpoints = new ConcurrentHashMap<>();
+    private final int percentile;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final double budgetPerCall;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService executor;
+
+    @Autowired
+    public RequestHedger(Environment environment) {
+        this.percentile = environment.getRequiredProperty("pispHedgePercentile", Integer.class);
+        this.minDelayMs = environment.getRequiredProperty("pispHedgeMinDelayMs", Long.class);
+        this.maxDelayMs = environment.getRequiredProperty("pispHedgeMaxDelayMs", Long.class);
+        this.budgetPerCall = environment.getRequiredProperty("pispHedgeBudgetPercent", Double.class) / 100;
+        for (String endpoint : environment.getRequiredProperty("pispHedgeEndpoints", String[].class)) {
+            endpoints.put(endpoint, new EndpointHedging());
+        }
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        AtomicInteger threadNumber = new AtomicInteger();
+        // hedge is not sent when all threads are busy, it would come too late anyway
+        this.executor = new ThreadPoolExecutor(0, environment.getRequiredProperty("pispHedgeThreads", Integer.class),
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "hedge-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executes the call, hedged if hedging is enabled for the endpoint. The call must be idempotent.
+     *
+     * @param endpoint    name of PISP endpoint
+     * @param hedgePermit takes rate limiter permit for the hedge without waiting, false if there is none
+     * @param call        upstream call made through {@link AbortableRequestFactory}
+     * @param <T>         type of result
+     * @return result of the call which has returned first
+     */
+    public <T> T call(String endpoint, BooleanSupplier hedgePermit, Supplier<T> call) {
+        EndpointHedging hedging = endpoints.get(endpoint);
+        if (hedging == null) {
+            return call.get();
+        }
+        hedging.onCall();
+        long start = System.nanoTime();
+        AbortableRequestFactory.AbortHandle primary = new AbortableRequestFactory.AbortHandle();
+        AbortableRequestFactory.AbortHandle hedge = new AbortableRequestFactory.AbortHandle();
+        CompletableFuture<T> hedgeResult = new CompletableFuture<>();
+        ScheduledFuture<?> hedgeStart = timer.schedule(() -> sendHedge(hedging, hedgePermit, call, primary, hedge, hedgeResult),
+                hedging.delayMs(), TimeUnit.MILLISECONDS);
+
+        AbortableRequestFactory.bind(primary);
+        try {
+            T result = call.get();
+            hedgeStart.cancel(false);
+            hedgeResult.cancel(false);
+            hedge.abort();
+            hedging.record(System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            hedgeStart.cancel(false);
+            if (!hedgeStart.isCancelled() && !hedgeResult.isCompletedExceptionally()) {
+                // hedge has been sent - it has won and aborted this call, or this call failed and hedge may succeed
+                try {
+                    T result = hedgeResult.join();
+                    hedging.record(System.nanoTime() - start);
+                    return result;
+                } catch (CompletionException hedgeFailure) {
+                    log.debug("Hedged PISP {} call failed too: {}", endpoint, hedgeFailure.getCause());
+                }
+            }
+            throw e;
+        } finally {
+            AbortableRequestFactory.unbind();
+        }
+    }
+
+    /**
+     * Reactive variant of {@link #call(String, BooleanSupplier, Supplier)} - the hedge is subscribed by timer after the hedge delay,
+     * whichever call emits first is used and the other one is cancelled. When the call fails before the hedge has been
+     * sent, the failure is returned; once the hedge has been sent, its outcome decides.
+     *
+     * @param endpoint    name of PISP endpoint
+     * @param hedgePermit takes rate limiter permit for the hedge without waiting, false if there is none
+     * @param call        creates upstream call, invoked for the primary call and for the hedge
+     * @param <T>         type of result
+     * @return result of the call which has returned first
+     */
+    public <T> Mono<T> callReactive(String endpoint, BooleanSupplier hedgePermit, Supplier<Mono<T>> call) {
+        EndpointHedging hedging = endpoints.get(endpoint);
+        if (hedging == null) {
+            return call.get();
+        }
+        return Mono.defer(() -> {
+            hedging.onCall();
+            long start = System.nanoTime();
+            AtomicBoolean hedgeSent = new AtomicBoolean();
+            Mono<T> primary = call.get()
+                    .onErrorResume(e -> hedgeSent.get() ? Mono.empty() : Mono.error(e));
+            Mono<T> hedge = Mono.delay(Duration.ofMillis(hedging.delayMs()))
+                    .filter(tick -> hedging.tryTakeBudget() && hedgePermit.getAsBoolean())
+                    .flatMap(tick -> {
+                        hedgeSent.set(true);
+                        hedging.hedges.increment();
+                        return call.get().doOnNext(result -> hedging.hedgeWins.increment());
+                    });
+            return Flux.merge(primary, hedge)
+                    .next()
+                    .doOnNext(result -> hedging.record(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * @return hedging statistics of enabled endpoints
+     */
+    public Map<String, HedgingStats> getStats() {
+        Map<String, HedgingStats> stats = new TreeMap<>();
+        endpoints.forEach((endpoint, hedging) -> stats.put(endpoint, new HedgingStats(hedging.calls.sum(), hedging.hedges.sum(),
+                hedging.hedgeWins.sum(), hedging.delayMs())));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private <T> void sendHedge(EndpointHedging hedging, BooleanSupplier hedgePermit, Supplier<T> call, AbortableRequestFactory.AbortHandle primary,
+                               AbortableRequestFactory.AbortHandle hedge, CompletableFuture<T> hedgeResult) {
+        if (hedgeResult.isDone()) {
+            // primary call has just finished
+            return;
+        }
+        if (!hedging.tryTakeBudget()) {
+            hedgeResult.completeExceptionally(new IllegalStateException("Hedging budget exhausted."));
+            return;
+        }
+        if (!hedgePermit.getAsBoolean()) {
+            hedgeResult.completeExceptionally(new IllegalStateException("No rate limiter permit for the hedge."));
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                AbortableRequestFactory.bind(hedge);
+                try {
+                    T result = call.get();
+                    if (hedgeResult.complete(result)) {
+                        hedging.hedgeWins.increment();
+                        primary.abort();
+                    }
+                } catch (RuntimeException e) {
+                    hedgeResult.completeExceptionally(e);
+                } finally {
+                    AbortableRequestFactory.unbind();
+                }
+            });
+            hedging.hedges.increment();
+        } catch (RejectedExecutionException e) {
+            hedgeResult.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Latencies and hedging budget of one endpoint.
+     */
+    private class EndpointHedging {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        private final LongAdder hedgeWins = new LongAdder();
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        // index of the next sample, number of samples in the window and since the delay has been computed
+        private int next;
+        private int samples;
+        private int sinceUpdate;
+        private long delayMs = maxDelayMs;
+        private double budget = 1;
+
+        synchronized void onCall() {
+            calls.increment();
+            budget = Math.min(MAX_BUDGET, budget + budgetPerCall);
+        }
+
+        synchronized long delayMs() {
+            return delayMs;
+        }
+
+        /**
+         * Records latency of successful call and recomputes hedge delay from time to time.
+         */
+        synchronized void record(long latencyNanos) {
+            latencies[next] = latencyNanos;
+            next = (next + 1) % LATENCY_WINDOW;
+            samples = Math.min(samples + 1, LATENCY_WINDOW);
+            if (samples >= MIN_SAMPLES && ++sinceUpdate >= 16) {
+                sinceUpdate = 0;
+                long[] sorted = Arrays.copyOf(latencies, samples);
+                Arrays.sort(sorted);
+                long percentileMs = TimeUnit.NANOSECONDS.toMillis(sorted[(sorted.length - 1) * percentile / 100]);
+                delayMs = Math.max(minDelayMs, Math.min(maxDelayMs, percentileMs));
+            }
+        }
+
+        synchronized boolean tryTakeBudget() {
+            if (budget < 1) {
+                return false;
+            }
+            budget--;
+            return true;
+        }
+    }
+}
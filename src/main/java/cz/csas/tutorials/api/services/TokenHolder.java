@@ -0,0 +1,140 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.Tokens;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe holder of user's tokens. Concurrent refreshes of the same (rejected) access token are coalesced into
+ * one call to CSAS IDP, other callers wait for it and share its result.
+ */
+public class TokenHolder {
+
+    private final AtomicReference<Tokens> tokens = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<Tokens>> refreshInFlight = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduledRefresh = new AtomicReference<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @return current tokens or null if the user has not been authorized yet
+     */
+    public Tokens get() {
+        return tokens.get();
+    }
+
+    /**
+     * Replaces tokens, e.g. after new authorization of the user.
+     *
+     * @param newTokens tokens to store
+     */
+    public void set(Tokens newTokens) {
+        tokens.set(newTokens);
+    }
+
+    /**
+     * Replaces planned proactive refresh of the tokens, previously planned refresh is cancelled.
+     *
+     * @param refresh newly planned refresh
+     */
+    public void setScheduledRefresh(ScheduledFuture<?> refresh) {
+        ScheduledFuture<?> previous = scheduledRefresh.getAndSet(refresh);
+        if (previous != null && previous != refresh) {
+            previous.cancel(false);
+        }
+        if (closed && refresh != null) {
+            refresh.cancel(false);
+        }
+    }
+
+    /**
+     * Cancels planned proactive refresh.
+     */
+    public void cancelScheduledRefresh() {
+        setScheduledRefresh(null);
+    }
+
+    /**
+     * Cancels planned proactive refresh for good, e.g. when the user is evicted. Refresh running at the moment will not
+     * plan another one.
+     */
+    public void close() {
+        closed = true;
+        cancelScheduledRefresh();
+    }
+
+    /**
+     * Refreshes tokens, unless they have already been refreshed since staleAccessToken was read. When other refresh
+     * is in flight, waits for it instead of calling CSAS IDP again.
+     *
+     * @param staleAccessToken access token that has been rejected or is about to expire
+     * @param refresher        performs the refresh call, invoked at most once for one stale access token
+     * @return refreshed tokens
+     * @throws ExpiredRefreshTokenException if refresh token has expired.
+     */
+    public Tokens refresh(String staleAccessToken, TokenRefresher refresher) throws ExpiredRefreshTokenException {
+        while (true) {
+            Tokens current = tokens.get();
+            if (current != null && !Objects.equals(current.getAccessToken(), staleAccessToken)) {
+                return current;
+            }
+            CompletableFuture<Tokens> running = refreshInFlight.get();
+            if (running != null) {
+                return await(running);
+            }
+            CompletableFuture<Tokens> refresh = new CompletableFuture<>();
+            if (refreshInFlight.compareAndSet(null, refresh)) {
+                return lead(refresh, staleAccessToken, refresher);
+            }
+        }
+    }
+
+    private Tokens lead(CompletableFuture<Tokens> refresh, String staleAccessToken, TokenRefresher refresher) throws ExpiredRefreshTokenException {
+        try {
+            Tokens current = tokens.get();
+            // other refresh may have finished between the check and winning the race
+            Tokens refreshed = current != null && !Objects.equals(current.getAccessToken(), staleAccessToken)
+                    ? current
+                    : refresher.refresh(current);
+            tokens.set(refreshed);
+            refreshInFlight.set(null);
+            refresh.complete(refreshed);
+            return refreshed;
+        } catch (ExpiredRefreshTokenException | RuntimeException | Error e) {
+            refreshInFlight.set(null);
+            refresh.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Tokens await(CompletableFuture<Tokens> running) throws ExpiredRefreshTokenException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for token refresh", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExpiredRefreshTokenException) {
+                throw new ExpiredRefreshTokenException(cause.getMessage());
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Token refresh failed", cause);
+        }
+    }
+
+    /**
+     * Call to CSAS IDP refreshing tokens.
+     */
+    @FunctionalInterface
+    public interface TokenRefresher {
+        Tokens refresh(Tokens current) throws ExpiredRefreshTokenException;
+    }
+}
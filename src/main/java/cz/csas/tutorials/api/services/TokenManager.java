@@ -0,0 +1,186 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.TokenResponse;
+import cz.csas.tutorials.api.model.Tokens;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages access and refresh tokens of the users and refreshes their access tokens in background before they expire,
+ * so PISP calls do not have to wait for refresh.
+ */
+@Service
+@Slf4j
+public class TokenManager {
+
+    @Value("${clientId}")
+    private String clientId;
+    @Value("${clientSecret}")
+    private String clientSecret;
+    @Value("${tokenRefreshEnabled}")
+    private boolean refreshEnabled;
+    @Value("${tokenRefreshSkewMs}")
+    private long refreshSkewMs;
+    @Value("${tokenRefreshJitterMs}")
+    private long refreshJitterMs;
+    @Value("${tokenRefreshRetryMs}")
+    private long refreshRetryMs;
+
+    private final AuthService authService;
+    private final TokenVault tokenVault;
+    private final TokenStore tokenStore;
+    private final PispMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+
+    @Autowired
+    public TokenManager(AuthService authService, TokenVault tokenVault, TokenStore tokenStore, PispMetrics metrics,
+                        @Value("${tokenRefreshThreads}") int refreshThreads) {
+        this.authService = authService;
+        this.tokenVault = tokenVault;
+        this.tokenStore = tokenStore;
+        this.metrics = metrics;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(refreshThreads, runnable -> {
+            Thread thread = new Thread(runnable, "token-refresher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads tokens persisted before restart into the vault, so the users do not have to authorize again.
+     */
+    @PostConstruct
+    public void restoreTokens() {
+        long start = System.nanoTime();
+        Map<String, Tokens> persisted = tokenStore.loadAll();
+        for (Map.Entry<String, Tokens> entry : persisted.entrySet()) {
+            TokenHolder tokenHolder = tokenVault.getOrCreate(entry.getKey());
+            tokenHolder.set(entry.getValue());
+            scheduleRefresh(entry.getKey(), tokenHolder, entry.getValue());
+        }
+        if (!persisted.isEmpty()) {
+            log.info("Tokens of {} users restored in {} ms.", persisted.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @param userId id of the user, null for unknown caller
+     * @return current access token or null if the user has not been authorized yet
+     */
+    public String getAccessToken(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        TokenHolder tokenHolder = tokenVault.get(userId);
+        Tokens tokens = tokenHolder != null ? tokenHolder.get() : null;
+        return tokens != null ? tokens.getAccessToken() : null;
+    }
+
+    /**
+     * Stores tokens obtained from CSAS IDP and plans refresh of the access token before it expires.
+     *
+     * @param userId   id of the user
+     * @param response from /token endpoint
+     */
+    public void storeTokens(String userId, TokenResponse response) {
+        TokenHolder tokenHolder = tokenVault.getOrCreate(userId);
+        Tokens tokens = Tokens.from(response, tokenHolder.get());
+        tokenHolder.set(tokens);
+        tokenStore.save(userId, tokens);
+        scheduleRefresh(userId, tokenHolder, tokens);
+    }
+
+    /**
+     * Refreshes access token immediately (used when CSAS rejects the current one). Concurrent calls with the same
+     * rejected token result in one refresh call.
+     *
+     * @param userId              id of the user
+     * @param rejectedAccessToken access token rejected by CSAS
+     * @return new access token
+     * @throws ExpiredRefreshTokenException if refresh token has expired (or the user has been evicted).
+     */
+    public String refreshAccessToken(String userId, String rejectedAccessToken) throws ExpiredRefreshTokenException {
+        TokenHolder tokenHolder = tokenVault.get(userId);
+        if (tokenHolder == null) {
+            metrics.refreshTokenExpired("missing");
+            throw new ExpiredRefreshTokenException("No refresh token available.");
+        }
+        return refreshAccessToken(userId, tokenHolder, rejectedAccessToken);
+    }
+
+    private String refreshAccessToken(String userId, TokenHolder tokenHolder, String rejectedAccessToken) throws ExpiredRefreshTokenException {
+        return tokenHolder.refresh(rejectedAccessToken, current -> refresh(userId, tokenHolder, current)).getAccessToken();
+    }
+
+    private Tokens refresh(String userId, TokenHolder tokenHolder, Tokens current) throws ExpiredRefreshTokenException {
+        if (current == null || current.getRefreshToken() == null) {
+            metrics.refreshTokenExpired("missing");
+            throw new ExpiredRefreshTokenException("No refresh token available.");
+        }
+        Tokens tokens = Tokens.from(authService.refreshTokens(current.getRefreshToken(), clientId, clientSecret), current);
+        tokenStore.save(userId, tokens);
+        scheduleRefresh(userId, tokenHolder, tokens);
+        return tokens;
+    }
+
+    /**
+     * Plans proactive refresh - skew before access token expiration, minus random jitter, so refreshes of many users
+     * (and more application instances) do not hit CSAS IDP at the same moment.
+     */
+    private void scheduleRefresh(String userId, TokenHolder tokenHolder, Tokens tokens) {
+        if (!refreshEnabled || tokens.getAccessTokenExpiresAt() == 0 || tokens.getRefreshToken() == null) {
+            tokenHolder.cancelScheduledRefresh();
+            return;
+        }
+        long jitter = refreshJitterMs > 0 ? ThreadLocalRandom.current().nextLong(refreshJitterMs) : 0;
+        long validityMs = Math.max(0, tokens.getAccessTokenExpiresAt() - System.currentTimeMillis());
+        // short-lived tokens are refreshed in half of their validity at the earliest, not in a loop
+        long delay = Math.max(validityMs / 2, validityMs - refreshSkewMs - jitter);
+        if (delay == 0) {
+            // already expired (e.g. restored after restart), spread refreshes of all such users over jitter
+            delay = jitter;
+        }
+        scheduleRefresh(userId, tokenHolder, tokens.getAccessToken(), delay);
+        log.debug("Access token refresh planned in {} ms.", delay);
+    }
+
+    /**
+     * Background refresh holds the token holder directly, not through the vault, so it does not keep idle users alive.
+     */
+    private void scheduleRefresh(String userId, TokenHolder tokenHolder, String expiringAccessToken, long delayMs) {
+        tokenHolder.setScheduledRefresh(scheduler.schedule(() -> refreshInBackground(userId, tokenHolder, expiringAccessToken), delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    private void refreshInBackground(String userId, TokenHolder tokenHolder, String expiringAccessToken) {
+        try {
+            refreshAccessToken(userId, tokenHolder, expiringAccessToken);
+            log.debug("Access token has been refreshed in background.");
+        } catch (ExpiredRefreshTokenException e) {
+            log.debug("Refresh token has expired. Client has to be authorized.");
+        } catch (Exception e) {
+            log.warn("Background refresh of access token failed, retrying in {} ms.", refreshRetryMs, e);
+            Tokens tokens = tokenHolder.get();
+            if (tokens != null && System.currentTimeMillis() < tokens.getAccessTokenExpiresAt()) {
+                scheduleRefresh(userId, tokenHolder, expiringAccessToken, refreshRetryMs);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,33 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.Tokens;
+
+import java.util.Map;
+
+/**
+ * Persistent storage of users' tokens, so the users do not have to authorize again after restart of the application.
+ */
+public interface TokenStore {
+
+    /**
+     * Stores (replaces) tokens of the user.
+     *
+     * @param userId id of the user
+     * @param tokens tokens to store
+     */
+    void save(String userId, Tokens tokens);
+
+    /**
+     * Forgets tokens of the user.
+     *
+     * @param userId id of the user
+     */
+    void remove(String userId);
+
+    /**
+     * Loads tokens of all users, called once at startup.
+     *
+     * @return tokens by user id
+     */
+    Map<String, Tokens> loadAll();
+}
@@ -0,0 +1,81 @@
+package cz.csas.tutorials.api.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokens of all authorized users (PSUs), keyed by user id. Users not calling the application for configured time are
+ * evicted (also from the token store), as well as least recently used users when the vault is full.
+ */
+@Service
+@Slf4j
+public class TokenVault {
+
+    private final Cache<String, TokenHolder> holders;
+
+    public TokenVault(TokenStore tokenStore,
+                      @Value("${tokenVaultMaxUsers}") long maxUsers,
+                      @Value("${tokenVaultIdleEvictMs}") long idleEvictMs) {
+        this.holders = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(idleEvictMs, TimeUnit.MILLISECONDS)
+                // writer runs atomically with the removal - tokens of the user stored again right after eviction are
+                // not removed from the store by a late notification
+                .writer(new CacheWriter<String, TokenHolder>() {
+                    @Override
+                    public void write(String userId, TokenHolder holder) {
+                    }
+
+                    @Override
+                    public void delete(String userId, TokenHolder holder, RemovalCause cause) {
+                        if (holder != null) {
+                            holder.close();
+                        }
+                        if (cause.wasEvicted()) {
+                            tokenStore.remove(userId);
+                            log.debug("Tokens of user {} have been evicted ({}).", userId, cause);
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param userId id of the user
+     * @return tokens of the user or null if the user has not been authorized (or has been evicted)
+     */
+    public TokenHolder get(String userId) {
+        return holders.getIfPresent(userId);
+    }
+
+    /**
+     * @param userId id of the user
+     * @return tokens of the user, empty holder is created for new user
+     */
+    public TokenHolder getOrCreate(String userId) {
+        return holders.get(userId, key -> new TokenHolder());
+    }
+
+    /**
+     * Forgets tokens of the user.
+     *
+     * @param userId id of the user
+     */
+    public void remove(String userId) {
+        holders.invalidate(userId);
+    }
+
+    /**
+     * @return approximate number of users in the vault
+     */
+    public long size() {
+        return holders.estimatedSize();
+    }
+}
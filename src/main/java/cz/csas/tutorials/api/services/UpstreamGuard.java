@@ -0,0 +1,199 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
+import cz.csas.tutorials.api.model.diagnostics.CircuitBreakerStats;
+import io.netty.channel.ChannelException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Protects PISP calls by retries and circuit breakers, per endpoint. Only idempotent endpoints (configured) are
+ * retried - on 5xx, 429 and I/O errors, with exponential backoff and full jitter (random wait between 0 and the
+ * backoff), so clients retrying at the same time do not hit CSAS together again. Every endpoint has own
+ * {@link CircuitBreaker}; while it is open, calls fail fast with {@link CircuitBreakerOpenException} instead of
+ * waiting for failing CSAS. Reactive calls are guarded the same way ({@link #callReactive(String, Mono, Mono)}).
+ */
+@Component
+@Slf4j
+public class UpstreamGuard {
+
+    private final Set<String> retryEndpoints;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final int windowSize;
+    private final int minCalls;
+    private final int failureRateThreshold;
+    private final long openDurationMs;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UpstreamGuard(Environment environment) {
+        this.retryEndpoints = new HashSet<>(Arrays.asList(environment.getRequiredProperty("pispRetryEndpoints", String[].class)));
+        this.maxAttempts = environment.getRequiredProperty("pispRetryMaxAttempts", Integer.class);
+        this.initialBackoffMs = environment.getRequiredProperty("pispRetryInitialBackoffMs", Long.class);
+        this.maxBackoffMs = environment.getRequiredProperty("pispRetryMaxBackoffMs", Long.class);
+        this.windowSize = environment.getRequiredProperty("pispCircuitBreakerWindowSize", Integer.class);
+        this.minCalls = environment.getRequiredProperty("pispCircuitBreakerMinCalls", Integer.class);
+        this.failureRateThreshold = environment.getRequiredProperty("pispCircuitBreakerFailureRateThreshold", Integer.class);
+        this.openDurationMs = environment.getRequiredProperty("pispCircuitBreakerOpenDurationMs", Long.class);
+    }
+
+    /**
+     * Executes upstream call guarded by circuit breaker of the endpoint, with retries if the endpoint is idempotent.
+     *
+     * @param endpoint name of PISP endpoint
+     * @param throttle called before every attempt let through by the breaker, e.g. waits for rate limiter
+     * @param call     upstream call, throws {@link HttpClientErrorException}, {@link HttpServerErrorException} or
+     *                 {@link ResourceAccessException} on failure
+     * @param <T>      type of result
+     * @return result of the call
+     * @throws CircuitBreakerOpenException if the breaker of the endpoint is open
+     */
+    public <T> T call(String endpoint, Runnable throttle, Supplier<T> call) {
+        CircuitBreaker breaker = breaker(endpoint);
+        int attempts = retryEndpoints.contains(endpoint) ? maxAttempts : 1;
+        for (int attempt = 1; ; attempt++) {
+            // open breaker rejects the call before it takes rate limiter permit (or waits for it)
+            if (!breaker.tryAcquire()) {
+                throw new CircuitBreakerOpenException("Circuit breaker of PISP " + endpoint + " endpoint is open.", breaker.getRetryAfterMs());
+            }
+            try {
+                throttle.run();
+            } catch (RuntimeException e) {
+                breaker.onCancel();
+                throw e;
+            }
+            RuntimeException failure;
+            try {
+                T result = call.get();
+                breaker.onSuccess();
+                return result;
+            } catch (HttpServerErrorException | ResourceAccessException e) {
+                breaker.onFailure();
+                failure = e;
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.TOO_MANY_REQUESTS) {
+                    breaker.onSuccess();
+                    throw e;
+                }
+                breaker.onFailure();
+                failure = e;
+            } catch (RuntimeException e) {
+                // not caused by upstream, e.g. response cannot be deserialized
+                breaker.onSuccess();
+                throw e;
+            }
+
+            if (attempt >= attempts) {
+                throw failure;
+            }
+            long backoffMs = backoff(attempt);
+            log.debug("PISP {} call failed ({}), retry {} in {} ms.", endpoint, failure, attempt, backoffMs);
+            breaker.onRetry();
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Reactive variant of {@link #call(String, Runnable, Supplier)} - guards non-blocking upstream call by the same
+     * circuit breaker of the endpoint, retries wait by timer instead of sleeping.
+     *
+     * @param endpoint name of PISP endpoint
+     * @param throttle subscribed before every attempt let through by the breaker, e.g. waits for rate limiter
+     * @param call     upstream call, subscribed once per attempt; fails by {@link WebClientResponseException}, I/O
+     *                 error or timeout when upstream fails
+     * @param <T>      type of result
+     * @return result of the call, error {@link CircuitBreakerOpenException} if the breaker of the endpoint is open
+     */
+    public <T> Mono<T> callReactive(String endpoint, Mono<?> throttle, Mono<T> call) {
+        return Mono.defer(() -> attempt(endpoint, breaker(endpoint), throttle, call, 1,
+                retryEndpoints.contains(endpoint) ? maxAttempts : 1));
+    }
+
+    /**
+     * @return state of circuit breakers of all called endpoints, by endpoint name
+     */
+    public Map<String, CircuitBreakerStats> getStats() {
+        Map<String, CircuitBreakerStats> stats = new TreeMap<>();
+        breakers.forEach((endpoint, breaker) -> stats.put(endpoint, breaker.getStats()));
+        return stats;
+    }
+
+    private CircuitBreaker breaker(String endpoint) {
+        return breakers.computeIfAbsent(endpoint, name -> new CircuitBreaker(windowSize, minCalls, failureRateThreshold, openDurationMs));
+    }
+
+    private <T> Mono<T> attempt(String endpoint, CircuitBreaker breaker, Mono<?> throttle, Mono<T> call, int attempt, int attempts) {
+        return Mono.defer(() -> {
+            if (!breaker.tryAcquire()) {
+                return Mono.error(new CircuitBreakerOpenException("Circuit breaker of PISP " + endpoint + " endpoint is open.", breaker.getRetryAfterMs()));
+            }
+            return throttle
+                    .doOnError(e -> breaker.onCancel())
+                    .then(call.doOnSuccess(result -> breaker.onSuccess()))
+                    // client has gone, the outcome is unknown
+                    .doOnCancel(breaker::onCancel)
+                    .onErrorResume(e -> {
+                        if (!isUpstreamFailure(e)) {
+                            breaker.onSuccess();
+                            return Mono.error(e);
+                        }
+                        breaker.onFailure();
+                        if (attempt >= attempts) {
+                            return Mono.error(e);
+                        }
+                        long backoffMs = backoff(attempt);
+                        log.debug("PISP {} call failed ({}), retry {} in {} ms.", endpoint, e, attempt, backoffMs);
+                        breaker.onRetry();
+                        return Mono.delay(Duration.ofMillis(backoffMs))
+                                .then(attempt(endpoint, breaker, throttle, call, attempt + 1, attempts));
+                    });
+        });
+    }
+
+    /**
+     * @return true if error of reactive call has been caused by upstream - 5xx, 429, I/O error or timeout
+     */
+    private static boolean isUpstreamFailure(Throwable e) {
+        if (e instanceof WebClientResponseException) {
+            int status = ((WebClientResponseException) e).getRawStatusCode();
+            return status >= 500 || status == HttpStatus.TOO_MANY_REQUESTS.value();
+        }
+        return e instanceof IOException || e instanceof ChannelException || e instanceof TimeoutException;
+    }
+
+    /**
+     * Full jitter - random wait up to exponentially growing backoff.
+     */
+    private long backoff(int attempt) {
+        long ceiling = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
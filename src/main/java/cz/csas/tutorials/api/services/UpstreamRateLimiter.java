@@ -0,0 +1,212 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import cz.csas.tutorials.api.model.diagnostics.RateLimiterStats;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.InstructionPriority;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound rate limiter of PISP calls - token bucket per webapi key (CSAS quotas are per key). When the bucket is
+ * empty, callers wait in a bounded queue ordered by priority: urgent payments and payment signing first, then other
+ * payments and balance checks, background calls (accounts, polling) last; FIFO within the same priority. Callers which
+ * do not fit to the queue or wait too long are rejected by {@link RateLimitExceededException}.
+ */
+@Component
+public class UpstreamRateLimiter {
+
+    public enum Priority {URGENT, NORMAL, BACKGROUND}
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private final int maxQueue;
+    private final long maxWaitMs;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Counters[] counters = new Counters[Priority.values().length];
+
+    @Autowired
+    public UpstreamRateLimiter(Environment environment) {
+        this.permitsPerSecond = environment.getRequiredProperty("pispRateLimitPerSecond", Double.class);
+        this.burst = environment.getRequiredProperty("pispRateLimitBurst", Double.class);
+        this.maxQueue = environment.getRequiredProperty("pispRateLimitMaxQueue", Integer.class);
+        this.maxWaitMs = environment.getRequiredProperty("pispRateLimitMaxWaitMs", Long.class);
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new Counters();
+        }
+    }
+
+    /**
+     * @return priority of prepared PISP call
+     */
+    public static Priority priorityOf(PispRequest request) {
+        switch (request.getEndpoint()) {
+            case "createPayment":
+                CreatePaymentRequest payment = (CreatePaymentRequest) request.getBody();
+                return payment != null && payment.getPaymentTypeInformation() != null
+                        && payment.getPaymentTypeInformation().getInstructionPriority() == InstructionPriority.HIGH
+                        ? Priority.URGENT : Priority.NORMAL;
+            case "getApiAuthorization":
+            case "startApiAuthorization":
+            case "finishApiAuthorization":
+            case "getFederatedAuthorization":
+                return Priority.URGENT;
+            case "accounts":
+            case "pollAuthorizationState":
+                return Priority.BACKGROUND;
+            default:
+                return Priority.NORMAL;
+        }
+    }
+
+    /**
+     * Waits for permit to call PISP. Returns immediately when rate limiting is disabled (rate 0).
+     *
+     * @param webApiKey key whose quota is used
+     * @param priority  of the call
+     * @throws RateLimitExceededException if the wait queue is full or permit has not been obtained in time
+     */
+    public void acquire(String webApiKey, Priority priority) {
+        if (permitsPerSecond <= 0) {
+            return;
+        }
+        buckets.computeIfAbsent(webApiKey != null ? webApiKey : "", key -> new Bucket()).acquire(priority);
+    }
+
+    /**
+     * Takes permit to call PISP only if it is available right now, without waiting. Lets non-blocking callers skip
+     * the switch to a thread which can wait in {@link #acquire(String, Priority)}.
+     *
+     * @param webApiKey key whose quota is used
+     * @param priority  of the call
+     * @return true if the call may be sent, false if the caller has to wait for permit
+     */
+    public boolean tryAcquire(String webApiKey, Priority priority) {
+        if (permitsPerSecond <= 0) {
+            return true;
+        }
+        return buckets.computeIfAbsent(webApiKey != null ? webApiKey : "", key -> new Bucket()).tryAcquire(priority);
+    }
+
+    /**
+     * @return numbers of immediately granted, delayed and rejected calls and average wait, by priority
+     */
+    public Map<String, RateLimiterStats> getStats() {
+        Map<String, RateLimiterStats> stats = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            Counters c = counters[priority.ordinal()];
+            long delayed = c.delayed.sum();
+            stats.put(priority.name(), new RateLimiterStats(c.granted.sum(), delayed, c.rejected.sum(),
+                    delayed > 0 ? TimeUnit.NANOSECONDS.toMillis(c.waitNanos.sum()) / delayed : 0));
+        }
+        return stats;
+    }
+
+    /**
+     * Token bucket with wait queue. Waiting threads wait on the bucket monitor; only the head of the queue takes
+     * tokens, it sleeps until next token is available and wakes up the others after taking it.
+     */
+    private class Bucket {
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+        private double tokens = burst;
+        private long refilledAt = System.nanoTime();
+        private long sequence;
+
+        synchronized boolean tryAcquire(Priority priority) {
+            refill();
+            if (queue.isEmpty() && tokens >= 1) {
+                tokens--;
+                counters[priority.ordinal()].granted.increment();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void acquire(Priority priority) {
+            Counters c = counters[priority.ordinal()];
+            refill();
+            if (queue.isEmpty() && tokens >= 1) {
+                tokens--;
+                c.granted.increment();
+                return;
+            }
+            if (queue.size() >= maxQueue) {
+                c.rejected.increment();
+                throw new RateLimitExceededException("PISP rate limit exceeded, wait queue is full.");
+            }
+
+            Waiter waiter = new Waiter(priority, sequence++);
+            queue.add(waiter);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+            try {
+                while (true) {
+                    refill();
+                    if (queue.peek() == waiter && tokens >= 1) {
+                        tokens--;
+                        queue.poll();
+                        c.delayed.increment();
+                        c.waitNanos.add(System.nanoTime() - start);
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    if (now >= deadline) {
+                        queue.remove(waiter);
+                        c.rejected.increment();
+                        throw new RateLimitExceededException("PISP rate limit exceeded, call has waited too long.");
+                    }
+                    long waitNanos = deadline - now;
+                    if (queue.peek() == waiter) {
+                        waitNanos = Math.min(waitNanos, (long) ((1 - tokens) / permitsPerSecond * 1e9) + 1);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                }
+            } catch (InterruptedException e) {
+                queue.remove(waiter);
+                Thread.currentThread().interrupt();
+                throw new RateLimitExceededException("Waiting for PISP rate limit has been interrupted.");
+            } finally {
+                // head of the queue has changed
+                notifyAll();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * permitsPerSecond);
+            refilledAt = now;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final Priority priority;
+        private final long sequence;
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static class Counters {
+        private final LongAdder granted = new LongAdder();
+        private final LongAdder delayed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+    }
+}
@@ -0,0 +1,78 @@
+package cz.csas.tutorials.api.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * URL with {name} variables, parsed once at startup. Expansion only concatenates literal parts and values into one
+ * string. Values are not encoded here, the URL is encoded when the request is sent (as a URL built by
+ * {@link org.springframework.web.util.UriComponentsBuilder#buildAndExpand(Object...)} would be).
+ */
+class UrlTemplate {
+
+    private final String[] literals;
+    private final int length;
+
+    /**
+     * @param template URL, e.g. https://host/my/payments/sign/{signId}
+     */
+    UrlTemplate(String template) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = template.indexOf('{', start)) >= 0) {
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed variable in URL template " + template);
+            }
+            parts.add(template.substring(start, open));
+            start = close + 1;
+        }
+        parts.add(template.substring(start));
+        this.literals = parts.toArray(new String[0]);
+        this.length = template.length();
+    }
+
+    /**
+     * @param values of variables, in order of their appearance in the template
+     * @return expanded URL
+     */
+    String expand(String... values) {
+        if (values.length != literals.length - 1) {
+            throw new IllegalArgumentException("URL template expects " + (literals.length - 1) + " values, got " + values.length);
+        }
+        if (values.length == 0) {
+            return literals[0];
+        }
+        StringBuilder url = new StringBuilder(length + 32);
+        url.append(literals[0]);
+        for (int i = 0; i < values.length; i++) {
+            url.append(values[i]).append(literals[i + 1]);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Appends query parameters to the URL without variables. Parameter with null value is written without "=", as by
+     * {@link org.springframework.web.util.UriComponentsBuilder#queryParam(String, Object...)}.
+     *
+     * @param namesAndValues names and values of parameters, alternately
+     * @return URL with query
+     */
+    String withQuery(String... namesAndValues) {
+        if (literals.length > 1) {
+            throw new IllegalStateException("URL template with variables cannot have query appended");
+        }
+        StringBuilder url = new StringBuilder(length + 16 * namesAndValues.length);
+        url.append(literals[0]);
+        boolean hasQuery = literals[0].indexOf('?') >= 0;
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            url.append(i == 0 && !hasQuery ? '?' : '&').append(namesAndValues[i]);
+            String value = namesAndValues[i + 1];
+            if (value != null) {
+                url.append('=').append(value);
+            }
+        }
+        return url.toString();
+    }
+}
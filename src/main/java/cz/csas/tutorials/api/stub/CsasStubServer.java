@@ -0,0 +1,353 @@
+package cz.csas.tutorials.api.stub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in of CSAS IDP and PISP API for load tests, so they do not need the sandbox (see "CSAS stub" settings and
+ * the stub profile). Runs on own port by JDK HTTP server, IDP under /idp, PISP under /pisp.
+ * <p>
+ * Latency of responses follows log-normal distribution given by median and 99th percentile; responses are delayed by a
+ * scheduler, not by sleeping threads, so slow responses do not limit throughput of the stub. Configured percent of PISP
+ * calls fails with 503. Access tokens expire after configured time and are then rejected by 403, as by CSAS.
+ * Authorization of a payment is DONE after configured number of polls. The stub is not referenced by other beans, it is
+ * therefore never initialized lazily.
+ */
+@Component
+@ConditionalOnProperty(name = "csasStub", havingValue = "true")
+@Lazy(false)
+@Slf4j
+public class CsasStubServer {
+
+    private static final double Z_99 = 2.326;
+
+    private final ObjectMapper objectMapper;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService responder;
+    private final double latencyMu;
+    private final double latencySigma;
+    private final int errorPercent;
+    private final long tokenExpiresInSec;
+    private final int pollsUntilDone;
+    private final int accountCount;
+    private final Cache<String, String> accessTokens;
+    private final Cache<String, String> refreshTokens;
+    private final Cache<String, String> codes;
+    private final Cache<String, Payment> payments;
+    private final AtomicLong signIds = new AtomicLong(100000000000000L);
+
+    @Autowired
+    public CsasStubServer(ObjectMapper objectMapper, Environment environment) throws IOException {
+        this.objectMapper = objectMapper;
+        double medianMs = environment.getRequiredProperty("csasStubLatencyMedianMs", Double.class);
+        double p99Ms = environment.getRequiredProperty("csasStubLatencyP99Ms", Double.class);
+        this.latencyMu = Math.log(Math.max(medianMs, 0.001));
+        this.latencySigma = Math.max(0, Math.log(Math.max(p99Ms, medianMs) / Math.max(medianMs, 0.001)) / Z_99);
+        this.errorPercent = environment.getRequiredProperty("csasStubErrorPercent", Integer.class);
+        this.tokenExpiresInSec = environment.getRequiredProperty("csasStubTokenExpiresInSec", Long.class);
+        this.pollsUntilDone = environment.getRequiredProperty("csasStubPollsUntilDone", Integer.class);
+        this.accountCount = environment.getRequiredProperty("csasStubAccounts", Integer.class);
+        long maxEntries = environment.getRequiredProperty("csasStubMaxEntries", Long.class);
+        this.accessTokens = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(tokenExpiresInSec, TimeUnit.SECONDS).build();
+        this.refreshTokens = Caffeine.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(environment.getRequiredProperty("csasStubRefreshTokenExpiresInSec", Long.class), TimeUnit.SECONDS).build();
+        this.codes = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(5, TimeUnit.MINUTES).build();
+        this.payments = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(1, TimeUnit.HOURS).build();
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.handlers = Executors.newFixedThreadPool(environment.getRequiredProperty("csasStubThreads", Integer.class), runnable -> {
+            Thread thread = new Thread(runnable, "csas-stub-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.responder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "csas-stub-responder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(environment.getRequiredProperty("csasStubPort", Integer.class)), 1000);
+        server.createContext("/idp/", exchange -> handle(exchange, this::handleIdp));
+        server.createContext("/pisp/", exchange -> handle(exchange, this::handlePisp));
+        server.setExecutor(handlers);
+        server.start();
+        log.info("CSAS stub listens on port {}.", getPort());
+    }
+
+    /**
+     * @return port of the stub (useful when configured port is 0)
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        server.stop(0);
+        responder.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException e) {
+            // e.g. malformed request body
+            respond(exchange, 400, error("invalid_request"));
+        }
+    }
+
+    private void handleIdp(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/idp/auth")) {
+            // user authorizes immediately, IDP redirects back with code
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            if (query.get("redirect_uri") == null) {
+                respond(exchange, 400, error("invalid_request"));
+                return;
+            }
+            String code = UUID.randomUUID().toString();
+            codes.put(code, "");
+            String location = UriComponentsBuilder.fromHttpUrl(query.get("redirect_uri"))
+                    .queryParam("code", code)
+                    .queryParam("state", query.get("state"))
+                    .build().encode().toUriString();
+            exchange.getResponseHeaders().set("Location", location);
+            respond(exchange, 302, null);
+        } else if (path.equals("/idp/token") && "POST".equals(exchange.getRequestMethod())) {
+            Map<String, String> form = parseForm(new String(StreamUtils.copyToByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            String grantType = form.get("grant_type");
+            boolean valid;
+            if ("authorization_code".equals(grantType)) {
+                valid = form.get("code") != null && codes.getIfPresent(form.get("code")) != null;
+                if (valid) {
+                    codes.invalidate(form.get("code"));
+                }
+            } else if ("refresh_token".equals(grantType)) {
+                valid = form.get("refresh_token") != null && refreshTokens.getIfPresent(form.get("refresh_token")) != null;
+            } else {
+                respond(exchange, 400, error("unsupported_grant_type"));
+                return;
+            }
+            if (!valid) {
+                respond(exchange, 401, error("invalid_grant"));
+                return;
+            }
+            Map<String, Object> tokens = new LinkedHashMap<>();
+            String accessToken = UUID.randomUUID().toString();
+            accessTokens.put(accessToken, "");
+            tokens.put("access_token", accessToken);
+            tokens.put("token_type", "bearer");
+            tokens.put("expires_in", tokenExpiresInSec);
+            if ("authorization_code".equals(grantType)) {
+                String refreshToken = UUID.randomUUID().toString();
+                refreshTokens.put(refreshToken, "");
+                tokens.put("refresh_token", refreshToken);
+            }
+            tokens.put("scope", "PISP");
+            respond(exchange, 200, tokens);
+        } else {
+            respond(exchange, 404, error("not_found"));
+        }
+    }
+
+    private void handlePisp(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ") || accessTokens.getIfPresent(authorization.substring(7)) == null) {
+            respond(exchange, 403, error("invalid_token"));
+            return;
+        }
+        if (errorPercent > 0 && ThreadLocalRandom.current().nextInt(100) < errorPercent) {
+            respond(exchange, 503, error("service_unavailable"));
+            return;
+        }
+        String method = exchange.getRequestMethod();
+        List<String> path = Arrays.asList(exchange.getRequestURI().getPath().substring("/pisp/".length()).split("/"));
+        if (path.equals(Arrays.asList("my", "accounts")) && "GET".equals(method)) {
+            respond(exchange, 200, accounts(parseForm(exchange.getRequestURI().getRawQuery())));
+        } else if (path.equals(Arrays.asList("my", "payments", "balanceCheck")) && "POST".equals(method)) {
+            Map<?, ?> request = objectMapper.readValue(exchange.getRequestBody(), Map.class);
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("exchangeIdentification", request.get("exchangeIdentification"));
+            response.put("fundsAvailable", true);
+            respond(exchange, 200, response);
+        } else if (path.equals(Arrays.asList("my", "payments")) && "POST".equals(method)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> response = new LinkedHashMap<>(objectMapper.readValue(exchange.getRequestBody(), Map.class));
+            Payment payment = new Payment(String.valueOf(signIds.incrementAndGet()), UUID.randomUUID().toString().replace("-", ""), pollsUntilDone);
+            payments.put(payment.signId, payment);
+            response.put("signInfo", payment.signInfo());
+            respond(exchange, 201, response);
+        } else if (path.size() == 4 && path.subList(0, 3).equals(Arrays.asList("my", "payments", "sign"))) {
+            Payment payment = payments.getIfPresent(path.get(3));
+            if (payment == null) {
+                respond(exchange, 404, error("sign_not_found"));
+                return;
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            if ("PUT".equals(method)) {
+                payment.done();
+            }
+            response.put("signInfo", payment.signInfo());
+            response.put("scenarios", Collections.singletonList(Collections.singletonList("FEDERATED")));
+            respond(exchange, 200, response);
+        } else if (path.size() == 7 && path.subList(0, 4).equals(Arrays.asList("my", "payments", "federate", "sign")) && "hash".equals(path.get(5))) {
+            Payment payment = payments.getIfPresent(path.get(4));
+            if (payment == null || !payment.hash.equals(path.get(6))) {
+                respond(exchange, 404, error("sign_not_found"));
+                return;
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("signInfo", payment.signInfo());
+            response.put("signingUrl", "http://localhost:" + getPort() + "/idp/sign/" + payment.signId);
+            response.put("pollId", payment.signId);
+            respond(exchange, 200, response);
+        } else if (path.size() == 5 && path.subList(0, 4).equals(Arrays.asList("my", "payments", "sign", "poll"))) {
+            Payment payment = payments.getIfPresent(path.get(4));
+            if (payment == null) {
+                respond(exchange, 404, error("poll_not_found"));
+                return;
+            }
+            payment.poll();
+            respond(exchange, 200, Collections.singletonMap("signInfo", payment.signInfo()));
+        } else {
+            respond(exchange, 404, error("not_found"));
+        }
+    }
+
+    private Map<String, Object> accounts(Map<String, String> query) {
+        int size = query.get("size") != null ? Math.max(1, Integer.parseInt(query.get("size"))) : accountCount;
+        int page = query.get("page") != null ? Math.max(0, Integer.parseInt(query.get("page"))) : 0;
+        int pageCount = Math.max(1, (accountCount + size - 1) / size);
+        List<Map<String, Object>> accounts = new ArrayList<>();
+        for (int i = page * size; i < Math.min(accountCount, (page + 1) * size); i++) {
+            Map<String, Object> account = new LinkedHashMap<>();
+            account.put("id", "ACC" + i);
+            account.put("identification", Collections.singletonMap("iban", String.format("CZ65080000000000%08d", i)));
+            account.put("currency", "CZK");
+            account.put("servicer", Collections.singletonMap("bankCode", "0800"));
+            account.put("nameI18N", "Account " + i);
+            accounts.add(account);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("pageNumber", page);
+        response.put("pageCount", pageCount);
+        response.put("pageSize", size);
+        if (page + 1 < pageCount) {
+            response.put("nextPage", page + 1);
+        }
+        response.put("accounts", accounts);
+        return response;
+    }
+
+    /**
+     * Sends the response after simulated latency.
+     */
+    private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = body != null ? objectMapper.writeValueAsBytes(body) : null;
+        long delayMicros = (long) (Math.exp(latencyMu + latencySigma * ThreadLocalRandom.current().nextGaussian()) * 1000);
+        responder.schedule(() -> handlers.execute(() -> {
+            try {
+                if (bytes != null) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+                }
+                exchange.sendResponseHeaders(status, bytes != null ? bytes.length : -1);
+                if (bytes != null) {
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("CSAS stub response has not been sent: {}", e.toString());
+            } finally {
+                exchange.close();
+            }
+        }), delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private static Map<String, String> error(String error) {
+        return Collections.singletonMap("error", error);
+    }
+
+    private static Map<String, String> parseForm(String form) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return values;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, "UTF-8");
+            values.put(name, eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : null);
+        }
+        return values;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Payment waiting for authorization.
+     */
+    private static class Payment {
+        private final String signId;
+        private final String hash;
+        private final AtomicInteger pollsLeft;
+
+        private Payment(String signId, String hash, int pollsUntilDone) {
+            this.signId = signId;
+            this.hash = hash;
+            this.pollsLeft = new AtomicInteger(pollsUntilDone);
+        }
+
+        private void poll() {
+            pollsLeft.decrementAndGet();
+        }
+
+        private void done() {
+            pollsLeft.set(0);
+        }
+
+        private Map<String, Object> signInfo() {
+            Map<String, Object> signInfo = new LinkedHashMap<>();
+            signInfo.put("state", pollsLeft.get() <= 0 ? "DONE" : "OPEN");
+            signInfo.put("signId", signId);
+            signInfo.put("hash", hash);
+            return signInfo;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+#!/usr/bin/env bash
+# Compares startup of the fat jar with AppCDS + lazy initialization (appcds build profile): time from JVM launch to the
+# first served request and resident memory (RSS) after it.
+# usage: startup-report.sh <fat jar> <directory with exploded jar and app.jsa> [port]
+set -euo pipefail
+
+JAR=$1
+APPCDS_DIR=$2
+PORT=${3:-18080}
+URL="http://localhost:${PORT}/auth/authUrl"
+
+measure() {
+    local name=$1
+    shift
+    local start
+    start=$(date +%s%N)
+    "$@" --server.port="${PORT}" --logging.level.cz.csas.tutorials=INFO > "${APPCDS_DIR}/${name}.log" 2>&1 &
+    local pid=$!
+    until curl -sf -o /dev/null "${URL}"; do
+        if ! kill -0 "${pid}" 2> /dev/null; then
+            echo "${name}: application has not started, see ${APPCDS_DIR}/${name}.log" >&2
+            exit 1
+        fi
+        sleep 0.05
+    done
+    local elapsed_ms=$(( ($(date +%s%N) - start) / 1000000 ))
+    local rss_kb
+    rss_kb=$(ps -o rss= -p "${pid}" | tr -d ' ')
+    kill "${pid}"
+    wait "${pid}" 2> /dev/null || true
+    printf "%-24s %12d %12d\n" "${name}" "${elapsed_ms}" "$(( rss_kb / 1024 ))"
+}
+
+printf "%-24s %12s %12s\n" "mode" "first req ms" "RSS MB"
+measure "fat-jar" java -jar "${JAR}"
+# class path has to be the same as in the training run, see appcds profile in pom.xml
+measure "appcds-lazy" java -XX:SharedArchiveFile="${APPCDS_DIR}/app.jsa" -Xshare:auto \
+    --add-opens java.base/java.lang=ALL-UNNAMED \
+    -cp "${APPCDS_DIR}/app/classes.jar:${APPCDS_DIR}/app/BOOT-INF/lib/*" \
+    cz.csas.tutorials.api.ApiTutorialsApplication --lazyInitialization=true
@@ -0,0 +1,49 @@
+package cz.csas.tutorials.api;
+
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastStartupConfigurationTest {
+
+    private static final Set<String> CREATED = ConcurrentHashMap.newKeySet();
+
+    @Test
+    public void beansAreLazyUnlessTheirFactoryMethodSaysOtherwise() {
+        CREATED.clear();
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
+            context.addBeanFactoryPostProcessor(FastStartupConfiguration.lazyInitialization());
+            context.register(Beans.class);
+            context.refresh();
+
+            assertEquals(1, CREATED.size());
+            assertTrue(CREATED.contains("eager"));
+            context.getBean("lazy");
+            assertTrue(CREATED.contains("lazy"));
+        }
+    }
+
+    @Configuration
+    static class Beans {
+        @Bean
+        public Object lazy() {
+            CREATED.add("lazy");
+            return new Object();
+        }
+
+        @Bean
+        @Lazy(false)
+        public Object eager() {
+            CREATED.add("eager");
+            return new Object();
+        }
+    }
+}
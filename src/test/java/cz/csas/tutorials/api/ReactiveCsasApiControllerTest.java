@@ -0,0 +1,93 @@
+package cz.csas.tutorials.api;
+
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.services.PispService;
+import cz.csas.tutorials.api.services.ReactivePispService;
+import cz.csas.tutorials.api.services.TokenManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReactiveCsasApiControllerTest {
+
+    private static final String PSU_ID = "psu";
+
+    private final PispService pispService = mock(PispService.class);
+    private final ReactivePispService reactivePispService = mock(ReactivePispService.class);
+    private final TokenManager tokenManager = mock(TokenManager.class);
+    private ReactiveCsasApiController controller;
+
+    @Before
+    public void setUp() {
+        when(tokenManager.getAccessToken(PSU_ID)).thenReturn("token");
+        controller = new ReactiveCsasApiController(pispService, reactivePispService, tokenManager);
+    }
+
+    @Test
+    public void upstreamErrorResponseIsRelayed() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "application/json");
+        byte[] body = "{\"errors\": [{\"error\": \"INVALID_AMOUNT\"}]}".getBytes(StandardCharsets.UTF_8);
+        upstreamFails(new WebClientResponseException("400 Bad Request", 400, "Bad Request", headers, body, StandardCharsets.UTF_8));
+
+        ResponseEntity<Object> response = createPayment();
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals("application/json", response.getHeaders().getFirst("Content-Type"));
+        assertArrayEquals(body, (byte[]) response.getBody());
+    }
+
+    @Test
+    public void upstreamErrorResponseAfterTokenRefreshIsRelayed() throws Exception {
+        when(reactivePispService.proxy(any(), any()))
+                .thenReturn(Mono.error(new ExpiredAccessTokenException("Token has expired.")))
+                .thenReturn(Mono.error(new WebClientResponseException("502 Bad Gateway", 502, "Bad Gateway",
+                        new HttpHeaders(), new byte[0], StandardCharsets.UTF_8)));
+        when(tokenManager.refreshAccessToken(PSU_ID, "token")).thenReturn("new token");
+
+        assertEquals(HttpStatus.BAD_GATEWAY, createPayment().getStatusCode());
+    }
+
+    @Test
+    public void openCircuitBreakerTellsClientToRetryLater() {
+        upstreamFails(new CircuitBreakerOpenException("Circuit breaker of create payment is open.", 2500));
+
+        ResponseEntity<Object> response = createPayment();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertEquals("3", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    public void exceededRateLimitTellsClientToRetryLater() {
+        upstreamFails(new RateLimitExceededException("Rate limit of create payment has been exceeded."));
+
+        ResponseEntity<Object> response = createPayment();
+
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        assertEquals("1", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    private void upstreamFails(Throwable failure) {
+        when(reactivePispService.proxy(any(), any())).thenReturn(Mono.error(failure));
+    }
+
+    private ResponseEntity<Object> createPayment() {
+        return controller.createPayment(PSU_ID, new CreatePaymentRequest()).block();
+    }
+}
@@ -0,0 +1,227 @@
+package cz.csas.tutorials.api.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of the running application - drives payment flow create payment, federated authorization and polling of
+ * authorization state until DONE at target rate (open model: flows start on schedule regardless of responses) and
+ * reports throughput and latency percentiles of every step and of the whole flow. Flow latency is measured from the
+ * planned start, so waiting for a free worker is included. Run the application with the CSAS stub ("stub" profile) to
+ * test offline, then: mvn -P loadtest -DskipTests verify -Dloadtest.rps=50 -Dloadtest.durationSec=60
+ * <p>
+ * Settings (system properties): loadtest.baseUrl, loadtest.rps, loadtest.durationSec, loadtest.users,
+ * loadtest.maxConcurrency, loadtest.pollIntervalMs, loadtest.maxPolls.
+ */
+public class LoadTestHarness {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final String PAYMENT = "{"
+            + "\"paymentTypeInformation\":{\"instructionPriority\":\"NORM\"},"
+            + "\"amount\":{\"instructedAmount\":{\"currency\":\"CZK\",\"value\":100.00}},"
+            + "\"debtorAccount\":{\"identification\":{\"iban\":\"CZ5508000000001234567899\"}},"
+            + "\"creditorAccount\":{\"identification\":{\"iban\":\"CZ1208000000000987654321\"}}}";
+
+    private final String baseUrl = System.getProperty("loadtest.baseUrl", "http://localhost:8080");
+    private final double rps = Double.parseDouble(System.getProperty("loadtest.rps", "20"));
+    private final long durationSec = Long.parseLong(System.getProperty("loadtest.durationSec", "60"));
+    private final int users = Integer.parseInt(System.getProperty("loadtest.users", "10"));
+    private final int maxConcurrency = Integer.parseInt(System.getProperty("loadtest.maxConcurrency", "200"));
+    private final long pollIntervalMs = Long.parseLong(System.getProperty("loadtest.pollIntervalMs", "200"));
+    private final int maxPolls = Integer.parseInt(System.getProperty("loadtest.maxPolls", "50"));
+
+    private final List<String> credentials = new ArrayList<>();
+    private final Map<String, Step> steps = new LinkedHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong flowNumber = new AtomicLong();
+    private CloseableHttpClient httpClient;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTestHarness().run();
+    }
+
+    private LoadTestHarness() {
+        for (String name : new String[]{"createPayment", "federatedAuth", "pollAuthorization", "flow"}) {
+            steps.put(name, new Step());
+        }
+    }
+
+    private void run() throws Exception {
+        httpClient = HttpClients.custom()
+                .setMaxConnTotal(maxConcurrency)
+                .setMaxConnPerRoute(maxConcurrency)
+                .disableRedirectHandling()
+                .disableCookieManagement()
+                .build();
+        try {
+            for (int user = 0; user < users; user++) {
+                credentials.add(authorize());
+            }
+            System.out.printf("%d users authorized, running %.1f flows/s for %d s against %s%n", users, rps, durationSec, baseUrl);
+
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rps);
+            long start = System.nanoTime();
+            scheduler.scheduleAtFixedRate(() -> {
+                long flow = flowNumber.getAndIncrement();
+                // planned start, not the actual one - late ticks of the scheduler count into flow latency
+                long plannedStart = start + flow * periodNanos;
+                try {
+                    workers.execute(() -> flow(credentials.get((int) (flow % users)), plannedStart));
+                } catch (RejectedExecutionException e) {
+                    dropped.increment();
+                }
+            }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSec));
+            scheduler.shutdownNow();
+            workers.shutdown();
+            workers.awaitTermination(maxPolls * pollIntervalMs + 60_000, TimeUnit.MILLISECONDS);
+            report(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    private void flow(String credential, long plannedStart) {
+        try {
+            JsonNode payment = call("createPayment", post("/pisp/createPayment", credential, PAYMENT));
+            JsonNode signInfo = payment.path("signInfo");
+            JsonNode federated = call("federatedAuth", get("/pisp/federatedAuth/" + signInfo.path("signId").asText()
+                    + "/hash/" + signInfo.path("hash").asText(), credential));
+            String pollId = federated.path("pollId").asText();
+            for (int poll = 0; ; poll++) {
+                JsonNode state = call("pollAuthorization", get("/pisp/pollAuthorization/" + pollId, credential));
+                if ("DONE".equals(state.path("signInfo").path("state").asText())) {
+                    break;
+                }
+                if (poll + 1 >= maxPolls) {
+                    throw new IllegalStateException("Authorization not DONE after " + maxPolls + " polls");
+                }
+                Thread.sleep(pollIntervalMs);
+            }
+            steps.get("flow").record(plannedStart, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            steps.get("flow").record(plannedStart, false);
+        }
+    }
+
+    /**
+     * Executes one step of the flow and records its latency.
+     *
+     * @return response body, step fails on non-2xx response
+     */
+    private JsonNode call(String step, HttpUriRequest request) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            HttpResponse response = httpClient.execute(request);
+            String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+            int status = response.getStatusLine().getStatusCode();
+            if (status / 100 != 2) {
+                throw new IOException(step + " failed with status " + status + ": " + body);
+            }
+            success = true;
+            return OBJECT_MAPPER.readTree(body);
+        } finally {
+            steps.get(step).record(start, success);
+        }
+    }
+
+    /**
+     * Goes through authorization of a new user - the stub IDP redirects back to the application immediately.
+     *
+     * @return credential cookie of the user (name=value), sent with PISP calls
+     */
+    private String authorize() throws IOException {
+        String authUrl = EntityUtils.toString(httpClient.execute(new HttpGet(baseUrl + "/auth/authUrl")).getEntity());
+        HttpResponse redirect = httpClient.execute(new HttpGet(authUrl));
+        EntityUtils.consume(redirect.getEntity());
+        if (redirect.getFirstHeader("Location") == null) {
+            throw new IllegalStateException("IDP has not redirected back, is the application running with the CSAS stub? " + redirect.getStatusLine());
+        }
+        HttpResponse callback = httpClient.execute(new HttpGet(redirect.getFirstHeader("Location").getValue()));
+        EntityUtils.consume(callback.getEntity());
+        Header cookie = callback.getFirstHeader("Set-Cookie");
+        if (callback.getStatusLine().getStatusCode() != 200 || cookie == null) {
+            throw new IllegalStateException("Authorization failed: " + callback.getStatusLine());
+        }
+        return cookie.getValue().substring(0, cookie.getValue().indexOf(';'));
+    }
+
+    private HttpGet get(String path, String credential) {
+        HttpGet request = new HttpGet(baseUrl + path);
+        request.setHeader("Cookie", credential);
+        return request;
+    }
+
+    private HttpPost post(String path, String credential, String json) {
+        HttpPost request = new HttpPost(baseUrl + path);
+        request.setHeader("Cookie", credential);
+        request.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        return request;
+    }
+
+    private void report(long elapsedMs) {
+        Step flow = steps.get("flow");
+        System.out.printf("%nflows started %d, completed %d, failed %d, dropped (no free worker) %d in %.1f s%n",
+                flowNumber.get(), flow.successes.sum(), flow.failures.sum(), dropped.sum(), elapsedMs / 1000.0);
+        System.out.printf("throughput %.1f flows/s%n%n", flow.successes.sum() * 1000.0 / elapsedMs);
+        System.out.printf("%-18s %8s %8s %9s %9s %9s %9s %9s%n", "step", "ok", "failed", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        steps.forEach((name, step) -> {
+            Histogram histogram = step.latency;
+            System.out.printf("%-18s %8d %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, step.successes.sum(), step.failures.sum(),
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        });
+    }
+
+    /**
+     * Latency of successful calls (in microseconds) and counts of one step.
+     */
+    private static class Step {
+        private final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private void record(long startNanos, boolean success) {
+            if (success) {
+                latency.recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)));
+                successes.increment();
+            } else {
+                failures.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cz.csas.tutorials.api.loadtest;
+
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.ssl.BasicServerTlsStrategy;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.http2.ssl.H2ServerTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.apache.hc.core5.ssl.SSLContexts;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTPS upstream for transport tests - speaks HTTP/2 (negotiated by ALPN) or HTTP/1.1 only, answers every request
+ * after a fixed delay with the protocol version of the request and counts accepted connections. Its certificate for
+ * localhost is in tls/localhost.p12 (password changeit), use {@link #sslContext()} to trust it.
+ */
+public class TlsUpstreamServer implements Closeable {
+
+    private static final String KEY_STORE = "/tls/localhost.p12";
+    private static final char[] KEY_STORE_PASSWORD = "changeit".toCharArray();
+
+    private final HttpAsyncServer server;
+    private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final int port;
+
+    /**
+     * @param versionPolicy NEGOTIATE to speak HTTP/2 with clients offering it, FORCE_HTTP_1 for HTTP/1.1 only
+     * @param delayMs       delay of every response
+     */
+    public TlsUpstreamServer(HttpVersionPolicy versionPolicy, long delayMs) throws Exception {
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(versionPolicy)
+                // HTTP/1.1 only server does not take part in ALPN at all, like most of them
+                .setTlsStrategy(versionPolicy == HttpVersionPolicy.FORCE_HTTP_1
+                        ? new BasicServerTlsStrategy(sslContext()) : new H2ServerTlsStrategy(sslContext()))
+                .setIOSessionListener(new ConnectionCounter())
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, Void>>() {
+                    @Override
+                    public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+                        return new BasicRequestConsumer<>(entityDetails != null ? new DiscardingEntityConsumer<>() : null);
+                    }
+
+                    @Override
+                    public void handle(Message<HttpRequest, Void> request, ResponseTrigger responseTrigger, HttpContext context) {
+                        String body = String.valueOf(context.getProtocolVersion());
+                        responder.schedule(() -> {
+                            responseTrigger.submitResponse(AsyncResponseBuilder.create(200).setEntity(body).build(), context);
+                            return null;
+                        }, delayMs, TimeUnit.MILLISECONDS);
+                    }
+                })
+                .create();
+        server.start();
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTPS).get();
+        port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+    }
+
+    /**
+     * @return SSL context trusting (and presenting) the test certificate
+     */
+    public static SSLContext sslContext() throws Exception {
+        return SSLContexts.custom()
+                .loadKeyMaterial(TlsUpstreamServer.class.getResource(KEY_STORE), KEY_STORE_PASSWORD, KEY_STORE_PASSWORD)
+                .loadTrustMaterial(TlsUpstreamServer.class.getResource(KEY_STORE), KEY_STORE_PASSWORD)
+                .build();
+    }
+
+    public String url(String path) {
+        return "https://localhost:" + port + path;
+    }
+
+    /**
+     * @return number of connections accepted so far
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() {
+        server.close(CloseMode.IMMEDIATE);
+        responder.shutdownNow();
+    }
+
+    private class ConnectionCounter implements IOSessionListener {
+        @Override
+        public void connected(IOSession session) {
+            connections.incrementAndGet();
+        }
+
+        @Override
+        public void startTls(IOSession session) {
+        }
+
+        @Override
+        public void inputReady(IOSession session) {
+        }
+
+        @Override
+        public void outputReady(IOSession session) {
+        }
+
+        @Override
+        public void timeout(IOSession session) {
+        }
+
+        @Override
+        public void exception(IOSession session, Exception ex) {
+        }
+
+        @Override
+        public void disconnected(IOSession session) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cz.csas.tutorials.api.loadtest;
+
+import cz.csas.tutorials.api.services.AbortableRequestFactory;
+import cz.csas.tutorials.api.services.Http2RequestFactory;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares upstream transports of RestTemplate - httpClientTransport=http1 (HttpClient 4 pool, connection per
+ * concurrent call) and http2 (HttpClient 5, see {@link Http2RequestFactory}) - against local HTTPS upstream
+ * ({@link TlsUpstreamServer}) answering after a fixed delay. Caller threads send calls back to back; throughput,
+ * latency percentiles and connections opened to the upstream (by warm-up and new ones in the measured run) are reported
+ * for HTTP/2 upstream and for HTTP/1.1 only upstream (fallback path of http2 transport). Run: mvn -P loadtest -DskipTests verify
+ * -Dloadtest.mainClass=cz.csas.tutorials.api.loadtest.TransportComparison
+ * <p>
+ * Settings (system properties): comparison.concurrency, comparison.calls, comparison.delayMs, comparison.poolPerRoute
+ * (connection limit of both transports, httpPoolPispMaxPerRoute).
+ */
+public class TransportComparison {
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final int concurrency = Integer.parseInt(System.getProperty("comparison.concurrency", "200"));
+    private final int calls = Integer.parseInt(System.getProperty("comparison.calls", "20000"));
+    private final long delayMs = Long.parseLong(System.getProperty("comparison.delayMs", "20"));
+    private final int poolPerRoute = Integer.parseInt(System.getProperty("comparison.poolPerRoute", "100"));
+
+    public static void main(String[] args) throws Exception {
+        new TransportComparison().run();
+    }
+
+    private void run() throws Exception {
+        System.out.printf("%d calls by %d threads, upstream delay %d ms, pool %d connections per route%n",
+                calls, concurrency, delayMs, poolPerRoute);
+        System.out.printf("%-34s %10s %9s %9s %9s %12s %8s%n", "transport / upstream", "calls/s", "p50 ms", "p99 ms", "max ms",
+                "connections", "new");
+        compare("http1 / HTTP/2 upstream", HttpVersionPolicy.NEGOTIATE, false);
+        compare("http2 / HTTP/2 upstream", HttpVersionPolicy.NEGOTIATE, true);
+        compare("http1 / HTTP/1.1 upstream", HttpVersionPolicy.FORCE_HTTP_1, false);
+        compare("http2 / HTTP/1.1 upstream", HttpVersionPolicy.FORCE_HTTP_1, true);
+    }
+
+    private void compare(String name, HttpVersionPolicy upstreamPolicy, boolean http2) throws Exception {
+        try (TlsUpstreamServer upstream = new TlsUpstreamServer(upstreamPolicy, delayMs)) {
+            ClientHttpRequestFactory requestFactory = http2 ? http2RequestFactory() : http1RequestFactory();
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            URI uri = URI.create(upstream.url("/my/accounts"));
+            // warm-up, also lets http2 transport learn the upstream version
+            execute(restTemplate, uri, Math.min(calls, 2000), new ConcurrentHistogram(MAX_LATENCY_MICROS, 3));
+
+            Histogram latencies = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+            int warmUpConnections = upstream.getConnections();
+            long start = System.nanoTime();
+            execute(restTemplate, uri, calls, latencies);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-34s %10.0f %9.1f %9.1f %9.1f %12d %8d%n", name, calls / seconds,
+                    latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getMaxValue() / 1000.0, warmUpConnections, upstream.getConnections() - warmUpConnections);
+            if (requestFactory instanceof Closeable) {
+                ((Closeable) requestFactory).close();
+            } else {
+                ((DisposableBean) requestFactory).destroy();
+            }
+        }
+    }
+
+    private void execute(RestTemplate restTemplate, URI uri, int count, Histogram latencies) throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> results = new ArrayList<>();
+        for (int thread = 0; thread < concurrency; thread++) {
+            int threadCalls = count / concurrency + (thread < count % concurrency ? 1 : 0);
+            results.add(callers.submit(() -> {
+                for (int i = 0; i < threadCalls; i++) {
+                    long callStart = System.nanoTime();
+                    restTemplate.getForObject(uri, String.class);
+                    latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - callStart), MAX_LATENCY_MICROS));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        callers.shutdown();
+    }
+
+    private ClientHttpRequestFactory http1RequestFactory() throws Exception {
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setSSLContext(TlsUpstreamServer.sslContext())
+                .setMaxConnTotal(poolPerRoute)
+                .setMaxConnPerRoute(poolPerRoute)
+                .disableRedirectHandling()
+                .build();
+        return new AbortableRequestFactory(httpClient);
+    }
+
+    private ClientHttpRequestFactory http2RequestFactory() throws Exception {
+        TlsStrategy tlsStrategy = ClientTlsStrategyBuilder.create().setSslContext(TlsUpstreamServer.sslContext()).build();
+        CloseableHttpAsyncClient multiplexingClient = H2AsyncClientBuilder.create()
+                .setTlsStrategy(tlsStrategy)
+                .disableRedirectHandling()
+                .build();
+        CloseableHttpAsyncClient poolingClient = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setTlsStrategy(tlsStrategy)
+                        .setMaxConnTotal(poolPerRoute)
+                        .setMaxConnPerRoute(poolPerRoute)
+                        .build())
+                .disableRedirectHandling()
+                .build();
+        multiplexingClient.start();
+        poolingClient.start();
+        return new Http2RequestFactory(multiplexingClient, poolingClient, HttpVersionPolicy.NEGOTIATE);
+    }
+}
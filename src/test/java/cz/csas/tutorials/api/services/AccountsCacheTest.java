@@ -0,0 +1,121 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AccountsCacheTest {
+
+    private static final long TTL_MS = 100;
+
+    private final PispService pispService = mock(PispService.class);
+    private AccountsCache accountsCache;
+
+    @Before
+    public void setUp() throws Exception {
+        when(pispService.proxy(any(), eq(AccountsResponse.class))).thenAnswer(invocation -> accounts("accounts", "\"v1\""));
+        accountsCache = new AccountsCache(pispService, new MockEnvironment()
+                .withProperty("accountsCacheEnabled", "true")
+                .withProperty("accountsCacheTtlMs", String.valueOf(TTL_MS))
+                .withProperty("accountsCacheMaxEntries", "100")
+                .withProperty("accountsCacheRevalidateWindowMs", "60000"));
+    }
+
+    @Test
+    public void responseIsServedFromCacheWithinTtl() throws Exception {
+        assertEquals("accounts", get("alice").getBody());
+        assertEquals("accounts", get("alice").getBody());
+        assertEquals("accounts", get("alice").getBody());
+
+        verify(pispService, times(1)).proxy(any(), any());
+        assertEquals(2, accountsCache.getStats().getHits());
+        assertEquals(1, accountsCache.getStats().getMisses());
+    }
+
+    @Test
+    public void staleResponseIsRevalidatedByEtag() throws Exception {
+        get("alice");
+        Thread.sleep(TTL_MS + 50);
+        when(pispService.proxy(any(), eq(AccountsResponse.class))).thenReturn(ResponseEntity.status(HttpStatus.NOT_MODIFIED).build());
+
+        ResponseEntity<Object> response = get("alice");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("accounts", response.getBody());
+        verify(pispService).prepareGetAccounts(any(), any(), any(), any(), any(), any(), eq("\"v1\""));
+        assertEquals(1, accountsCache.getStats().getRevalidations());
+        // revalidated response is fresh again
+        get("alice");
+        verify(pispService, times(2)).proxy(any(), any());
+    }
+
+    @Test
+    public void staleResponseIsReplacedWhenChanged() throws Exception {
+        get("alice");
+        Thread.sleep(TTL_MS + 50);
+        when(pispService.proxy(any(), eq(AccountsResponse.class))).thenAnswer(invocation -> accounts("changed", "\"v2\""));
+
+        assertEquals("changed", get("alice").getBody());
+        assertEquals("changed", get("alice").getBody());
+        verify(pispService, times(2)).proxy(any(), any());
+    }
+
+    @Test
+    public void usersDoNotShareCachedResponses() throws Exception {
+        get("alice");
+        when(pispService.proxy(any(), eq(AccountsResponse.class))).thenAnswer(invocation -> accounts("accounts of bob", null));
+
+        assertEquals("accounts of bob", get("bob").getBody());
+        assertEquals("accounts", get("alice").getBody());
+        verify(pispService, times(2)).proxy(any(), any());
+        verify(pispService, times(2)).prepareGetAccounts(any(), any(), any(), any(), any(), any(), isNull());
+    }
+
+    @Test
+    public void newAuthorizationInvalidatesOnlyResponsesOfTheUser() throws Exception {
+        get("alice");
+        get("bob");
+
+        accountsCache.invalidate("alice");
+        get("alice");
+        get("bob");
+
+        verify(pispService, times(3)).proxy(any(), any());
+        // invalidated response is not revalidated, it is fetched again
+        verify(pispService, times(3)).prepareGetAccounts(any(), any(), any(), any(), any(), any(), isNull());
+    }
+
+    @Test
+    public void errorsAreNotCached() throws Exception {
+        when(pispService.proxy(any(), eq(AccountsResponse.class))).thenReturn(ResponseEntity.status(HttpStatus.BAD_GATEWAY).build());
+        get("alice");
+        get("alice");
+
+        verify(pispService, times(2)).proxy(any(), any());
+    }
+
+    private ResponseEntity<Object> get(String userId) throws Exception {
+        return accountsCache.getAccounts(userId, "token-" + userId, "key", "0", "10", null, null);
+    }
+
+    private static ResponseEntity<Object> accounts(String body, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+}
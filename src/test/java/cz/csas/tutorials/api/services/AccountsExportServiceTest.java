@@ -0,0 +1,81 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.csas.tutorials.api.model.accounts.AccountDetail;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AccountsExportServiceTest {
+
+    private static final int PAGE_COUNT = 7;
+
+    private PispService pispService;
+    private AccountsExportService accountsExportService;
+
+    @Before
+    public void setUp() throws Exception {
+        pispService = mock(PispService.class);
+        when(pispService.getAccounts(anyString(), anyString(), anyString(), eq("2"), any(), any())).thenAnswer(invocation -> {
+            int page = Integer.parseInt(invocation.getArgument(2));
+            // later pages are faster, prefetched pages complete out of order
+            Thread.sleep(10L * (PAGE_COUNT - page));
+            return ResponseEntity.ok(page(page));
+        });
+        accountsExportService = new AccountsExportService(pispService, mock(TokenManager.class), new JsonCodec(new ObjectMapper()),
+                new MockEnvironment()
+                        .withProperty("accountsExportPageSize", "2")
+                        .withProperty("accountsExportPrefetch", "3")
+                        .withProperty("accountsExportThreads", "3"));
+    }
+
+    @After
+    public void tearDown() {
+        accountsExportService.shutdown();
+    }
+
+    @Test
+    public void allPagesAreWrittenInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        accountsExportService.start("user", "token", "key", null, null).writeTo(out);
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(PAGE_COUNT * 2, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals("{\"id\":\"a" + i + "\"}", lines[i]);
+        }
+        verify(pispService, times(PAGE_COUNT)).getAccounts(anyString(), anyString(), anyString(), eq("2"), any(), any());
+    }
+
+    private static AccountsResponse page(int page) {
+        List<AccountDetail> accounts = new ArrayList<>();
+        for (int i = page * 2; i < page * 2 + 2; i++) {
+            AccountDetail account = new AccountDetail();
+            account.setId("a" + i);
+            accounts.add(account);
+        }
+        AccountsResponse response = new AccountsResponse();
+        response.setPageNumber(page);
+        response.setPageCount(PAGE_COUNT);
+        response.setAccounts(accounts);
+        return response;
+    }
+}
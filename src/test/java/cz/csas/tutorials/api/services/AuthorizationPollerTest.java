@@ -0,0 +1,171 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AuthorizationPollerTest {
+
+    private PispService pispService;
+    private TokenManager tokenManager;
+    private AuthorizationPoller authorizationPoller;
+
+    @Before
+    public void setUp() throws Exception {
+        pispService = mock(PispService.class);
+        tokenManager = mock(TokenManager.class);
+        when(tokenManager.getAccessToken(anyString())).thenReturn("token");
+        when(pispService.pollAuthorizationState(anyString(), anyString(), anyString()))
+                .thenReturn(response("OPEN"), response("OPEN"), response("DONE"));
+        authorizationPoller = new AuthorizationPoller(pispService, tokenManager, mock(PaymentLifecycleStore.class), environment());
+    }
+
+    private static MockEnvironment environment() {
+        return new MockEnvironment()
+                .withProperty("authPollThreads", "2")
+                .withProperty("authPollTickMs", "10")
+                .withProperty("authPollInitialDelayMs", "50")
+                .withProperty("authPollMaxDelayMs", "100")
+                .withProperty("authPollBackoffMultiplier", "2")
+                .withProperty("authPollMaxDurationMs", "5000")
+                .withProperty("authPollIdleMs", "5000")
+                .withProperty("authPollMaxErrors", "3")
+                .withProperty("authPollTerminalStates", "DONE");
+    }
+
+    @After
+    public void tearDown() {
+        authorizationPoller.shutdown();
+    }
+
+    @Test
+    public void listenersOfSameAuthorizationShareOnePolling() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        authorizationPoller.subscribe("user", "key", "poll1", first);
+        authorizationPoller.subscribe("user", "key", "poll1", second);
+
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        assertEquals(asList("OPEN", "DONE"), first.states);
+        assertEquals(asList("OPEN", "DONE"), second.states);
+        verify(pispService, times(3)).pollAuthorizationState(anyString(), anyString(), anyString());
+        assertEquals(0, authorizationPoller.getTrackedCount());
+    }
+
+    @Test
+    public void pollingStopsWhenNobodyListensAndNextListenerRestartsIt() throws Exception {
+        authorizationPoller.shutdown();
+        authorizationPoller = new AuthorizationPoller(pispService, tokenManager, mock(PaymentLifecycleStore.class), environment()
+                .withProperty("authPollIdleMs", "100"));
+        when(pispService.pollAuthorizationState(anyString(), anyString(), anyString())).thenReturn(response("OPEN"));
+        RecordingListener leaving = new RecordingListener(false);
+        authorizationPoller.subscribe("user", "key", "poll1", leaving);
+        for (int i = 0; i < 100 && authorizationPoller.getTrackedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, authorizationPoller.getTrackedCount());
+
+        RecordingListener next = new RecordingListener(true);
+        authorizationPoller.subscribe("user", "key", "poll1", next);
+
+        assertTrue(next.firstState.await(5, TimeUnit.SECONDS));
+        assertEquals(asList("OPEN"), leaving.states);
+        assertTrue(leaving.stopped.isEmpty());
+        assertTrue(next.stopped.isEmpty());
+    }
+
+    @Test
+    public void blockedListenerDoesNotHoldUpOtherSubscriptions() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener() {
+            @Override
+            public boolean onState(PollStateResponse response, boolean terminal) {
+                blocked.countDown();
+                awaitQuietly(release);
+                return super.onState(response, terminal);
+            }
+        };
+        authorizationPoller.subscribe("user", "key", "poll1", slow);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        RecordingListener next = new RecordingListener();
+        CompletableFuture.runAsync(() -> authorizationPoller.subscribe("user", "key", "poll1", next)).get(1, TimeUnit.SECONDS);
+        assertEquals(asList("OPEN"), next.states);
+
+        release.countDown();
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertTrue(next.done.await(5, TimeUnit.SECONDS));
+        assertEquals(asList("OPEN", "DONE"), slow.states);
+        assertEquals(asList("OPEN", "DONE"), next.states);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ResponseEntity<PollStateResponse> response(String state) {
+        SignInfo signInfo = new SignInfo();
+        signInfo.setState(state);
+        PollStateResponse response = new PollStateResponse();
+        response.setSignInfo(signInfo);
+        return ResponseEntity.ok(response);
+    }
+
+    private static class RecordingListener implements AuthorizationPoller.PollListener {
+        private final List<String> states = new CopyOnWriteArrayList<>();
+        private final List<HttpStatus> stopped = new CopyOnWriteArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final CountDownLatch firstState = new CountDownLatch(1);
+        private final boolean listening;
+
+        RecordingListener() {
+            this(true);
+        }
+
+        RecordingListener(boolean listening) {
+            this.listening = listening;
+        }
+
+        @Override
+        public boolean onState(PollStateResponse response, boolean terminal) {
+            states.add(response.getSignInfo().getState());
+            firstState.countDown();
+            if (terminal) {
+                done.countDown();
+            }
+            return listening;
+        }
+
+        @Override
+        public void onStopped(HttpStatus status, String error) {
+            stopped.add(status);
+            done.countDown();
+        }
+    }
+}
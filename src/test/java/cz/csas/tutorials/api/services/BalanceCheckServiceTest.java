@@ -0,0 +1,101 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.balance.BalanceCheckRequest;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResponse;
+import cz.csas.tutorials.api.model.balance.BalanceCheckResult;
+import cz.csas.tutorials.api.model.balance.DebtorAccount;
+import cz.csas.tutorials.api.model.balance.Identification;
+import cz.csas.tutorials.api.model.balance.TransactionDetails;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BalanceCheckServiceTest {
+
+    private PispService pispService;
+    private BalanceCheckService balanceCheckService;
+    private CountDownLatch upstreamLatch;
+
+    @Before
+    public void setUp() throws Exception {
+        pispService = mock(PispService.class);
+        upstreamLatch = new CountDownLatch(1);
+        when(pispService.balanceCheck(anyString(), anyString(), any())).thenAnswer(invocation -> {
+            upstreamLatch.await(5, TimeUnit.SECONDS);
+            BalanceCheckResponse response = new BalanceCheckResponse();
+            response.setFundsAvailable(true);
+            return ResponseEntity.ok(response);
+        });
+        balanceCheckService = new BalanceCheckService(pispService, mock(TokenManager.class), new MockEnvironment().withProperty("balanceCheckThreads", "4"));
+    }
+
+    @After
+    public void tearDown() {
+        balanceCheckService.shutdown();
+    }
+
+    @Test
+    public void identicalChecksInBatchCallPispOnce() throws Exception {
+        List<BalanceCheckRequest> requests = Arrays.asList(
+                request(1, "CZ01", "100"), request(2, "CZ01", "100.00"), request(3, "CZ02", "100"), request(4, "CZ01", "100.0"));
+        upstreamLatch.countDown();
+
+        List<BalanceCheckResult> results = balanceCheckService.balanceCheck("user", "token", "key", requests).get(5, TimeUnit.SECONDS);
+
+        verify(pispService, times(2)).balanceCheck(anyString(), anyString(), any());
+        assertEquals(4, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), results.get(i).getExchangeIdentification());
+            assertEquals(HttpStatus.OK.value(), results.get(i).getStatus());
+            assertTrue(results.get(i).getFundsAvailable());
+        }
+    }
+
+    @Test
+    public void concurrentRequestsJoinCheckInFlight() throws Exception {
+        CompletableFuture<List<BalanceCheckResult>> first = balanceCheckService.balanceCheck("user", "token", "key", Arrays.asList(request(1, "CZ01", "100")));
+        CompletableFuture<List<BalanceCheckResult>> second = balanceCheckService.balanceCheck("user", "token", "key", Arrays.asList(request(2, "CZ01", "100")));
+        CompletableFuture<List<BalanceCheckResult>> otherUser = balanceCheckService.balanceCheck("other", "token", "key", Arrays.asList(request(3, "CZ01", "100")));
+        upstreamLatch.countDown();
+
+        assertEquals(Long.valueOf(1), first.get(5, TimeUnit.SECONDS).get(0).getExchangeIdentification());
+        assertEquals(Long.valueOf(2), second.get(5, TimeUnit.SECONDS).get(0).getExchangeIdentification());
+        assertEquals(Long.valueOf(3), otherUser.get(5, TimeUnit.SECONDS).get(0).getExchangeIdentification());
+        verify(pispService, times(2)).balanceCheck(anyString(), anyString(), any());
+        assertEquals(1, balanceCheckService.getStats().getInFlightDuplicates());
+    }
+
+    private static BalanceCheckRequest request(long exchangeIdentification, String iban, String amount) {
+        Identification identification = new Identification();
+        identification.setIban(iban);
+        DebtorAccount debtorAccount = new DebtorAccount();
+        debtorAccount.setIdentification(identification);
+        TransactionDetails transactionDetails = new TransactionDetails();
+        transactionDetails.setCurrency("CZK");
+        transactionDetails.setTotalAmount(new BigDecimal(amount));
+        BalanceCheckRequest request = new BalanceCheckRequest();
+        request.setExchangeIdentification(exchangeIdentification);
+        request.setDebtorAccount(debtorAccount);
+        request.setTransactionDetails(transactionDetails);
+        return request;
+    }
+}
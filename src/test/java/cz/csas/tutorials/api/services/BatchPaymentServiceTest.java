@@ -0,0 +1,154 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchPaymentServiceTest {
+
+    private static final LocalDate FIRST_DATE = LocalDate.of(2026, 1, 1);
+
+    private final PispService pispService = mock(PispService.class);
+    private final List<CreatePaymentResult> results = new CopyOnWriteArrayList<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private BatchPaymentService batchPaymentService;
+
+    @Before
+    public void setUp() throws Exception {
+        when(pispService.createPayment(anyString(), anyString(), any())).thenAnswer(invocation -> {
+            int index = indexOf(invocation.getArgument(2));
+            // later payments are faster, they complete out of order
+            Thread.sleep(10L * (10 - index));
+            if (index == 2) {
+                throw new HttpServerErrorException(HttpStatus.BAD_GATEWAY, "Bad Gateway", "upstream failed".getBytes(StandardCharsets.UTF_8),
+                        StandardCharsets.UTF_8);
+            }
+            if (index == 4) {
+                throw new IllegalStateException("Unexpected");
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(new CreatePaymentResponse());
+        });
+    }
+
+    @After
+    public void tearDown() {
+        batchPaymentService.shutdown();
+    }
+
+    @Test
+    public void resultsAreReportedInOrderOfRequestsAlsoForFailedPayments() throws Exception {
+        batchPaymentService = new BatchPaymentService(pispService, mock(TokenManager.class), mock(PaymentLifecycleStore.class), 4, 3);
+
+        batchPaymentService.createPayments("user", "token", "key", payments(6), collect(), completed::countDown);
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), indexes());
+        assertEquals(Arrays.asList(201, 201, 502, 201, 0, 201), statuses());
+        assertEquals("upstream failed", results.get(2).getError());
+    }
+
+    @Test
+    public void listenerCancelsRemainingPayments() throws Exception {
+        batchPaymentService = new BatchPaymentService(pispService, mock(TokenManager.class), mock(PaymentLifecycleStore.class), 4, 1);
+
+        batchPaymentService.createPayments("user", "token", "key", payments(4), result -> {
+            results.add(result);
+            return false;
+        }, completed::countDown);
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3), indexes());
+        assertEquals(Arrays.asList(201, 0, 0, 0), statuses());
+        verify(pispService, times(1)).createPayment(anyString(), anyString(), any());
+    }
+
+    @Test
+    public void slowListenerDoesNotStopWorkers() throws Exception {
+        batchPaymentService = new BatchPaymentService(pispService, mock(TokenManager.class), mock(PaymentLifecycleStore.class), 4, 2);
+        AtomicInteger created = new AtomicInteger();
+        CountDownLatch allCreated = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            if (created.incrementAndGet() == 5) {
+                allCreated.countDown();
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(new CreatePaymentResponse());
+        }).when(pispService).createPayment(anyString(), anyString(), any());
+
+        batchPaymentService.createPayments("user", "token", "key", payments(5), result -> {
+            // client reads slowly, sending of the first result blocks until all payments are created
+            if (result.getIndex() == 0) {
+                try {
+                    assertTrue(allCreated.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            results.add(result);
+            return true;
+        }, completed::countDown);
+
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(5, created.get());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), indexes());
+    }
+
+    private BatchPaymentService.ResultListener collect() {
+        return result -> {
+            results.add(result);
+            return true;
+        };
+    }
+
+    private List<Integer> indexes() {
+        List<Integer> indexes = new ArrayList<>();
+        results.forEach(result -> indexes.add(result.getIndex()));
+        return indexes;
+    }
+
+    private List<Integer> statuses() {
+        List<Integer> statuses = new ArrayList<>();
+        results.forEach(result -> statuses.add(result.getStatus()));
+        return statuses;
+    }
+
+    private static List<CreatePaymentRequest> payments(int count) {
+        List<CreatePaymentRequest> payments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CreatePaymentRequest payment = new CreatePaymentRequest();
+            payment.setRequestedExecutionDate(FIRST_DATE.plusDays(i));
+            payments.add(payment);
+        }
+        return payments;
+    }
+
+    private static int indexOf(CreatePaymentRequest payment) {
+        return (int) ChronoUnit.DAYS.between(FIRST_DATE, payment.getRequestedExecutionDate());
+    }
+}
@@ -0,0 +1,133 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.Tokens;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileTokenStoreTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journal;
+
+    @Before
+    public void setUp() {
+        journal = folder.getRoot().toPath().resolve("tokens.journal");
+    }
+
+    @Test
+    public void tokensSurviveRestart() throws Exception {
+        FileTokenStore store = open(1000);
+        store.save("alice", new Tokens("access-a", "refresh-a", 1000L));
+        store.save("bob", new Tokens("access-b", null, 0L));
+        store.save("alice", new Tokens("access-a2", "refresh-a", 2000L));
+        store.remove("bob");
+        store.close();
+
+        Map<String, Tokens> restored = load();
+
+        assertEquals(1, restored.size());
+        assertEquals(new Tokens("access-a2", "refresh-a", 2000L), restored.get("alice"));
+        assertNull(restored.get("bob"));
+    }
+
+    @Test
+    public void journalIsEncrypted() throws Exception {
+        FileTokenStore store = open(1000);
+        store.save("alice", new Tokens("secret-access-token", "secret-refresh-token", 0L));
+        store.close();
+
+        String content = new String(Files.readAllBytes(journal), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("secret"));
+        assertFalse(content.contains("alice"));
+    }
+
+    @Test
+    public void journalIsCompacted() throws Exception {
+        FileTokenStore store = open(1000);
+        saveRepeatedly(store);
+        long uncompactedSize = Files.size(journal);
+        Files.delete(journal);
+
+        store = open(10);
+        saveRepeatedly(store);
+
+        assertTrue(Files.size(journal) < uncompactedSize / 5);
+        assertEquals("access-99", load().get("alice").getAccessToken());
+    }
+
+    @Test
+    public void incompleteRecordAtTheEndIsDropped() throws Exception {
+        FileTokenStore store = open(1000);
+        store.save("alice", new Tokens("access-a", "refresh-a", 0L));
+        store.close();
+        Files.write(journal, new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        FileTokenStore reopened = new FileTokenStore(journal.toString(), KEY, 1000, false);
+        assertEquals("access-a", reopened.loadAll().get("alice").getAccessToken());
+        reopened.save("bob", new Tokens("access-b", "refresh-b", 0L));
+        reopened.close();
+
+        Map<String, Tokens> restored = load();
+        assertEquals(2, restored.size());
+        assertTrue(Files.exists(journal.resolveSibling("tokens.journal.broken")));
+    }
+
+    @Test
+    public void corruptedRecordLengthFailsLoudly() throws Exception {
+        FileTokenStore store = open(1000);
+        store.save("alice", new Tokens("access-a", "refresh-a", 0L));
+        store.save("bob", new Tokens("access-b", "refresh-b", 0L));
+        store.close();
+        byte[] content = Files.readAllBytes(journal);
+        content[0] = (byte) 0x7f;
+        Files.write(journal, content);
+
+        try {
+            load();
+            fail("Corrupted journal expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("invalid record length"));
+        }
+        assertArrayEquals(content, Files.readAllBytes(journal));
+    }
+
+    private void saveRepeatedly(FileTokenStore store) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.save("alice", new Tokens("access-" + i, "refresh", 0L));
+        }
+        store.close();
+    }
+
+    private FileTokenStore open(int compactionMinRecords) {
+        FileTokenStore store = new FileTokenStore(journal.toString(), KEY, compactionMinRecords, false);
+        store.loadAll();
+        return store;
+    }
+
+    private Map<String, Tokens> load() throws Exception {
+        FileTokenStore store = new FileTokenStore(journal.toString(), KEY, 1000, false);
+        Map<String, Tokens> tokens = store.loadAll();
+        store.close();
+        return tokens;
+    }
+}
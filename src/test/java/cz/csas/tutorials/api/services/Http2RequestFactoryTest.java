@@ -0,0 +1,193 @@
+package cz.csas.tutorials.api.services;
+
+import com.sun.net.httpserver.HttpServer;
+import cz.csas.tutorials.api.loadtest.TlsUpstreamServer;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Plain http test server speaks HTTP/1.1 only - calls stay on HTTP/1.1 pool; version negotiation is tested against
+ * {@link TlsUpstreamServer}.
+ */
+public class Http2RequestFactoryTest {
+
+    private HttpServer server;
+    private Http2RequestFactory requestFactory;
+    private RestTemplate restTemplate;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/echo", exchange -> {
+            String request = exchange.getRequestMethod() + " " + exchange.getRequestHeaders().getFirst("Content-Type")
+                    + " " + exchange.getRequestHeaders().getFirst("web-api-key")
+                    + " " + StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            byte[] body = request.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(request.startsWith("DELETE") ? 404 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(3000);
+                exchange.sendResponseHeaders(200, -1);
+            } catch (InterruptedException | IOException e) {
+                // client has aborted the request
+            }
+            exchange.close();
+        });
+        server.start();
+        requestFactory = requestFactory(SSLContexts.createDefault());
+        restTemplate = new RestTemplate(requestFactory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        requestFactory.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void negotiatedHttp2ConnectionIsShared() throws Exception {
+        try (TlsUpstreamServer upstream = new TlsUpstreamServer(HttpVersionPolicy.NEGOTIATE, 200);
+             Http2RequestFactory factory = requestFactory(TlsUpstreamServer.sslContext())) {
+            RestTemplate template = new RestTemplate(factory);
+            URI uri = URI.create(upstream.url("/accounts"));
+
+            assertEquals("HTTP/2.0", template.getForObject(uri, String.class));
+            assertTrue(factory.isMultiplexed(uri));
+
+            ExecutorService callers = Executors.newFixedThreadPool(20);
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                responses.add(callers.submit(() -> template.getForObject(uri, String.class)));
+            }
+            for (Future<String> response : responses) {
+                assertEquals("HTTP/2.0", response.get(5, TimeUnit.SECONDS));
+            }
+            callers.shutdown();
+            // negotiating connection of the pool and one multiplexed connection
+            assertEquals(2, upstream.getConnections());
+        }
+    }
+
+    @Test
+    public void http1UpstreamIsCalledOverPool() throws Exception {
+        try (TlsUpstreamServer upstream = new TlsUpstreamServer(HttpVersionPolicy.FORCE_HTTP_1, 0);
+             Http2RequestFactory factory = requestFactory(TlsUpstreamServer.sslContext())) {
+            RestTemplate template = new RestTemplate(factory);
+            URI uri = URI.create(upstream.url("/accounts"));
+
+            assertEquals("HTTP/1.1", template.getForObject(uri, String.class));
+            assertEquals("HTTP/1.1", template.postForObject(uri, "{}", String.class));
+            assertFalse(factory.isMultiplexed(uri));
+            assertEquals(1, upstream.getConnections());
+        }
+    }
+
+    @Test
+    public void headersAndBodyAreSent() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set(PispRequest.WEB_API_KEY_HEADER, "key");
+
+        ResponseEntity<String> response = restTemplate.exchange(url("/echo"), HttpMethod.POST,
+                new HttpEntity<>("{\"amount\":1}", headers), String.class);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(MediaType.TEXT_PLAIN, response.getHeaders().getContentType());
+        assertEquals("POST application/json key {\"amount\":1}", response.getBody());
+    }
+
+    @Test
+    public void errorStatusIsReported() {
+        try {
+            restTemplate.exchange(url("/echo"), HttpMethod.DELETE, null, String.class);
+            fail("404 expected");
+        } catch (HttpClientErrorException e) {
+            assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getResponseBodyAsString().startsWith("DELETE"));
+        }
+    }
+
+    @Test
+    public void boundRequestIsAborted() throws InterruptedException {
+        AbortableRequestFactory.AbortHandle handle = new AbortableRequestFactory.AbortHandle();
+        Thread aborter = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            handle.abort();
+        });
+        aborter.start();
+        long start = System.currentTimeMillis();
+
+        AbortableRequestFactory.bind(handle);
+        try {
+            restTemplate.getForObject(url("/slow"), String.class);
+            fail("Aborted request expected");
+        } catch (ResourceAccessException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        } finally {
+            AbortableRequestFactory.unbind();
+            aborter.join();
+        }
+    }
+
+    private static Http2RequestFactory requestFactory(SSLContext sslContext) {
+        TlsStrategy tlsStrategy = ClientTlsStrategyBuilder.create().setSslContext(sslContext).build();
+        CloseableHttpAsyncClient multiplexingClient = H2AsyncClientBuilder.create().setTlsStrategy(tlsStrategy).build();
+        CloseableHttpAsyncClient poolingClient = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create().setTlsStrategy(tlsStrategy).build())
+                .build();
+        multiplexingClient.start();
+        poolingClient.start();
+        return new Http2RequestFactory(multiplexingClient, poolingClient, HttpVersionPolicy.NEGOTIATE);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+}
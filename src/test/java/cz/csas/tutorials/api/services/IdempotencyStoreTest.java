@@ -0,0 +1,182 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.payments.Amount;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import cz.csas.tutorials.api.model.payments.InstructedAmount;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdempotencyStoreTest {
+
+    private IdempotencyStore idempotencyStore;
+    private AtomicInteger calls;
+
+    @Before
+    public void setUp() {
+        idempotencyStore = new IdempotencyStore(new JsonCodec(new ObjectMapper().findAndRegisterModules()), new MockEnvironment()
+                .withProperty("idempotencyTtlMs", "60000")
+                .withProperty("idempotencyMaxEntries", "100")
+                .withProperty("idempotencyKeyMaxLength", "64"));
+        calls = new AtomicInteger();
+    }
+
+    @Test
+    public void repeatedCallIsServedFromStore() throws Exception {
+        ResponseEntity<Object> first = idempotencyStore.execute("user", "k1", payment("100"), this::created);
+        ResponseEntity<Object> second = idempotencyStore.execute("user", "k1", payment("100"), this::created);
+
+        assertEquals(1, calls.get());
+        assertEquals(first.getBody(), second.getBody());
+        assertNull(first.getHeaders().getFirst(IdempotencyStore.REPLAYED_HEADER));
+        assertEquals("true", second.getHeaders().getFirst(IdempotencyStore.REPLAYED_HEADER));
+        assertEquals(1, idempotencyStore.getStats().getReplays());
+    }
+
+    @Test
+    public void keyReusedForDifferentPaymentIsRejected() throws Exception {
+        idempotencyStore.execute("user", "k1", payment("100"), this::created);
+
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, idempotencyStore.execute("user", "k1", payment("200"), this::created).getStatusCode());
+        assertEquals(HttpStatus.CREATED, idempotencyStore.execute("other", "k1", payment("200"), this::created).getStatusCode());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void duplicateWaitsForCallInFlight() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<ResponseEntity<Object>> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return idempotencyStore.execute("user", "k1", payment("100"), () -> {
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return created();
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ResponseEntity<Object>> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return idempotencyStore.execute("user", "k1", payment("100"), this::created);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        release.countDown();
+
+        assertEquals(first.get(5, TimeUnit.SECONDS).getBody(), second.get(5, TimeUnit.SECONDS).getBody());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failedCallReleasesKey() throws Exception {
+        try {
+            idempotencyStore.execute("user", "k1", payment("100"), () -> {
+                throw new IllegalStateException("upstream failure");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(HttpStatus.CREATED, idempotencyStore.execute("user", "k1", payment("100"), this::created).getStatusCode());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void responseWithNonStandardStatusIsReplayed() throws Exception {
+        idempotencyStore.execute("user", "k1", payment("100"), () -> ResponseEntity.status(299).body("payment-" + calls.incrementAndGet()));
+
+        ResponseEntity<Object> replayed = idempotencyStore.execute("user", "k1", payment("100"), this::created);
+
+        assertEquals(299, replayed.getStatusCodeValue());
+        assertEquals("payment-1", replayed.getBody());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void callFailedByErrorReleasesKeyAndWaitingDuplicate() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                idempotencyStore.execute("user", "k1", payment("100"), () -> {
+                    started.countDown();
+                    awaitQuietly(release);
+                    throw new AssertionError("not an exception");
+                });
+            } catch (ExpiredAccessTokenException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ResponseEntity<Object>> duplicate = CompletableFuture.supplyAsync(() -> {
+            try {
+                return idempotencyStore.execute("user", "k1", payment("100"), this::created);
+            } catch (ExpiredAccessTokenException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        release.countDown();
+
+        try {
+            duplicate.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            // failure of the first call
+        }
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(HttpStatus.CREATED, idempotencyStore.execute("user", "k1", payment("100"), this::created).getStatusCode());
+    }
+
+    private ResponseEntity<Object> created() {
+        return ResponseEntity.status(HttpStatus.CREATED).body("payment-" + calls.incrementAndGet());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CreatePaymentRequest payment(String value) {
+        InstructedAmount instructedAmount = new InstructedAmount();
+        instructedAmount.setCurrency("CZK");
+        instructedAmount.setValue(new BigDecimal(value));
+        Amount amount = new Amount();
+        amount.setInstructedAmount(instructedAmount);
+        CreatePaymentRequest request = new CreatePaymentRequest();
+        request.setAmount(amount);
+        return request;
+    }
+}
@@ -0,0 +1,36 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonCodecTest {
+
+    private static final String CREATED_PAYMENT = "{"
+            + "\"paymentTypeInformation\": {\"instructionPriority\": \"INST\", \"serviceLevel\": \"SEPA\"},"
+            + "\"amount\": {\"instructedAmount\": {\"value\": 150.5, \"currency\": \"CZK\", \"exchangeRate\": 1}},"
+            + "\"debtorAccount\": {\"identification\": {\"iban\": \"CZ6508000000192000145399\", \"otherAccountNumber\": \"19-2000145399/0800\"},"
+            + " \"currency\": \"CZK\"},"
+            + "\"creditorAccount\": {\"identification\": {\"iban\": \"CZ6508000000002222222222\"}, \"name\": \"Creditor\"}"
+            + "}";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonCodec jsonCodec = new JsonCodec(objectMapper);
+
+    @Test
+    public void createdPaymentKeepsUnknownNestedPropertiesAndPriorities() throws Exception {
+        CreatePaymentResponse payment = jsonCodec.reader(CreatePaymentResponse.class).readValue(CREATED_PAYMENT);
+
+        assertEquals("INST", payment.getPaymentTypeInformation().getInstructionPriority());
+        assertEquals(new BigDecimal("150.5"), payment.getAmount().getInstructedAmount().getValue());
+        assertEquals("CZ6508000000192000145399", payment.getDebtorAccount().getIdentification().getIban());
+
+        JsonNode written = objectMapper.readTree(jsonCodec.writer(CreatePaymentResponse.class).writeValueAsBytes(payment));
+        assertEquals(objectMapper.readTree(CREATED_PAYMENT), written);
+    }
+}
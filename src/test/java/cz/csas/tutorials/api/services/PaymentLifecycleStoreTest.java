@@ -0,0 +1,147 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.payments.CreatePaymentResponse;
+import cz.csas.tutorials.api.model.payments.PaymentLifecycle;
+import cz.csas.tutorials.api.model.sign.FederatedAuthorizationResponse;
+import cz.csas.tutorials.api.model.sign.PollStateResponse;
+import cz.csas.tutorials.api.model.sign.SignInfo;
+import cz.csas.tutorials.api.model.sign.SignResponse;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PaymentLifecycleStoreTest {
+
+    private final PaymentLifecycleStore store = store("2");
+
+    @Test
+    public void paymentIsFollowedThroughSignAndPoll() {
+        store.recordCreatedPayment("user", ok(createdPayment("sign1", "OPEN")));
+        store.recordFederatedAuthorization("user", "sign1", "hash", ok(federatedAuth("sign1", "OPEN", "poll1")));
+
+        PaymentLifecycle payment = store.getByPollId("user", "poll1");
+        assertEquals("sign1", payment.getSignId());
+        assertEquals("hash", payment.getHash());
+        assertEquals("https://csas/sign", payment.getSigningUrl());
+        assertNotNull(payment.getPayment());
+        assertEquals(1, store.getByState("user", "OPEN").size());
+
+        store.recordPollState("user", "poll1", ok(pollState("sign1", "DONE")));
+
+        assertEquals("DONE", store.get("user", "sign1").getState());
+        assertTrue(store.getByState("user", "OPEN").isEmpty());
+        assertEquals(1, store.getByState("user", "DONE").size());
+        assertNull(store.get("other", "sign1"));
+    }
+
+    @Test
+    public void freshResponsesAreServedUntilStateChanges() {
+        SignResponse detail = new SignResponse();
+        detail.setSignInfo(signInfo("sign1", "OPEN"));
+        store.recordSignDetail("user", "sign1", ok(detail));
+        store.recordFederatedAuthorization("user", "sign1", "hash", ok(federatedAuth("sign1", "OPEN", "poll1")));
+
+        ResponseEntity<Object> stored = store.getFreshSignDetail("user", "sign1");
+        assertSame(detail, stored.getBody());
+        assertEquals("0", stored.getHeaders().getFirst(HttpHeaders.AGE));
+        assertNotNull(store.getFreshFederatedAuthorization("user", "sign1", "hash"));
+        assertNull(store.getFreshFederatedAuthorization("user", "sign1", "otherHash"));
+
+        store.recordSignChange("user", "sign1", ok(signResponse("sign1", "AUTHORIZING")));
+
+        assertNull(store.getFreshSignDetail("user", "sign1"));
+        assertNull(store.getFreshFederatedAuthorization("user", "sign1", "hash"));
+        assertEquals(2, store.getStats().getHits());
+    }
+
+    @Test
+    public void federatedAuthorizationIsNotServedOncePolled() {
+        store.recordFederatedAuthorization("user", "sign1", "hash", ok(federatedAuth("sign1", "OPEN", "poll1")));
+        assertNotNull(store.getFreshFederatedAuthorization("user", "sign1", "hash"));
+
+        store.recordPollState("user", "poll1", ok(pollState("sign1", "OPEN")));
+
+        assertNull(store.getFreshFederatedAuthorization("user", "sign1", "hash"));
+        assertEquals("poll1", store.get("user", "sign1").getPollId());
+    }
+
+    @Test
+    public void failedAndUnparsedResponsesAreNotRecorded() {
+        store.recordCreatedPayment("user", new ResponseEntity<>(createdPayment("sign1", "OPEN"), HttpStatus.BAD_REQUEST));
+        store.recordCreatedPayment("user", ok(new byte[]{'{', '}'}));
+
+        assertNull(store.get("user", "sign1"));
+        assertEquals(0, store.getStats().getSize());
+    }
+
+    @Test
+    public void evictedPaymentsAreRemovedFromIndexes() {
+        PaymentLifecycleStore small = store("1");
+        small.recordFederatedAuthorization("user", "sign1", "hash", ok(federatedAuth("sign1", "OPEN", "poll1")));
+        small.recordFederatedAuthorization("user", "sign2", "hash", ok(federatedAuth("sign2", "OPEN", "poll2")));
+        small.recordFederatedAuthorization("user", "sign3", "hash", ok(federatedAuth("sign3", "OPEN", "poll3")));
+
+        int known = 0;
+        for (String pollId : new String[]{"poll1", "poll2", "poll3"}) {
+            if (small.getByPollId("user", pollId) != null) {
+                known++;
+            }
+        }
+        assertTrue(known <= 1);
+        assertTrue(small.getByState("user", "OPEN").size() <= 1);
+    }
+
+    private static PaymentLifecycleStore store(String maxEntries) {
+        return new PaymentLifecycleStore(new MockEnvironment()
+                .withProperty("paymentStoreMaxEntries", maxEntries)
+                .withProperty("paymentStoreIdleMs", "60000")
+                .withProperty("paymentStoreSignDetailTtlMs", "5000")
+                .withProperty("paymentStoreFederatedAuthTtlMs", "5000"));
+    }
+
+    private static ResponseEntity<?> ok(Object body) {
+        return ResponseEntity.ok(body);
+    }
+
+    private static SignInfo signInfo(String signId, String state) {
+        SignInfo signInfo = new SignInfo();
+        signInfo.setSignId(signId);
+        signInfo.setState(state);
+        signInfo.setHash("hash");
+        return signInfo;
+    }
+
+    private static CreatePaymentResponse createdPayment(String signId, String state) {
+        CreatePaymentResponse payment = new CreatePaymentResponse();
+        payment.setSignInfo(signInfo(signId, state));
+        return payment;
+    }
+
+    private static SignResponse signResponse(String signId, String state) {
+        SignResponse response = new SignResponse();
+        response.setSignInfo(signInfo(signId, state));
+        return response;
+    }
+
+    private static FederatedAuthorizationResponse federatedAuth(String signId, String state, String pollId) {
+        FederatedAuthorizationResponse response = new FederatedAuthorizationResponse();
+        response.setSignInfo(signInfo(signId, state));
+        response.setSigningUrl("https://csas/sign");
+        response.setPollId(pollId);
+        return response;
+    }
+
+    private static PollStateResponse pollState(String signId, String state) {
+        PollStateResponse response = new PollStateResponse();
+        response.setSignInfo(signInfo(signId, state));
+        return response;
+    }
+}
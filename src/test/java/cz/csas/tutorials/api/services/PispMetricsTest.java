@@ -0,0 +1,44 @@
+package cz.csas.tutorials.api.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PispMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final PispMetrics metrics = new PispMetrics(registry);
+
+    @Test
+    public void upstreamCallsAreTimedByEndpointAndStatusClass() {
+        long start = System.nanoTime();
+        metrics.recordUpstream("accounts", PispMetrics.statusOf(HttpStatus.OK), start);
+        metrics.recordUpstream("accounts", PispMetrics.statusOf(HttpStatus.NOT_MODIFIED), start);
+        metrics.recordUpstream("accounts", PispMetrics.statusOf(HttpStatus.OK), start);
+        metrics.recordUpstream("accounts", PispMetrics.statusOf(new HttpServerErrorException(HttpStatus.BAD_GATEWAY)), start);
+
+        assertEquals(2, registry.find("pisp.upstream.requests").tags("endpoint", "accounts", "status", "2xx").timer().count());
+        assertEquals(1, registry.find("pisp.upstream.requests").tags("endpoint", "accounts", "status", "3xx").timer().count());
+        assertEquals(1, registry.find("pisp.upstream.requests").tags("endpoint", "accounts", "status", "5xx").timer().count());
+    }
+
+    @Test
+    public void failuresWithoutResponseHaveOwnStatus() {
+        assertEquals("IO_ERROR", PispMetrics.statusOf(new ResourceAccessException("Read timed out")));
+        assertEquals("ERROR", PispMetrics.statusOf(new IllegalStateException("Aborted")));
+    }
+
+    @Test
+    public void expiredTokensAreCountedByType() {
+        metrics.accessTokenExpired("createPayment");
+        metrics.refreshTokenExpired("rejected");
+        metrics.refreshTokenExpired("rejected");
+
+        assertEquals(1, registry.find("pisp.tokens.expired").tags("token", "access").counter().count(), 0);
+        assertEquals(2, registry.find("pisp.tokens.expired").tags("token", "refresh", "source", "rejected").counter().count(), 0);
+    }
+}
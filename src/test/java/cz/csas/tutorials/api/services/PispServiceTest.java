@@ -0,0 +1,121 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.csas.tutorials.api.model.ExpiredAccessTokenException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+public class PispServiceTest {
+
+    private static final String ACCOUNTS_URL = "http://localhost/accounts";
+    private static final byte[] ERROR_BODY = "{ \"errors\": [{\"error\": \"PARAMETER_INVALID\"}] }".getBytes(StandardCharsets.UTF_8);
+
+    private MockRestServiceServer upstream;
+    private RequestHedger requestHedger;
+    private PispService pispService;
+
+    @Before
+    public void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        upstream = MockRestServiceServer.bindTo(restTemplate).build();
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("pispPassthrough", "true")
+                .withProperty("pispForwardedHeaders", "Content-Type,Retry-After")
+                .withProperty("pispAccountsUrl", ACCOUNTS_URL)
+                .withProperty("pispAccBalanceCheckUrl", "http://localhost/balanceCheck")
+                .withProperty("pispCreatePaymentUrl", "http://localhost/payments")
+                .withProperty("pispApiAuthUrl", "http://localhost/sign/{signId}/api")
+                .withProperty("pispFederatedAuthUrl", "http://localhost/sign/{signId}/federated")
+                .withProperty("pispPollAuthUrl", "http://localhost/poll/{pollId}")
+                .withProperty("pispRetryEndpoints", "accounts")
+                .withProperty("pispRetryMaxAttempts", "2")
+                .withProperty("pispRetryInitialBackoffMs", "1")
+                .withProperty("pispRetryMaxBackoffMs", "5")
+                .withProperty("pispCircuitBreakerWindowSize", "10")
+                .withProperty("pispCircuitBreakerMinCalls", "10")
+                .withProperty("pispCircuitBreakerFailureRateThreshold", "50")
+                .withProperty("pispCircuitBreakerOpenDurationMs", "100")
+                .withProperty("pispRateLimitPerSecond", "1000")
+                .withProperty("pispRateLimitBurst", "100")
+                .withProperty("pispRateLimitMaxQueue", "10")
+                .withProperty("pispRateLimitMaxWaitMs", "1000")
+                .withProperty("pispHedgeEndpoints", "")
+                .withProperty("pispHedgePercentile", "95")
+                .withProperty("pispHedgeMinDelayMs", "10")
+                .withProperty("pispHedgeMaxDelayMs", "100")
+                .withProperty("pispHedgeBudgetPercent", "10")
+                .withProperty("pispHedgeThreads", "1");
+        requestHedger = new RequestHedger(environment);
+        pispService = new PispService(restTemplate, environment, new JsonCodec(new ObjectMapper()), new UpstreamGuard(environment),
+                new UpstreamRateLimiter(environment), requestHedger, new PispMetrics(new SimpleMeterRegistry()));
+    }
+
+    @After
+    public void tearDown() {
+        requestHedger.shutdown();
+    }
+
+    @Test
+    public void clientErrorIsRelayedAsItIs() throws Exception {
+        upstream.expect(requestTo(startsWith(ACCOUNTS_URL)))
+                .andRespond(withStatus(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body(ERROR_BODY));
+
+        ResponseEntity<Object> response = getAccounts();
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertArrayEquals(ERROR_BODY, (byte[]) response.getBody());
+        assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+        upstream.verify();
+    }
+
+    @Test
+    public void serverErrorIsRetriedAndRelayedAsItIs() throws Exception {
+        upstream.expect(ExpectedCount.times(2), requestTo(startsWith(ACCOUNTS_URL)))
+                .andRespond(withStatus(HttpStatus.SERVICE_UNAVAILABLE).contentType(MediaType.APPLICATION_JSON).body(ERROR_BODY));
+
+        ResponseEntity<Object> response = getAccounts();
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertArrayEquals(ERROR_BODY, (byte[]) response.getBody());
+        upstream.verify();
+    }
+
+    @Test(expected = ExpiredAccessTokenException.class)
+    public void forbiddenMeansExpiredToken() throws Exception {
+        upstream.expect(requestTo(startsWith(ACCOUNTS_URL))).andRespond(withStatus(HttpStatus.FORBIDDEN));
+
+        getAccounts();
+    }
+
+    @Test
+    public void rawBodyIsLoggedAsText() throws Exception {
+        upstream.expect(requestTo(startsWith(ACCOUNTS_URL))).andRespond(withStatus(HttpStatus.BAD_REQUEST).body(ERROR_BODY));
+
+        String description = PispService.describe(getAccounts()).toString();
+
+        assertTrue(description, description.contains("PARAMETER_INVALID") && description.contains(ERROR_BODY.length + " bytes"));
+    }
+
+    private ResponseEntity<Object> getAccounts() throws ExpiredAccessTokenException {
+        return pispService.proxy(pispService.prepareGetAccounts("token", "key", null, null, null, null, null), AccountsResponse.class);
+    }
+}
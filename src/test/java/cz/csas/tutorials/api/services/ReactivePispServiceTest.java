@@ -0,0 +1,185 @@
+package cz.csas.tutorials.api.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import cz.csas.tutorials.api.model.accounts.AccountsResponse;
+import cz.csas.tutorials.api.model.payments.CreatePaymentRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReactivePispServiceTest {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    /**
+     * Statuses of next upstream responses, 200 when empty
+     */
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private volatile long firstResponseDelayMs;
+    private RequestHedger requestHedger;
+    private UpstreamGuard upstreamGuard;
+    private PispService pispService;
+    private ReactivePispService reactivePispService;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            int request = requests.incrementAndGet();
+            if (request == 1 && firstResponseDelayMs > 0) {
+                sleep(firstResponseDelayMs);
+            }
+            Integer status = statuses.poll();
+            byte[] body = ("{\"request\": " + request + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status != null ? status : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException e) {
+                // client has cancelled the request
+            }
+        });
+        server.start();
+        createService("1000", "100", "");
+    }
+
+    @After
+    public void tearDown() {
+        requestHedger.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void serverErrorOfIdempotentCallIsRetried() {
+        statuses.add(503);
+
+        ResponseEntity<AccountsResponse> response = reactivePispService.getAccounts("token", "key", "0", "1", null, null).block();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(2, requests.get());
+        assertEquals(1, upstreamGuard.getStats().get("accounts").getRetries());
+    }
+
+    @Test
+    public void openBreakerRejectsCallsWithoutReachingUpstream() {
+        for (int i = 0; i < 4; i++) {
+            statuses.add(500);
+            try {
+                createPayment();
+                fail("Server error expected");
+            } catch (WebClientResponseException e) {
+                assertEquals(500, e.getRawStatusCode());
+            }
+        }
+
+        try {
+            createPayment();
+            fail("Open breaker expected");
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(4, requests.get());
+        }
+    }
+
+    @Test
+    public void callsAreRateLimited() {
+        requestHedger.shutdown();
+        createService("0.1", "1", "");
+        reactivePispService.getAccounts("token", "key", "0", "1", null, null).block();
+
+        try {
+            reactivePispService.getAccounts("token", "key", "0", "1", null, null).block();
+            fail("Rate limit expected");
+        } catch (RateLimitExceededException e) {
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void slowGetIsHedged() {
+        requestHedger.shutdown();
+        createService("1000", "100", "accounts");
+        firstResponseDelayMs = 3000;
+        long start = System.currentTimeMillis();
+
+        ResponseEntity<AccountsResponse> response = reactivePispService.getAccounts("token", "key", "0", "1", null, null).block();
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(2, response.getBody().getOtherProperties().get("request"));
+        assertEquals(1, requestHedger.getStats().get("accounts").getHedgeWins());
+    }
+
+    private void createPayment() {
+        reactivePispService.createPayment("token", "key", new CreatePaymentRequest()).block();
+    }
+
+    private void createService(String rateLimitPerSecond, String rateLimitBurst, String hedgeEndpoints) {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("pispPassthrough", "false")
+                .withProperty("pispForwardedHeaders", "Content-Type")
+                .withProperty("pispAccountsUrl", url + "/accounts")
+                .withProperty("pispAccBalanceCheckUrl", url + "/balanceCheck")
+                .withProperty("pispCreatePaymentUrl", url + "/payments")
+                .withProperty("pispApiAuthUrl", url + "/sign/{signId}/api")
+                .withProperty("pispFederatedAuthUrl", url + "/sign/{signId}/federated")
+                .withProperty("pispPollAuthUrl", url + "/poll/{pollId}")
+                .withProperty("pispRetryEndpoints", "accounts")
+                .withProperty("pispRetryMaxAttempts", "2")
+                .withProperty("pispRetryInitialBackoffMs", "1")
+                .withProperty("pispRetryMaxBackoffMs", "5")
+                .withProperty("pispCircuitBreakerWindowSize", "4")
+                .withProperty("pispCircuitBreakerMinCalls", "4")
+                .withProperty("pispCircuitBreakerFailureRateThreshold", "50")
+                .withProperty("pispCircuitBreakerOpenDurationMs", "60000")
+                .withProperty("pispRateLimitPerSecond", rateLimitPerSecond)
+                .withProperty("pispRateLimitBurst", rateLimitBurst)
+                .withProperty("pispRateLimitMaxQueue", "0")
+                .withProperty("pispRateLimitMaxWaitMs", "100")
+                .withProperty("pispHedgeEndpoints", hedgeEndpoints)
+                .withProperty("pispHedgePercentile", "95")
+                .withProperty("pispHedgeMinDelayMs", "10")
+                .withProperty("pispHedgeMaxDelayMs", "100")
+                .withProperty("pispHedgeBudgetPercent", "10")
+                .withProperty("pispHedgeThreads", "1");
+        JsonCodec jsonCodec = new JsonCodec(new ObjectMapper());
+        PispMetrics metrics = new PispMetrics(new SimpleMeterRegistry());
+        UpstreamRateLimiter rateLimiter = new UpstreamRateLimiter(environment);
+        requestHedger = new RequestHedger(environment);
+        upstreamGuard = new UpstreamGuard(environment);
+        pispService = new PispService(new RestTemplate(), environment, jsonCodec, upstreamGuard, rateLimiter, requestHedger, metrics);
+        reactivePispService = new ReactivePispService(WebClient.create(), pispService, jsonCodec, upstreamGuard, rateLimiter,
+                requestHedger, metrics);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
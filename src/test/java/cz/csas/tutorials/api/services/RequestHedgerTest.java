@@ -0,0 +1,119 @@
+package cz.csas.tutorials.api.services;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHedgerTest {
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private RestTemplate restTemplate;
+    private RequestHedger requestHedger;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        // first request is slow, the others are fast
+        server.createContext("/slow-once", exchange -> {
+            int request = requests.incrementAndGet();
+            if (request == 1) {
+                sleep(3000);
+            }
+            byte[] body = ("response " + request).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException e) {
+                // client has aborted the request
+            }
+        });
+        server.start();
+        httpClient = HttpClients.createDefault();
+        restTemplate = new RestTemplate(new AbortableRequestFactory(httpClient));
+        requestHedger = new RequestHedger(new MockEnvironment()
+                .withProperty("pispHedgeEndpoints", "accounts")
+                .withProperty("pispHedgePercentile", "95")
+                .withProperty("pispHedgeMinDelayMs", "10")
+                .withProperty("pispHedgeMaxDelayMs", "100")
+                .withProperty("pispHedgeBudgetPercent", "10")
+                .withProperty("pispHedgeThreads", "2"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        requestHedger.shutdown();
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndAborted() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/slow-once";
+        long start = System.currentTimeMillis();
+        AtomicInteger abortedCalls = new AtomicInteger();
+
+        String response = requestHedger.call("accounts", () -> true, () -> {
+            try {
+                return restTemplate.getForObject(url, String.class);
+            } catch (RuntimeException e) {
+                // the slower call is recorded as cancelled, not as upstream failure
+                if (AbortableRequestFactory.currentHandle().isAborted()) {
+                    abortedCalls.incrementAndGet();
+                }
+                throw e;
+            }
+        });
+
+        assertEquals("response 2", response);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, abortedCalls.get());
+        assertEquals(1, requestHedger.getStats().get("accounts").getHedges());
+        assertEquals(1, requestHedger.getStats().get("accounts").getHedgeWins());
+    }
+
+    @Test
+    public void endpointWithoutHedgingIsCalledOnce() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/slow-once";
+        requests.set(1);
+
+        assertEquals("response 2", requestHedger.call("createPayment", () -> true, () -> restTemplate.getForObject(url, String.class)));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void hedgeIsNotSentWithoutRateLimiterPermit() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/slow-once";
+
+        String response = requestHedger.call("accounts", () -> false, () -> restTemplate.getForObject(url, String.class));
+
+        assertEquals("response 1", response);
+        assertEquals(1, requests.get());
+        assertEquals(0, requestHedger.getStats().get("accounts").getHedges());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.ExpiredRefreshTokenException;
+import cz.csas.tutorials.api.model.Tokens;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TokenHolderTest {
+
+    private static final int CALLERS = 500;
+
+    private ExecutorService executor;
+    private TokenHolder tokenHolder;
+    private AtomicInteger refreshCount;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(CALLERS);
+        tokenHolder = new TokenHolder();
+        tokenHolder.set(new Tokens("access-0", "refresh", 0));
+        refreshCount = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentRefreshesOfSameTokenCallIdpOnce() throws Exception {
+        List<String> results = refreshConcurrently("access-0", current -> {
+            pause();
+            return new Tokens("access-" + refreshCount.incrementAndGet(), current.getRefreshToken(), 0);
+        });
+
+        assertEquals(1, refreshCount.get());
+        for (String result : results) {
+            assertEquals("access-1", result);
+        }
+    }
+
+    @Test
+    public void everyExpiryIsRefreshedExactlyOnce() throws Exception {
+        TokenHolder.TokenRefresher refresher = current -> new Tokens("access-" + refreshCount.incrementAndGet(), current.getRefreshToken(), 0);
+
+        for (int expiry = 0; expiry < 5; expiry++) {
+            List<String> results = refreshConcurrently("access-" + expiry, refresher);
+            assertEquals(expiry + 1, refreshCount.get());
+            for (String result : results) {
+                assertEquals("access-" + (expiry + 1), result);
+            }
+        }
+    }
+
+    @Test
+    public void callersWithAlreadyRefreshedTokenDoNotRefreshAgain() throws Exception {
+        tokenHolder.refresh("access-0", current -> new Tokens("access-" + refreshCount.incrementAndGet(), current.getRefreshToken(), 0));
+
+        Tokens tokens = tokenHolder.refresh("access-0", current -> {
+            fail("Token has already been refreshed");
+            return null;
+        });
+
+        assertEquals("access-1", tokens.getAccessToken());
+        assertEquals(1, refreshCount.get());
+    }
+
+    @Test
+    public void expiredRefreshTokenIsReportedToAllWaiters() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                try {
+                    tokenHolder.refresh("access-0", current -> {
+                        refreshCount.incrementAndGet();
+                        pause();
+                        throw new ExpiredRefreshTokenException("Refresh token has expired.");
+                    });
+                    return false;
+                } catch (ExpiredRefreshTokenException e) {
+                    return true;
+                }
+            }));
+        }
+        start.countDown();
+
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS));
+        }
+        assertTrue(refreshCount.get() >= 1);
+        assertEquals("access-0", tokenHolder.get().getAccessToken());
+    }
+
+    private List<String> refreshConcurrently(String staleAccessToken, TokenHolder.TokenRefresher refresher) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return tokenHolder.refresh(staleAccessToken, refresher).getAccessToken();
+            }));
+        }
+        start.countDown();
+
+        List<String> results = new ArrayList<>();
+        for (Future<String> future : futures) {
+            results.add(future.get(10, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.TokenResponse;
+import cz.csas.tutorials.api.model.Tokens;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TokenManagerTest {
+
+    private final AuthService authService = mock(AuthService.class);
+    private final PsuCredentials psuCredentials = new PsuCredentials(60);
+    private TokenVault tokenVault;
+    private TokenManager tokenManager;
+
+    @Before
+    public void setUp() {
+        TokenStore tokenStore = new MemoryOnlyTokenStore();
+        tokenVault = new TokenVault(tokenStore, 100, 60000);
+        tokenManager = new TokenManager(authService, tokenVault, tokenStore, new PispMetrics(new SimpleMeterRegistry()), 1);
+    }
+
+    @After
+    public void tearDown() {
+        tokenManager.shutdown();
+    }
+
+    @Test
+    public void usersAreIdentifiedByTheirCredentialsOnly() {
+        String alice = psuCredentials.newCredential();
+        String bob = psuCredentials.newCredential();
+        tokenManager.storeTokens(psuCredentials.userIdOf(alice), tokens("access-alice", "refresh-alice"));
+        tokenManager.storeTokens(psuCredentials.userIdOf(bob), tokens("access-bob", "refresh-bob"));
+
+        assertEquals("access-alice", tokenManager.getAccessToken(psuCredentials.userIdOf(alice)));
+        assertEquals("access-bob", tokenManager.getAccessToken(psuCredentials.userIdOf(bob)));
+        assertNotEquals(alice, psuCredentials.userIdOf(alice));
+        // user id is not a credential, unknown or missing credential gets no tokens
+        assertNull(tokenManager.getAccessToken(psuCredentials.userIdOf(psuCredentials.userIdOf(alice))));
+        assertNull(tokenManager.getAccessToken(psuCredentials.userIdOf(psuCredentials.newCredential())));
+        assertNull(tokenManager.getAccessToken(psuCredentials.userIdOf(null)));
+        assertEquals(2, tokenVault.size());
+    }
+
+    @Test
+    public void refreshAndRemovalOfUserDoNotTouchOthers() throws Exception {
+        tokenManager.storeTokens("alice", tokens("access-alice", "refresh-alice"));
+        tokenManager.storeTokens("bob", tokens("access-bob", "refresh-bob"));
+        when(authService.refreshTokens(eq("refresh-alice"), any(), any())).thenReturn(tokens("access-alice-2", null));
+
+        assertEquals("access-alice-2", tokenManager.refreshAccessToken("alice", "access-alice"));
+
+        assertEquals("access-bob", tokenManager.getAccessToken("bob"));
+        verify(authService, times(1)).refreshTokens(any(), any(), any());
+        tokenVault.remove("alice");
+        assertNull(tokenManager.getAccessToken("alice"));
+        assertEquals("access-bob", tokenManager.getAccessToken("bob"));
+    }
+
+    @Test
+    public void shortLivedTokenIsRefreshedInBackgroundInHalfOfItsValidity() throws Exception {
+        enableBackgroundRefresh(0);
+        List<String> refreshThreads = new CopyOnWriteArrayList<>();
+        when(authService.refreshTokens(eq("refresh-alice"), any(), any())).thenAnswer(invocation -> {
+            refreshThreads.add(Thread.currentThread().getName());
+            return tokens("access-alice-2", null);
+        });
+        // skew is longer than validity, refresh is planned in half of the validity (500 ms), not right away
+        tokenManager.storeTokens("alice", tokens("access-alice", "refresh-alice", 1L));
+
+        Thread.sleep(250);
+        verify(authService, never()).refreshTokens(any(), any(), any());
+        verify(authService, timeout(2000)).refreshTokens(any(), any(), any());
+        awaitAccessToken("alice", "access-alice-2");
+        assertEquals(1, refreshThreads.size());
+        assertTrue(refreshThreads.get(0).startsWith("token-refresher-"));
+    }
+
+    @Test
+    public void expiredRestoredTokenIsRefreshedWithinJitter() throws Exception {
+        TokenStore tokenStore = mock(TokenStore.class);
+        when(tokenStore.loadAll()).thenReturn(singletonMap("alice", new Tokens("access-alice", "refresh-alice", System.currentTimeMillis() - 1000)));
+        tokenVault = new TokenVault(tokenStore, 100, 60000);
+        tokenManager.shutdown();
+        tokenManager = new TokenManager(authService, tokenVault, tokenStore, new PispMetrics(new SimpleMeterRegistry()), 1);
+        enableBackgroundRefresh(100);
+        when(authService.refreshTokens(eq("refresh-alice"), any(), any())).thenReturn(tokens("access-alice-2", null));
+
+        tokenManager.restoreTokens();
+
+        verify(authService, timeout(1000)).refreshTokens(any(), any(), any());
+        awaitAccessToken("alice", "access-alice-2");
+    }
+
+    @Test
+    public void failedBackgroundRefreshIsRetried() throws Exception {
+        enableBackgroundRefresh(0);
+        when(authService.refreshTokens(eq("refresh-alice"), any(), any()))
+                .thenThrow(new IllegalStateException("CSAS IDP is unavailable"))
+                .thenReturn(tokens("access-alice-2", null));
+        tokenManager.storeTokens("alice", tokens("access-alice", "refresh-alice", 1L));
+
+        verify(authService, timeout(2000).times(2)).refreshTokens(any(), any(), any());
+        awaitAccessToken("alice", "access-alice-2");
+    }
+
+    @Test
+    public void plannedRefreshIsCancelledWhenUserIsEvicted() throws Exception {
+        enableBackgroundRefresh(0);
+        when(authService.refreshTokens(eq("refresh-alice"), any(), any())).thenReturn(tokens("access-alice-2", null));
+        tokenManager.storeTokens("alice", tokens("access-alice", "refresh-alice", 1L));
+
+        tokenVault.remove("alice");
+
+        Thread.sleep(1000);
+        verify(authService, never()).refreshTokens(any(), any(), any());
+    }
+
+    /**
+     * Sets what is injected from application properties: skew longer than validity of test tokens, short retry
+     */
+    private void enableBackgroundRefresh(long jitterMs) {
+        ReflectionTestUtils.setField(tokenManager, "refreshEnabled", true);
+        ReflectionTestUtils.setField(tokenManager, "refreshSkewMs", 60000L);
+        ReflectionTestUtils.setField(tokenManager, "refreshJitterMs", jitterMs);
+        ReflectionTestUtils.setField(tokenManager, "refreshRetryMs", 50L);
+    }
+
+    private void awaitAccessToken(String userId, String accessToken) throws InterruptedException {
+        for (int i = 0; i < 100 && !accessToken.equals(tokenManager.getAccessToken(userId)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(accessToken, tokenManager.getAccessToken(userId));
+    }
+
+    private static TokenResponse tokens(String accessToken, String refreshToken) {
+        return tokens(accessToken, refreshToken, null);
+    }
+
+    private static TokenResponse tokens(String accessToken, String refreshToken, Long expiresIn) {
+        TokenResponse response = new TokenResponse();
+        response.setAccessToken(accessToken);
+        response.setRefreshToken(refreshToken);
+        response.setExpiresIn(expiresIn);
+        return response;
+    }
+}
@@ -0,0 +1,67 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.Tokens;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TokenVaultTest {
+
+    private final Map<String, Tokens> stored = new ConcurrentHashMap<>();
+    private final TokenStore tokenStore = new TokenStore() {
+        @Override
+        public void save(String userId, Tokens tokens) {
+            stored.put(userId, tokens);
+        }
+
+        @Override
+        public void remove(String userId) {
+            stored.remove(userId);
+        }
+
+        @Override
+        public Map<String, Tokens> loadAll() {
+            return stored;
+        }
+    };
+
+    @Test
+    public void idleUserIsEvictedAlsoFromStore() throws Exception {
+        TokenVault vault = new TokenVault(tokenStore, 100, 50);
+        store(vault, "alice", "access-a");
+
+        Thread.sleep(100);
+
+        assertNull(vault.get("alice"));
+        // store is cleaned up by cache maintenance, which runs in background
+        for (int i = 0; i < 100 && stored.containsKey("alice"); i++) {
+            Thread.sleep(10);
+        }
+        assertNull(stored.get("alice"));
+    }
+
+    @Test
+    public void tokensStoredAgainAfterEvictionAreKept() throws Exception {
+        TokenVault vault = new TokenVault(tokenStore, 100, 50);
+        for (int i = 0; i < 20; i++) {
+            store(vault, "alice", "access-" + i);
+            Thread.sleep(60);
+            // user authorizes again right after idle eviction
+            store(vault, "alice", "access-" + i + "-again");
+            Thread.sleep(5);
+
+            assertEquals("access-" + i + "-again", vault.get("alice").get().getAccessToken());
+            assertEquals("access-" + i + "-again", stored.get("alice").getAccessToken());
+        }
+    }
+
+    private void store(TokenVault vault, String userId, String accessToken) {
+        Tokens tokens = new Tokens(accessToken, "refresh", 0L);
+        vault.getOrCreate(userId).set(tokens);
+        tokenStore.save(userId, tokens);
+    }
+}
@@ -0,0 +1,111 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.CircuitBreakerOpenException;
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UpstreamGuardTest {
+
+    private UpstreamGuard upstreamGuard;
+    private AtomicInteger calls;
+
+    @Before
+    public void setUp() {
+        upstreamGuard = new UpstreamGuard(new MockEnvironment()
+                .withProperty("pispRetryEndpoints", "accounts")
+                .withProperty("pispRetryMaxAttempts", "3")
+                .withProperty("pispRetryInitialBackoffMs", "1")
+                .withProperty("pispRetryMaxBackoffMs", "5")
+                .withProperty("pispCircuitBreakerWindowSize", "4")
+                .withProperty("pispCircuitBreakerMinCalls", "4")
+                .withProperty("pispCircuitBreakerFailureRateThreshold", "50")
+                .withProperty("pispCircuitBreakerOpenDurationMs", "100"));
+        calls = new AtomicInteger();
+    }
+
+    @Test
+    public void idempotentEndpointIsRetried() {
+        String result = upstreamGuard.call("accounts", () -> { }, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            return "ok";
+        });
+
+        assertEquals("ok", result);
+        assertEquals(3, calls.get());
+        assertEquals(2, upstreamGuard.getStats().get("accounts").getRetries());
+    }
+
+    @Test
+    public void nonIdempotentEndpointAndClientErrorsAreNotRetried() {
+        expectFailure("createPayment", new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE), HttpServerErrorException.class);
+        expectFailure("accounts", new HttpClientErrorException(HttpStatus.BAD_REQUEST), HttpClientErrorException.class);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void openBreakerRejectsCallsUntilTrialSucceeds() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            expectFailure("createPayment", new HttpServerErrorException(HttpStatus.BAD_GATEWAY), HttpServerErrorException.class);
+        }
+        expectFailure("createPayment", null, CircuitBreakerOpenException.class);
+        assertEquals(4, calls.get());
+        assertEquals("OPEN", upstreamGuard.getStats().get("createPayment").getState());
+
+        Thread.sleep(150);
+        assertEquals("ok", upstreamGuard.call("createPayment", () -> { }, () -> "ok"));
+        assertEquals("CLOSED", upstreamGuard.getStats().get("createPayment").getState());
+        assertEquals(1, upstreamGuard.getStats().get("createPayment").getRejected());
+    }
+
+    @Test
+    public void openBreakerRejectsCallBeforeRateLimiterAndRejectedTrialIsReleased() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            expectFailure("createPayment", new HttpServerErrorException(HttpStatus.BAD_GATEWAY), HttpServerErrorException.class);
+        }
+        AtomicInteger permits = new AtomicInteger();
+        try {
+            upstreamGuard.call("createPayment", permits::incrementAndGet, () -> "ok");
+            fail();
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(0, permits.get());
+        }
+
+        Thread.sleep(150);
+        try {
+            upstreamGuard.call("createPayment", () -> {
+                throw new RateLimitExceededException("PISP rate limit exceeded, wait queue is full.");
+            }, () -> "ok");
+            fail();
+        } catch (RateLimitExceededException e) {
+            // trial call has not been made, next call may try it
+        }
+        assertEquals("ok", upstreamGuard.call("createPayment", permits::incrementAndGet, () -> "ok"));
+        assertEquals(1, permits.get());
+        assertEquals("CLOSED", upstreamGuard.getStats().get("createPayment").getState());
+    }
+
+    private void expectFailure(String endpoint, RuntimeException upstreamFailure, Class<? extends RuntimeException> expected) {
+        try {
+            upstreamGuard.call(endpoint, () -> { }, () -> {
+                calls.incrementAndGet();
+                throw upstreamFailure;
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+}
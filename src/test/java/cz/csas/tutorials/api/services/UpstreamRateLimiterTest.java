@@ -0,0 +1,54 @@
+package cz.csas.tutorials.api.services;
+
+import cz.csas.tutorials.api.model.RateLimitExceededException;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UpstreamRateLimiterTest {
+
+    private final UpstreamRateLimiter rateLimiter = new UpstreamRateLimiter(new MockEnvironment()
+            .withProperty("pispRateLimitPerSecond", "5")
+            .withProperty("pispRateLimitBurst", "1")
+            .withProperty("pispRateLimitMaxQueue", "2")
+            .withProperty("pispRateLimitMaxWaitMs", "2000"));
+
+    @Test
+    public void urgentCallsGoAheadOfBackgroundCalls() throws Exception {
+        List<String> order = new CopyOnWriteArrayList<>();
+        rateLimiter.acquire("key", UpstreamRateLimiter.Priority.NORMAL);
+        Thread background = new Thread(() -> {
+            rateLimiter.acquire("key", UpstreamRateLimiter.Priority.BACKGROUND);
+            order.add("background");
+        });
+        Thread urgent = new Thread(() -> {
+            rateLimiter.acquire("key", UpstreamRateLimiter.Priority.URGENT);
+            order.add("urgent");
+        });
+        background.start();
+        Thread.sleep(50);
+        urgent.start();
+        Thread.sleep(50);
+
+        try {
+            rateLimiter.acquire("key", UpstreamRateLimiter.Priority.NORMAL);
+            fail();
+        } catch (RateLimitExceededException e) {
+            // queue is full
+        }
+        // other key has own quota
+        rateLimiter.acquire("other", UpstreamRateLimiter.Priority.BACKGROUND);
+
+        background.join(2000);
+        urgent.join(2000);
+        assertEquals(asList("urgent", "background"), order);
+        assertEquals(1, rateLimiter.getStats().get("URGENT").getDelayed());
+        assertEquals(1, rateLimiter.getStats().get("NORMAL").getRejected());
+    }
+}
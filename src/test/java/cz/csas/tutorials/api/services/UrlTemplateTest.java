@@ -0,0 +1,46 @@
+package cz.csas.tutorials.api.services;
+
+import org.junit.Test;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class UrlTemplateTest {
+
+    private static final String BASE_URL = "https://webapi.developers.erstegroup.com/api/csas/sandbox/v1/payment-initiation";
+
+    @Test
+    public void expandsVariablesAsUriComponentsBuilder() {
+        String template = BASE_URL + "/my/payments/federate/sign/{signId}/hash/{hash}";
+
+        assertEquals(UriComponentsBuilder.fromUriString(template).buildAndExpand("151112531008164", "a1b2").toString(),
+                new UrlTemplate(template).expand("151112531008164", "a1b2"));
+    }
+
+    @Test
+    public void urlWithoutVariablesIsReturnedAsIs() {
+        String template = BASE_URL + "/my/payments";
+
+        assertEquals(UriComponentsBuilder.fromUriString(template).build().toString(), new UrlTemplate(template).expand());
+    }
+
+    @Test
+    public void appendsQueryAsUriComponentsBuilder() {
+        String template = BASE_URL + "/my/accounts";
+
+        String expected = UriComponentsBuilder.fromUriString(template)
+                .queryParam("page", "0")
+                .queryParam("size", "50")
+                .queryParam("sort", (Object) null)
+                .queryParam("order", "desc")
+                .buildAndExpand(Collections.emptyMap()).toString();
+        assertEquals(expected, new UrlTemplate(template).withQuery("page", "0", "size", "50", "sort", null, "order", "desc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValueIsRejected() {
+        new UrlTemplate(BASE_URL + "/my/payments/sign/{signId}").expand();
+    }
+}
@@ -0,0 +1,135 @@
+package cz.csas.tutorials.api.stub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CsasStubServerTest {
+
+    private CsasStubServer stub;
+    private RestTemplate restTemplate;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new CsasStubServer(new ObjectMapper(), new MockEnvironment()
+                .withProperty("csasStubPort", "0")
+                .withProperty("csasStubThreads", "4")
+                .withProperty("csasStubLatencyMedianMs", "1")
+                .withProperty("csasStubLatencyP99Ms", "5")
+                .withProperty("csasStubErrorPercent", "0")
+                .withProperty("csasStubTokenExpiresInSec", "300")
+                .withProperty("csasStubRefreshTokenExpiresInSec", "3600")
+                .withProperty("csasStubPollsUntilDone", "2")
+                .withProperty("csasStubAccounts", "5")
+                .withProperty("csasStubMaxEntries", "1000"));
+        baseUrl = "http://localhost:" + stub.getPort();
+        restTemplate = new RestTemplate(new SimpleClientHttpRequestFactory() {
+            @Override
+            protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+                super.prepareConnection(connection, httpMethod);
+                connection.setInstanceFollowRedirects(false);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        stub.shutdown();
+    }
+
+    @Test
+    public void paymentIsDoneAfterConfiguredPolls() {
+        String accessToken = authorize();
+
+        Map<?, ?> payment = pisp(accessToken, HttpMethod.POST, "/my/payments", Collections.singletonMap("amount", Collections.emptyMap())).getBody();
+        Map<?, ?> signInfo = (Map<?, ?>) payment.get("signInfo");
+        assertEquals("OPEN", signInfo.get("state"));
+
+        Map<?, ?> federated = pisp(accessToken, HttpMethod.GET, "/my/payments/federate/sign/" + signInfo.get("signId") + "/hash/" + signInfo.get("hash"), null).getBody();
+        String pollId = (String) federated.get("pollId");
+        assertEquals("OPEN", state(pisp(accessToken, HttpMethod.GET, "/my/payments/sign/poll/" + pollId, null)));
+        assertEquals("DONE", state(pisp(accessToken, HttpMethod.GET, "/my/payments/sign/poll/" + pollId, null)));
+    }
+
+    @Test
+    public void accountsArePaged() {
+        Map<?, ?> page = pisp(authorize(), HttpMethod.GET, "/my/accounts?page=1&size=2", null).getBody();
+
+        assertEquals(3, page.get("pageCount"));
+        assertEquals(2, page.get("nextPage"));
+        assertEquals(2, ((List<?>) page.get("accounts")).size());
+    }
+
+    @Test
+    public void unknownAccessTokenIsRejected() {
+        try {
+            pisp("unknown", HttpMethod.GET, "/my/accounts", null);
+            fail("Unknown access token accepted");
+        } catch (HttpClientErrorException e) {
+            assertEquals(HttpStatus.FORBIDDEN, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void unknownRefreshTokenIsRejected() {
+        try {
+            token("refresh_token", "refresh_token", "unknown");
+            fail("Unknown refresh token accepted");
+        } catch (HttpClientErrorException e) {
+            assertEquals(HttpStatus.UNAUTHORIZED, e.getStatusCode());
+        }
+    }
+
+    private String authorize() {
+        ResponseEntity<String> redirect = restTemplate.getForEntity(baseUrl + "/idp/auth?redirect_uri={uri}&state=s1",
+                String.class, "http://localhost:8080/auth/callback");
+        assertEquals(HttpStatus.FOUND, redirect.getStatusCode());
+        String code = UriComponentsBuilder.fromUri(redirect.getHeaders().getLocation()).build().getQueryParams().getFirst("code");
+        Map<?, ?> tokens = token("authorization_code", "code", code);
+        assertEquals(300, tokens.get("expires_in"));
+        return (String) tokens.get("access_token");
+    }
+
+    private Map<?, ?> token(String grantType, String name, String value) {
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("grant_type", grantType);
+        form.add(name, value);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        return restTemplate.postForObject(baseUrl + "/idp/token", new HttpEntity<>(form, headers), Map.class);
+    }
+
+    private ResponseEntity<Map> pisp(String accessToken, HttpMethod method, String path, Object body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Bearer " + accessToken);
+        return restTemplate.exchange(baseUrl + "/pisp" + path, method, new HttpEntity<>(body, headers), Map.class);
+    }
+
+    private static String state(ResponseEntity<Map> response) {
+        return (String) ((Map<?, ?>) response.getBody().get("signInfo")).get("state");
+    }
+}